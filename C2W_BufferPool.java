@@ -0,0 +1,378 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A pool of direct ByteBuffers for the message I/O path.  The decoders and
+ * encoders of C2W_FrameCodec and the event loops of C2W_RelayServer take
+ * their buffers from the pool and give them back when they are done, so
+ * that sustained traffic, and connections that come and go, do not keep
+ * allocating new direct memory.  Buffers come in size classes that are
+ * powers of two, from MIN_SIZE to MAX_SIZE; a request is rounded up to the
+ * next class.  A request larger than MAX_SIZE gets a buffer of exactly the
+ * requested size, which is not kept when it is released.  Each size class
+ * keeps a limited number of free buffers, so that the pool never holds more
+ * than the number of bytes given by the system property
+ * "c2w.buffers.maxPooledBytes" (32 MB by default).  Buffers smaller than
+ * SLAB_SIZE are sliced from a slab of that size, so that a burst of small
+ * messages, more than the pool holds, does not need a direct allocation
+ * for each one.
+ *
+ * <p>A buffer from acquire() belongs to one owner, which must release() it
+ * exactly once.  A Message is a pooled buffer with a reference count, for
+ * data that is shared:  the relay encodes a chat message once, into a
+ * Message, and every client that it is queued for holds a reference until
+ * the message has been written.  The buffer goes back to the pool when the
+ * last reference is released.  The bytes of a Message are only decoded into
+ * a String if someone calls text().
+ *
+ * <p>Leak detection:  If the system property "c2w.buffers.leakDetection"
+ * is "true", every Message records where it was allocated, and a Message
+ * that is garbage-collected while it still has references is reported on
+ * standard error, with that stack trace, and counted in getLeaks().  A
+ * buffer that is released twice is also reported, by an exception.  This
+ * costs a stack trace for every Message, so it is meant for debugging.
+ * Whether or not it is on, getBuffersInUse() counts the buffers that have
+ * been acquired and not released.
+ */
+public class C2W_BufferPool {
+
+    /**
+     * Size of the smallest size class.
+     */
+    public static final int MIN_SIZE = 256;
+
+    /**
+     * Size of the largest size class.
+     */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the direct buffers from which smaller buffers are sliced.
+     */
+    public static final int SLAB_SIZE = 64 * 1024;
+
+    /**
+     * Default limit on the bytes held by free buffers, used when the system
+     * property "c2w.buffers.maxPooledBytes" is not set.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    private static volatile C2W_BufferPool global;
+
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES];
+    private final Cleaner cleaner;  // Null unless leak detection is on.
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * The free buffers of one size class.  It is used as a stack, so that
+     * the buffer that was released last, which is most likely to be in the
+     * processor's cache, is used first.
+     */
+    private static final class SizeClass {
+        final int size;
+        final int limit;
+        final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        SizeClass(int size, int limit) {
+            this.size = size;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Create a pool.
+     * @param maxPooledBytes the largest total size of the free buffers that
+     *    are kept; it is divided evenly among the size classes
+     * @param leakDetection whether to track Messages that are not released
+     */
+    public C2W_BufferPool(long maxPooledBytes, boolean leakDetection) {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            int size = MIN_SIZE << i;
+            classes[i] = new SizeClass(size, (int)Math.max(2, Math.min(Integer.MAX_VALUE,
+                                                                       maxPooledBytes / SIZE_CLASSES / size)));
+        }
+        cleaner = leakDetection ? Cleaner.create() : null;
+    }
+
+    /**
+     * Returns the pool that is used by the program's connections, which is
+     * created the first time that it is needed, from the system properties
+     * "c2w.buffers.maxPooledBytes" and "c2w.buffers.leakDetection".
+     */
+    public static C2W_BufferPool global() {
+        C2W_BufferPool pool = global;
+        if (pool == null) {
+            synchronized (C2W_BufferPool.class) {
+                pool = global;
+                if (pool == null) {
+                    pool = new C2W_BufferPool(Long.getLong("c2w.buffers.maxPooledBytes", DEFAULT_MAX_POOLED_BYTES),
+                                              Boolean.getBoolean("c2w.buffers.leakDetection"));
+                    global = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Get a direct buffer with at least the specified capacity, cleared, so
+     * that its limit is its capacity.  The data in it is left over from its
+     * last use.  It must be given back with release().
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.increment();
+        SizeClass sizeClass = sizeClass(capacity);
+        if (sizeClass == null)
+            return allocate(capacity);
+        ByteBuffer buffer;
+        synchronized (sizeClass) {
+            buffer = sizeClass.free.pollLast();
+        }
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        if (sizeClass.size >= SLAB_SIZE)
+            return allocate(sizeClass.size);
+        ByteBuffer slab = allocate(SLAB_SIZE);
+        int count = SLAB_SIZE / sizeClass.size;
+        synchronized (sizeClass) {
+            for (int i = 1; i < count && sizeClass.free.size() < sizeClass.limit; i++)
+                sizeClass.free.addLast(slab.slice(i * sizeClass.size, sizeClass.size));
+        }
+        return slab.slice(0, sizeClass.size);
+    }
+
+    /**
+     * Give back a buffer that was returned by acquire().  The caller must
+     * not use it, or any view of it, after this.
+     * @throws IllegalStateException if leak detection is on and the buffer
+     *    has already been released
+     */
+    public void release(ByteBuffer buffer) {
+        SizeClass sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity() || !buffer.isDirect()) {
+            released.increment();
+            return;  // Not from a size class; the garbage collector frees it.
+        }
+        synchronized (sizeClass) {
+            if (cleaner != null) {
+                for (ByteBuffer free : sizeClass.free) {
+                    if (free == buffer)  // Not equals(), which compares the contents.
+                        throw new IllegalStateException("A pooled buffer was released twice.");
+                }
+            }
+            released.increment();
+            if (sizeClass.free.size() < sizeClass.limit)
+                sizeClass.free.addLast(buffer);
+        }
+    }
+
+    /**
+     * Get a Message whose buffer has at least the specified capacity.  Its
+     * reference count is 1.  The caller fills data() and flips it before it
+     * shares the message.
+     */
+    public Message allocateMessage(int capacity) {
+        return new Message(acquire(capacity));
+    }
+
+    /**
+     * Returns the number of buffers that have been acquired and not
+     * released, including the buffers of Messages.
+     */
+    public long getBuffersInUse() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * Returns the number of new direct buffers, including slabs, that the
+     * pool has had to allocate, and their total size in bytes.
+     */
+    public long getAllocatedBuffers() {
+        return allocated.sum();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * Returns the total size of the free buffers that the pool holds.
+     */
+    public long getFreeBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            synchronized (sizeClass) {
+                bytes += (long)sizeClass.size * sizeClass.free.size();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of Messages that were garbage-collected without
+     * being released.  This is always 0 if leak detection is off.
+     */
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Tells whether leak detection is on.
+     */
+    public boolean isLeakDetectionEnabled() {
+        return cleaner != null;
+    }
+
+    /**
+     * Returns the size class for a capacity, or null if it is larger than
+     * MAX_SIZE.
+     */
+    private SizeClass sizeClass(int capacity) {
+        if (capacity > MAX_SIZE)
+            return null;
+        if (capacity <= MIN_SIZE)
+            return classes[0];
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);  // Bits in the next power of two.
+        return classes[bits - Integer.numberOfTrailingZeros(MIN_SIZE)];
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocated.increment();
+        allocatedBytes.add(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+
+    /**
+     * A pooled buffer with a reference count.  Any thread can retain or
+     * release it.  Its data must not be changed once it has been shared.
+     */
+    public final class Message {
+
+        private final ByteBuffer data;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final Cleaner.Cleanable leakCheck;
+
+        private Message(ByteBuffer data) {
+            this.data = data;
+            this.leakCheck = cleaner == null ? null
+                                 : cleaner.register(this, new LeakCheck(references, new Throwable(), leaks));
+        }
+
+        /**
+         * Returns the message's buffer itself.  Its creator writes the data
+         * into it and flips it; after that, use view().
+         */
+        public ByteBuffer data() {
+            return data;
+        }
+
+        /**
+         * Returns a read-only view of the data, with its own position, so
+         * that each holder of a reference can write it at its own pace.
+         */
+        public ByteBuffer view() {
+            return data.asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the number of bytes of data.
+         */
+        public int length() {
+            return data.remaining();
+        }
+
+        /**
+         * Decode the data as UTF-8 text.
+         */
+        public String text() {
+            return StandardCharsets.UTF_8.decode(view()).toString();
+        }
+
+        public int referenceCount() {
+            return references.get();
+        }
+
+        /**
+         * Add a reference, which must be released later.
+         * @return this message
+         * @throws IllegalStateException if the message has already been
+         *    released by all of its holders
+         */
+        public Message retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0)
+                    throw new IllegalStateException("A released message was retained.");
+            } while (!references.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Drop a reference.  When the last one is dropped, the buffer goes
+         * back to the pool, and the message must not be used again.
+         * @return true if this was the last reference
+         * @throws IllegalStateException if the message has already been
+         *    released by all of its holders
+         */
+        public boolean release() {
+            int count = references.decrementAndGet();
+            if (count > 0)
+                return false;
+            if (count < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("A message was released too many times.");
+            }
+            if (leakCheck != null)
+                leakCheck.clean();  // Does nothing now that the count is 0, except unregister.
+            C2W_BufferPool.this.release(data);
+            return true;
+        }
+
+    } // end nested class Message
+
+
+    /**
+     * The action that the Cleaner runs for a Message, when it becomes
+     * unreachable or is released.  It must not refer to the Message.
+     */
+    private static final class LeakCheck implements Runnable {
+
+        private final AtomicInteger references;
+        private final Throwable allocatedAt;
+        private final LongAdder leaks;
+
+        LeakCheck(AtomicInteger references, Throwable allocatedAt, LongAdder leaks) {
+            this.references = references;
+            this.allocatedAt = allocatedAt;
+            this.leaks = leaks;
+        }
+
+        public void run() {
+            if (references.get() <= 0)
+                return;
+            leaks.increment();
+            System.err.println("LEAK: a pooled message was garbage-collected with " + references.get()
+                                   + " unreleased references.  It was allocated here:");
+            allocatedAt.printStackTrace();
+                // Its buffer is not put back in the pool, since a view of it
+                // might still be in use; the garbage collector frees it.
+        }
+
+    } // end nested class LeakCheck
+
+}
@@ -1,22 +1,53 @@
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
 import javafx.stage.Stage;
 import javafx.scene.Scene;
 import javafx.stage.FileChooser;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
 import javafx.event.ActionEvent;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.geometry.Insets;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -29,18 +60,24 @@ import java.net.*;
  * can be closed by clicking a button in the c2w_window or by
  * closing the c2w_window.  To test the program, several
  * copies of the program can be run on the same computer.
+ * If the "Relay" box is checked, the c2w_window listens as a
+ * chat room that any number of other windows can connect to;
+ * see C2W_RelayServer.
  */
 public class C2W_Chat_App extends Application {
     
-    public static void main(String[] c2w_args) {
-        launch(c2w_args);
+    public static void main(String[] c2w_args) throws Exception {
+        C2W_Launcher.main(c2w_args);  // It can open a connection before the window exists.
     }
-    //--------------------------------------------------------------
 
     /**
-     * Possible states of the thread that handles the network connection.
+     * Start the JavaFX toolkit and open the c2w_window.  This is called by
+     * C2W_Launcher, which does not use JavaFX itself.
      */
-    private enum ConnectionState { LISTENING, CONNECTING, CONNECTED, CLOSED }
+    static void c2w_launchWindow(String[] c2w_args) {
+        launch(c2w_args);
+    }
+    //--------------------------------------------------------------
 
     /**
      * Default port number.  This is the initial content of input boxes in
@@ -55,34 +92,164 @@ public class C2W_Chat_App extends Application {
      */
     private static String c2w_defaultHost = "localhost";
 
+    /**
+     * Format of the times shown for messages from the history.
+     */
+    private static final DateTimeFormatter c2w_historyTimeFormat =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Format of the times that can be typed in the search box after "@".
+     */
+    private static final DateTimeFormatter c2w_jumpTimeFormat = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd[ HH:mm[:ss]]")
+            .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+            .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+            .toFormatter();
+
+
+    /**
+     * The handler for the connection, if any.
+     */
+    private volatile C2W_ConnectionHandler connection;
 
     /**
-     * The thread that handles the connection; defined by a nested class.
+     * Starts the threads that run connection handlers.  Depending on the
+     * "--threads=" option or the "c2w.threads" system property, these are
+     * platform threads or virtual threads.
      */
-    private volatile ConnectionHandler connection;
+    private C2W_ConnectionExecutor c2w_connectionExecutor;
+
+    /**
+     * Settings used for new connections, including c2w_connectionExecutor.
+     */
+    private C2W_ConnectionHandler.Options c2w_connectionOptions;
+
+    /**
+     * The multi-client relay that is hosted by this c2w_window, if the user
+     * chose to listen in relay mode.  When this is non-null, connection is null.
+     */
+    private volatile C2W_RelayServer c2w_relay;
 
     /**
      * Control buttons that C2W_Chat_appear in the c2w_window.
      */
     private Button c2w_listenButton, c2w_connectButton, c2w_closeButton, 
-                   c2w_clearButton, c2w_quitButton, c2w_saveButton, c2w_c2w_sendButton;
+                   c2w_clearButton, c2w_quitButton, c2w_saveButton, c2w_c2w_sendButton,
+                   c2w_searchButton, c2w_sendFileButton;
 
     /**
      * Input boxes for connection information (port numbers and host names).
      */
     private TextField c2w_listeningPortInput, c2w_remotePortInput, c2w_remoteHostInput;
 
+    /**
+     * When checked, the listen button starts a multi-client relay instead of
+     * waiting for a single connection.
+     */
+    private CheckBox c2w_relayCheck;
+
+    /**
+     * When checked, c2w_statsLabel is shown at the right of the c2w_window.
+     */
+    private CheckBox c2w_statsCheck;
+
+    /**
+     * The stats panel, which shows c2w_metrics.describe().  It is created
+     * the first time that it is shown; see c2w_statsPanel().
+     */
+    private Label c2w_statsLabel;
+
+    /**
+     * The metrics of all connections, which can also be read through JMX.
+     */
+    private C2W_Metrics c2w_metrics;
+
+    /**
+     * Shows how many sent messages are still waiting to be written to the
+     * connection, when there are any.
+     */
+    private Label c2w_queueLabel;
+
     /**
      * Input box for messages that will be sent to the other side of the
      * network connection.
      */
     private TextField c2w_messageInput;
 
+    /**
+     * Input box for searching the message history.
+     */
+    private TextField c2w_searchInput;
+
     /**
      * Contains a c2w_transcript of messages sent and received, along with
-     * information about the progress and state of the connection.
+     * information about the progress and state of the connection.  This is
+     * a ListView, which only creates cells for the lines that are visible,
+     * showing the lines held by c2w_transcriptStore.  Its cells all have the
+     * same height, so a message is split into display lines, at its line
+     * feeds and wherever it is too wide for the list, before it is stored.
+     */
+    private ListView<String> c2w_transcript;
+
+    /**
+     * Holds the lines of the c2w_transcript.  Only a bounded number of recent
+     * lines are kept in memory; older lines are spilled to disk and read back
+     * when the user scrolls up to them.
+     */
+    private C2W_TranscriptStore c2w_transcriptStore;
+
+    /**
+     * The items of c2w_transcript, a view of c2w_transcriptStore.
+     */
+    private TranscriptList c2w_transcriptLines;
+
+    /**
+     * Records everything that is posted to the c2w_transcript on disk, as it
+     * happens.  "Save c2w_Transcript" exports it.  This is null if the journal
+     * could not be opened, in which case the lines in c2w_transcriptStore are
+     * saved instead.
+     */
+    private volatile C2W_TranscriptJournal c2w_journal;
+
+    /**
+     * The history of all messages sent and received, across sessions, which
+     * can be searched with the search box.  It holds the messages of every
+     * peer, so it is only replayed to peers that ask for it if the system
+     * property "c2w.history.serve" is "true".  It is opened in the
+     * background, and is null until it is open, or if it could not be
+     * opened.
+     */
+    private volatile C2W_HistoryStore c2w_history;
+
+    /**
+     * For each peer, by address, the sequence number of the last message
+     * that it replayed from its history.  When a connection to the same
+     * peer is opened again, only the messages after it are requested; a
+     * peer that is not in the map is asked for its most recent messages.
+     * (A peer that connected to this window has a new address each time,
+     * since its port changes, so it is always asked for recent messages.)
+     */
+    private final Map<String,Long> c2w_lastReplayed = new ConcurrentHashMap<>();
+
+    /**
+     * Lines that have been posted for the c2w_transcript but not yet added to it.
+     * Any thread can add lines; c2w_renderer removes them on the JavaFX
+     * application thread.
+     */
+    private final ConcurrentLinkedQueue<String> c2w_pendingLines = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The System.nanoTime() when a line was added to c2w_pendingLines while
+     * none had been waiting, or 0.  The c2w_renderer uses it to measure how
+     * long lines wait before they are shown.
+     */
+    private final AtomicLong c2w_pendingSince = new AtomicLong();
+
+    /**
+     * Moves pending lines into the c2w_transcript, at most once per pulse.
      */
-    private TextArea c2w_transcript;
+    private TranscriptRenderer c2w_renderer;
     
     /**
      * The program's c2w_window.
@@ -92,10 +259,35 @@ public class C2W_Chat_App extends Application {
     
     
     /**
-     * Set up the GUI and event handling.
+     * Set up the GUI and event handling.  If C2W_Launcher opened a
+     * connection before the c2w_window existed, the c2w_window takes it over,
+     * and shows what has happened on it so far.  Parts of the GUI that are
+     * not visible at first are created when they are needed.
      */
     public void start(Stage stage) {
         c2w_window = stage;
+
+        C2W_Launcher.EarlyConnection early = C2W_Launcher.takeEarlyConnection();
+        C2W_ConnectionExecutor.ThreadMode threadMode;
+        if (early != null) {
+            c2w_connectionExecutor = early.executor;
+            threadMode = early.executor.getRequestedMode();
+        }
+        else {
+            try {
+                threadMode = C2W_ConnectionExecutor.parseMode(getParameters().getNamed().get("threads"));
+                if (threadMode == null)
+                    threadMode = C2W_ConnectionExecutor.modeFromSystemProperty();
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                threadMode = C2W_ConnectionExecutor.ThreadMode.PLATFORM;
+            }
+            c2w_connectionExecutor = new C2W_ConnectionExecutor(threadMode, "C2W-connection-");
+        }
+        c2w_connectionOptions = early != null ? early.options
+                                              : new C2W_ConnectionHandler.Options(c2w_connectionExecutor);
+        c2w_metrics = C2W_Metrics.global();
         
         c2w_listenButton = new Button("Listen on port:");
         c2w_listenButton.setOnAction( this::c2w_doAction );
@@ -110,6 +302,9 @@ public class C2W_Chat_App extends Application {
         c2w_c2w_sendButton.setOnAction( this::c2w_doAction );
         c2w_c2w_sendButton.setDisable(true);
         c2w_c2w_sendButton.setDefaultButton(true);
+        c2w_sendFileButton = new Button("Send File...");
+        c2w_sendFileButton.setOnAction( this::c2w_doAction );
+        c2w_sendFileButton.setDisable(true);
         c2w_saveButton = new Button("Save c2w_Transcript");
         c2w_saveButton.setOnAction( this::c2w_doAction );
         c2w_quitButton = new Button("Quit");
@@ -117,33 +312,76 @@ public class C2W_Chat_App extends Application {
         c2w_messageInput = new TextField();
         c2w_messageInput.setOnAction( this::c2w_doAction );
         c2w_messageInput.setEditable(false);
-        c2w_transcript = new TextArea();
-        c2w_transcript.setPrefRowCount(20);
-        c2w_transcript.setPrefColumnCount(60);
-        c2w_transcript.setWrapText(true);
-        c2w_transcript.setEditable(false);
+        c2w_searchButton = new Button("Search History");
+        c2w_searchButton.setOnAction( this::c2w_doAction );
+        c2w_searchInput = new TextField();
+        c2w_searchInput.setPrefColumnCount(14);
+        c2w_searchInput.setPromptText("words, #number, @date");
+        c2w_searchInput.setOnAction( this::c2w_doAction );
+        c2w_transcriptStore = C2W_TranscriptStore.fromSystemProperties();
+        c2w_transcriptLines = new TranscriptList();
+        c2w_transcript = new ListView<>(c2w_transcriptLines);
+        c2w_transcript.setFixedCellSize(22);
+        c2w_transcript.setPrefSize(600, 20 * 22);
+        c2w_transcript.setFocusTraversable(false);
+        c2w_transcript.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        KeyCombination copyKey = new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN);
+        c2w_transcript.setOnKeyPressed( e -> {
+            if (copyKey.match(e))
+                c2w_copySelectedLines();
+        });
+        c2w_renderer = new TranscriptRenderer(Integer.getInteger("c2w.render.maxHz", 0));
+        c2w_renderer.start();
+        try {
+            c2w_journal = C2W_TranscriptJournal.openFromSystemProperties();
+        }
+        catch (IOException | IllegalArgumentException e) {
+            c2w_postMessage("TRANSCRIPT JOURNAL IS NOT AVAILABLE:  " + e);
+        }
+        Thread historyOpener = new Thread( () -> {
+                // Opening can take a while if the search index must be rebuilt.
+            try {
+                c2w_history = C2W_HistoryStore.openFromSystemProperties();
+                c2w_connectionOptions.history = c2w_history;
+            }
+            catch (IOException | RuntimeException e) {
+                c2w_postMessage("MESSAGE HISTORY IS NOT AVAILABLE:  " + e);
+            }
+        }, "C2W-history-open");
+        historyOpener.setDaemon(true);
         c2w_listeningPortInput = new TextField(c2w_defaultPort);
         c2w_listeningPortInput.setPrefColumnCount(5);
         c2w_remotePortInput = new TextField(c2w_defaultPort);
         c2w_remotePortInput.setPrefColumnCount(5);
         c2w_remoteHostInput = new TextField(c2w_defaultHost);
         c2w_remoteHostInput.setPrefColumnCount(18);
+        c2w_relayCheck = new CheckBox("Relay");
+        c2w_statsCheck = new CheckBox("Stats");
         
-        HBox c2w_buttonBar = new HBox(5, c2w_quitButton, c2w_saveButton, c2w_clearButton, c2w_closeButton);
+        HBox c2w_buttonBar = new HBox(5, c2w_quitButton, c2w_saveButton, c2w_clearButton, c2w_closeButton,
+                                      c2w_searchInput, c2w_searchButton, c2w_statsCheck);
         c2w_buttonBar.setAlignment(Pos.CENTER);
-        HBox c2w_connectBar = new HBox(5, c2w_listenButton, c2w_listeningPortInput, c2w_connectButton, 
-                                      c2w_remoteHostInput, new Label("port:"), c2w_remotePortInput);
+        HBox c2w_connectBar = new HBox(5, c2w_listenButton, c2w_listeningPortInput, c2w_relayCheck,
+                                      c2w_connectButton, c2w_remoteHostInput, new Label("port:"), c2w_remotePortInput);
         c2w_connectBar.setAlignment(Pos.CENTER);
         VBox topPane = new VBox(8, c2w_connectBar, c2w_buttonBar);
         BorderPane c2w_inputBar = new BorderPane(c2w_messageInput);
         c2w_inputBar.setLeft( new Label("Your Message:"));
-        c2w_inputBar.setRight(c2w_c2w_sendButton);
+        c2w_queueLabel = new Label();
+        HBox c2w_sendBar = new HBox(5, c2w_queueLabel, c2w_sendFileButton, c2w_c2w_sendButton);
+        c2w_sendBar.setAlignment(Pos.CENTER_RIGHT);
+        c2w_inputBar.setRight(c2w_sendBar);
         BorderPane.setMargin(c2w_messageInput, new Insets(0,5,0,5));
         
         BorderPane c2w_root = new BorderPane(c2w_transcript);
         c2w_root.setTop(topPane);
         c2w_root.setBottom(c2w_inputBar);
         c2w_root.setStyle("-fx-border-color: #444; -fx-border-width: 3px");
+        c2w_statsCheck.setOnAction( e -> c2w_root.setRight(c2w_statsCheck.isSelected() ? c2w_statsPanel() : null) );
+        if (Boolean.getBoolean("c2w.metrics.panel")) {
+            c2w_statsCheck.setSelected(true);
+            c2w_root.setRight(c2w_statsPanel());
+        }
         c2w_inputBar.setStyle("-fx-padding:5px; -fx-border-color: #444; -fx-border-width: 3px 0 0 0");
         topPane.setStyle("-fx-padding:5px; -fx-border-color: #444; -fx-border-width: 0 0 3px 0");
 
@@ -154,10 +392,45 @@ public class C2W_Chat_App extends Application {
                // If a connection exists when the c2w_window is closed, close the connection.
             if (connection != null) 
                 connection.close(); 
+            if (c2w_relay != null)
+                c2w_relay.close();
+            c2w_renderer.stop();
+            c2w_transcriptStore.close();
+            if (c2w_journal != null)
+                c2w_journal.close();
+            if (c2w_history != null)
+                c2w_history.close();
         });
         stage.show();
+        historyOpener.start();  // Only once the c2w_window is up, so it doesn't delay it.
+        if (threadMode != C2W_ConnectionExecutor.ThreadMode.PLATFORM)
+            c2w_postMessage("CONNECTIONS WILL USE " + c2w_connectionExecutor.describe().toUpperCase());
+        if (early != null) {
+            connection = early.handler;
+            c2w_connectButton.setDisable(true);
+            c2w_listenButton.setDisable(true);
+            c2w_relayCheck.setDisable(true);
+            c2w_closeButton.setDisable(false);
+            c2w_postMessage("\n" + early.description + "\n");
+            early.listener.attach(new ConnectionEvents());
+        }
 
     } // end start()
+
+
+    /**
+     * Returns the stats panel, creating it the first time.
+     */
+    private Label c2w_statsPanel() {
+        if (c2w_statsLabel == null) {
+            c2w_statsLabel = new Label(c2w_metrics.describe());
+            c2w_statsLabel.setStyle("-fx-font-family: monospace; -fx-padding: 5px; "
+                                        + "-fx-border-color: #444; -fx-border-width: 0 0 0 3px");
+            c2w_statsLabel.setAlignment(Pos.TOP_LEFT);
+            c2w_statsLabel.setMaxHeight(Double.MAX_VALUE);
+        }
+        return c2w_statsLabel;
+    }
     
     
     /**
@@ -176,8 +449,8 @@ public class C2W_Chat_App extends Application {
     private void c2w_doAction(ActionEvent evt) {
         Object source = evt.getSource();
         if (source == c2w_listenButton) {
-            if (connection == null || 
-                    connection.getConnectionState() == ConnectionState.CLOSED) {
+            if (c2w_relay == null && (connection == null || 
+                    connection.getConnectionState() == C2W_ConnectionHandler.ConnectionState.CLOSED)) {
                 String portString = c2w_listeningPortInput.getText();
                 int port;
                 try {
@@ -191,13 +464,21 @@ public class C2W_Chat_App extends Application {
                 }
                 c2w_connectButton.setDisable(true);
                 c2w_listenButton.setDisable(true);
+                c2w_relayCheck.setDisable(true);
                 c2w_closeButton.setDisable(false);
-                connection = new ConnectionHandler(port);
+                if (c2w_relayCheck.isSelected())
+                    c2w_startRelay(port);
+                else {
+                    if (connection != null)
+                        c2w_metrics.reconnected();
+                    c2w_postMessage("\nLISTENING ON PORT " + port + "\n");
+                    connection = new C2W_ConnectionHandler(port, c2w_connectionOptions, new ConnectionEvents());
+                }
             }
         }
         else if (source == c2w_connectButton) {
-            if (connection == null || 
-                    connection.getConnectionState() == ConnectionState.CLOSED) {
+            if (c2w_relay == null && (connection == null || 
+                    connection.getConnectionState() == C2W_ConnectionHandler.ConnectionState.CLOSED)) {
                 String portString = c2w_remotePortInput.getText();
                 int port;
                 try {
@@ -211,15 +492,27 @@ public class C2W_Chat_App extends Application {
                 }
                 c2w_connectButton.setDisable(true);
                 c2w_listenButton.setDisable(true);
-                connection = new ConnectionHandler(c2w_remoteHostInput.getText(),port);
+                c2w_relayCheck.setDisable(true);
+                String host = c2w_remoteHostInput.getText();
+                if (connection != null)
+                    c2w_metrics.reconnected();
+                c2w_postMessage("\nCONNECTING TO " + host + " ON PORT " + port + "\n");
+                connection = new C2W_ConnectionHandler(host, port, c2w_connectionOptions, new ConnectionEvents());
             }
         }
         else if (source == c2w_closeButton) {
             if (connection != null)
                 connection.close();
+            if (c2w_relay != null)
+                c2w_relay.close();
         }
         else if (source == c2w_clearButton) {
-            c2w_transcript.setText("");
+            c2w_transcriptStore.clear();
+            if (c2w_journal != null)
+                c2w_journal.markClear();
+            c2w_transcriptLines = new TranscriptList();
+            c2w_transcript.setItems(c2w_transcriptLines);
+            c2w_renderer.transcriptCleared();
         }
         else if (source == c2w_quitButton) {
             try {
@@ -231,10 +524,34 @@ public class C2W_Chat_App extends Application {
         else if (source == c2w_saveButton) {
             c2w_doSave();
         }
+        else if (source == c2w_sendFileButton) {
+            c2w_doSendFile();
+        }
+        else if (source == c2w_searchButton || source == c2w_searchInput) {
+            c2w_doSearch(c2w_searchInput.getText().trim());
+        }
         else if (source == c2w_c2w_sendButton || source == c2w_messageInput) {
-            if (connection != null && 
-                    connection.getConnectionState() == ConnectionState.CONNECTED) {
-                connection.c2w_send(c2w_messageInput.getText());
+            if (c2w_relay != null) {
+                c2w_postMessage("c2w_SEND:  " + c2w_messageInput.getText());
+                c2w_relay.sendFromHost(c2w_messageInput.getText());
+                c2w_recordHistory(C2W_HistoryStore.FLAG_SENT, c2w_messageInput.getText());
+                c2w_messageInput.selectAll();
+                c2w_messageInput.requestFocus();
+            }
+            else if (connection != null && 
+                    (connection.getConnectionState() == C2W_ConnectionHandler.ConnectionState.CONNECTED
+                        || connection.getConnectionState() == C2W_ConnectionHandler.ConnectionState.RECONNECTING)) {
+                String message = c2w_messageInput.getText();
+                if (!C2W_FrameCodec.fitsInMessage(message))
+                    c2w_postMessage("\nMESSAGE NOT SENT; IT IS LONGER THAN " + C2W_FrameCodec.MAX_PAYLOAD
+                                        + " BYTES.\n");
+                else if (connection.c2w_send(message)) {
+                    c2w_postMessage("c2w_SEND:  " + message);
+                    c2w_recordHistory(C2W_HistoryStore.FLAG_SENT, message);
+                }
+                else
+                    c2w_postMessage("\nMESSAGE NOT SENT; " + connection.getSendQueueDepth()
+                                        + " MESSAGES ARE STILL WAITING TO BE SENT.\n");
                 c2w_messageInput.selectAll();
                 c2w_messageInput.requestFocus();
             }
@@ -242,8 +559,69 @@ public class C2W_Chat_App extends Application {
     }
     
 
+    /**
+     * Start a multi-client relay on the specified port.  Lines received from
+     * any client are shown in the c2w_transcript and forwarded to the other
+     * clients in the same room; messages typed in this c2w_window go to the
+     * default room, or to another room with "/to ROOM TEXT".
+     */
+    private void c2w_startRelay(int port) {
+        C2W_RelayServer.Listener events = new C2W_RelayServer.Listener() {
+            public void clientConnected(int clientId, String address) {
+                c2w_postMessage("CLIENT #" + clientId + " CONNECTED FROM " + address);
+            }
+            public void lineReceived(int clientId, String room, String line) {
+                c2w_postMessage("RECEIVE #" + clientId + " IN " + room + ":  " + line);
+                c2w_recordHistory((byte)0, line);
+            }
+            public void roomChanged(int clientId, String room, boolean joined) {
+                c2w_postMessage("CLIENT #" + clientId + (joined ? " JOINED ROOM " : " LEFT ROOM ") + room);
+            }
+            public void clientDisconnected(int clientId) {
+                c2w_postMessage("CLIENT #" + clientId + " DISCONNECTED");
+            }
+            public void relayClosed(Exception error) {
+                if (error != null)
+                    c2w_postMessage("\n\n ERROR:  " + error);
+                Platform.runLater( () -> {
+                    c2w_relay = null;
+                    c2w_listenButton.setDisable(false);
+                    c2w_connectButton.setDisable(false);
+                    c2w_relayCheck.setDisable(false);
+                    c2w_closeButton.setDisable(true);
+                    c2w_c2w_sendButton.setDisable(true);
+                    c2w_messageInput.setEditable(false);
+                    c2w_postMessage("\n*** RELAY CLOSED ***\n");
+                });
+            }
+        };
+        C2W_RelayServer relay;
+        try {
+            relay = new C2W_RelayServer(port, C2W_RelayServer.defaultEventLoops(), events);
+            relay.start();
+        }
+        catch (IOException | IllegalArgumentException e) {
+            c2w_postMessage("\n\n ERROR:  " + e);
+            c2w_listenButton.setDisable(false);
+            c2w_connectButton.setDisable(false);
+            c2w_relayCheck.setDisable(false);
+            c2w_closeButton.setDisable(true);
+            return;
+        }
+        c2w_relay = relay;
+        c2w_postMessage("\nRELAY LISTENING ON PORT " + port + "\n");
+        c2w_c2w_sendButton.setDisable(false);
+        c2w_messageInput.setEditable(true);
+        c2w_messageInput.setText("");
+        c2w_messageInput.requestFocus();
+    }
+
+
     /**
      * Save the contents of the c2w_transcript area to a file selected by the user.
+     * If the c2w_transcript journal is available, its segments are copied to the
+     * file in the background; otherwise, the lines are written from
+     * c2w_transcriptStore.
      */
     private void c2w_doSave() {
         FileChooser fileDialog = new FileChooser(); 
@@ -253,6 +631,16 @@ public class C2W_Chat_App extends Application {
         File selectedFile = fileDialog.showSaveDialog(c2w_window);
         if (selectedFile == null)
             return;  // User canceled or clicked the dialog's close box.
+        if (c2w_journal != null) {
+            c2w_journal.exportTo(selectedFile.toPath()).whenComplete( (bytes, error) -> {
+                if (error != null)
+                    Platform.runLater( () -> c2w_errorMessage(
+                            "Sorry, but an error occurred while\ntrying to write the text:\n" + error) );
+                else
+                    c2w_postMessage("TRANSCRIPT SAVED TO " + selectedFile);
+            });
+            return;
+        }
         PrintWriter out; 
         try {
             FileWriter stream = new FileWriter(selectedFile); 
@@ -263,7 +651,9 @@ public class C2W_Chat_App extends Application {
             return;
         }
         try {
-            out.print(c2w_transcript.getText());  // Write text from the TextArea to the file.
+            int lineCount = c2w_transcriptStore.size();
+            for (int i = 0; i < lineCount; i++)
+                out.println(c2w_transcriptStore.get(i));  // Write the lines of the c2w_transcript.
             out.close();
             if (out.checkError())   // (need to check for errors in PrintWriter)
                 throw new IOException("Error check failed.");
@@ -275,228 +665,526 @@ public class C2W_Chat_App extends Application {
 
 
     /**
-     * Add a line of text to the c2w_transcript area.
+     * Let the user select a file, and offer it to the other side of the
+     * connection.  The file is sent in the background if the other side
+     * accepts it.
+     */
+    private void c2w_doSendFile() {
+        C2W_ConnectionHandler handler = connection;
+        if (handler == null || handler.getConnectionState() != C2W_ConnectionHandler.ConnectionState.CONNECTED)
+            return;
+        FileChooser fileDialog = new FileChooser();
+        fileDialog.setInitialDirectory(new File(System.getProperty("user.home")));
+        fileDialog.setTitle("Select File to be Sent");
+        File selectedFile = fileDialog.showOpenDialog(c2w_window);
+        if (selectedFile == null)
+            return;
+        try {
+            C2W_FileTransfer transfer = handler.sendFile(selectedFile.toPath());
+            c2w_postMessage("OFFERING FILE " + transfer.getName() + " (" + transfer.getSize() + " BYTES)");
+        }
+        catch (IOException e) {
+            c2w_errorMessage("Sorry, but the file can't be sent:\n" + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Search the message history, and show the messages that are found in
+     * the c2w_transcript.  A query of the form "#N" shows the messages that
+     * start at sequence number N; "@yyyy-MM-dd" or "@yyyy-MM-dd HH:mm" shows
+     * the messages that start at that time.  Anything else is a list of
+     * words, and the most recent messages that contain all of them are shown.
+     */
+    private void c2w_doSearch(String query) {
+        C2W_HistoryStore history = c2w_history;
+        if (history == null) {
+            c2w_postMessage("\nMESSAGE HISTORY IS NOT AVAILABLE YET\n");
+            return;
+        }
+        if (query.isEmpty())
+            return;
+        int pageSize = Integer.getInteger("c2w.history.pageSize", 50);
+        long start = System.nanoTime();
+        List<C2W_HistoryStore.Message> found;
+        try {
+            if (query.startsWith("#")) {
+                found = history.read(Long.parseLong(query.substring(1).trim()), pageSize);
+            }
+            else if (query.startsWith("@")) {
+                LocalDateTime time = LocalDateTime.parse(query.substring(1).trim(), c2w_jumpTimeFormat);
+                long millis = time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                found = history.read(history.sequenceAt(millis), pageSize);
+            }
+            else {
+                found = history.search(query, pageSize);
+            }
+        }
+        catch (NumberFormatException | DateTimeParseException e) {
+            c2w_errorMessage("Use words, #number, or @yyyy-MM-dd HH:mm to search the history.");
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        StringBuilder text = new StringBuilder();
+        text.append("\nHISTORY \"").append(query).append("\":  ").append(found.size())
+            .append(" OF ").append(history.size()).append(" MESSAGES (").append(micros).append(" us)");
+        for (C2W_HistoryStore.Message message : found)
+            text.append('\n').append(c2w_formatHistory(message.sequence, message.time, message.flags,
+                                                       message.text, "YOU", "PEER"));
+        c2w_postMessage(text.append('\n').toString());
+    }
+
+
+    /**
+     * Format a message from a history for the c2w_transcript.
+     * @param sender what to call the sender of a message with FLAG_SENT
+     * @param receiver what to call the sender of other messages
+     */
+    private static String c2w_formatHistory(long sequence, long time, byte flags, String text,
+                                            String sender, String receiver) {
+        String who = (flags & C2W_HistoryStore.FLAG_SENT) != 0 ? sender : receiver;
+        return "  #" + sequence + " " + c2w_historyTimeFormat.format(Instant.ofEpochMilli(time))
+                   + " " + who + ":  " + text;
+    }
+
+
+    /**
+     * Add a message that was sent or received to the message history, if it
+     * is open.  This can be called from any thread, including the relay's
+     * event loop, since the message is written by the history's own writer
+     * thread.
+     */
+    private void c2w_recordHistory(byte flags, String message) {
+        C2W_HistoryStore history = c2w_history;
+        if (history != null)
+            history.appendLater(flags, message);
+    }
+
+
+    /**
+     * Add a line of text to the c2w_transcript area.  This can be called from
+     * any thread.  The line is not added immediately; it is queued, and
+     * c2w_renderer adds all queued lines to the c2w_transcript in one step,
+     * so that a burst of messages does not flood the JavaFX event queue.
+     * The line is also added to the c2w_transcript journal.
      * @param message text to be added; a line feed is added at the end
      */
     private void c2w_postMessage(String message) {
-        Platform.runLater( () -> c2w_transcript.appendText(message + '\n') );
+        c2w_pendingLines.add(message);
+        c2w_pendingSince.compareAndSet(0, System.nanoTime());
+        C2W_TranscriptJournal journal = c2w_journal;
+        if (journal != null)
+            journal.append(message);
+    }
+
+
+    /**
+     * Copy the lines that are selected in the c2w_transcript to the clipboard.
+     */
+    private void c2w_copySelectedLines() {
+        StringBuilder text = new StringBuilder();
+        for (int i : c2w_transcript.getSelectionModel().getSelectedIndices())
+            text.append(c2w_transcriptStore.get(i)).append('\n');
+        ClipboardContent content = new ClipboardContent();
+        content.putString(text.toString());
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+
+
+    /**
+     * Tells whether the c2w_transcript is scrolled all the way to the end,
+     * so that newly added lines should be scrolled into view.
+     */
+    private boolean c2w_isScrolledToEnd() {
+        for (Node node : c2w_transcript.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar) {
+                ScrollBar bar = (ScrollBar)node;
+                if (bar.getOrientation() == Orientation.VERTICAL)
+                    return !bar.isVisible() || bar.getValue() >= bar.getMax();
+            }
+        }
+        return true;
     }
 
 
     /**
-     * Defines the thread that handles the connection.  The thread is responsible
-     * for opening the connection and for receiving messages.  This class contains
-     * several methods that are called by the main class, and that are therefore
-     * executed in a different thread.  Note that by using a thread to open the
-     * connection, any blocking of the graphical user interface is avoided.  By
-     * using a thread for reading messages sent from the other side, the messages
-     * can be received and posted to the c2w_transcript asynchronously at the same
-     * time as the user is typing and c2w_sending messages.  All changes to the GUI
-     * that are made by this class are done using Platform.runLater().
+     * An observable list that presents the lines of c2w_transcriptStore to
+     * the ListView.  It holds no lines itself.  Since the ListView only asks
+     * for the lines that it is displaying, lines that have been spilled to
+     * disk are only read back when the user scrolls to them.
      */
-    private class ConnectionHandler extends Thread {
+    private class TranscriptList extends ObservableListBase<String> {
+
+        public String get(int index) {
+            return c2w_transcriptStore.get(index);
+        }
 
-        private volatile ConnectionState state;
-        private String remoteHost;
-        private int port;
-        private ServerSocket listener;
-        private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        public int size() {
+            return c2w_transcriptStore.size();
+        }
 
         /**
-         * Listen for a connection on a specified port.  The constructor
-         * does not perform any network operations; it just sets some
-         * instance variables and starts the thread.  Note that the
-         * thread will only listen for one connection, and then will
-         * close its server socket.
+         * Tell the ListView that lines have been added at the end of the store.
          */
-        ConnectionHandler(int port) {
-            state = ConnectionState.LISTENING;
-            this.port = port;
-            c2w_postMessage("\nLISTENING ON PORT " + port + "\n");
-            try { setDaemon(true); }
-            catch (Exception e) {}
-            start();
+        void linesAdded(int from, int to) {
+            if (from == to)
+                return;
+            beginChange();
+            nextAdd(from, to);
+            endChange();
         }
 
         /**
-         * Open a connection to specified computer and port.  The constructor
-         * does not perform any network operations; it just sets some
-         * instance variables and starts the thread.
+         * Tell the ListView that the lines at the end of the store, starting
+         * at the specified index, have been replaced.
+         * @param removed the lines that were removed, in order
+         * @param to the size of the store after the new lines were added
          */
-        ConnectionHandler(String remoteHost, int port) {
-            state = ConnectionState.CONNECTING;
-            this.remoteHost = remoteHost;
-            this.port = port;
-            c2w_postMessage("\nCONNECTING TO " + remoteHost + " ON PORT " + port + "\n");
-            try { setDaemon(true); }
-            catch (Exception e) {}
-            start();
+        void linesReplaced(int from, List<String> removed, int to) {
+            beginChange();
+            nextRemove(from, removed);
+            nextAdd(from, to);
+            endChange();
         }
 
+    } // end nested class TranscriptList
+
+
+    /**
+     * Drains c2w_pendingLines into the c2w_transcript.  An AnimationTimer is
+     * called once for each JavaFX pulse, just before the scene is rendered,
+     * so all of the lines that arrived since the previous frame are added
+     * as a single change to the ListView, and it is laid out only once per
+     * frame no matter how fast messages arrive.  The rate can be
+     * limited further by specifying a maximum number of updates per second.
+     * The renderer also keeps c2w_queueLabel up to date, including the
+     * progress of a file transfer, refreshes the stats panel twice a second
+     * while it is shown, and records the render lag:  the time from when a
+     * line is posted to when it has been added to the ListView.  When the
+     * width of the list changes, the lines that are still in memory are
+     * wrapped again to fit the new width.
+     */
+    private class TranscriptRenderer extends AnimationTimer {
+
         /**
-         * Returns the current state of the connection.  
+         * Upper limit on the number of lines added in one pulse, so that a
+         * peer that sends faster than lines can be drained cannot keep the
+         * JavaFX thread in this method forever.
          */
-        synchronized ConnectionState getConnectionState() {
-            return state;
-        }
+        private static final int MAX_LINES_PER_PULSE = 50_000;
+
+        private static final long STATS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
 
         /**
-         * c2w_Send a message to the other side of the connection, and post the
-         * message to the c2w_transcript.  This should only be called when the
-         * connection state is ConnectionState.CONNECTED; if it is called at
-         * other times, it is ignored.  (Although it is unlikely, it is
-         * possible for this method to block, if the system's buffer for
-         * outgoing data fills.)
+         * Space, in pixels, that a cell of the list uses around its text,
+         * including room for the vertical scroll bar.
          */
-        synchronized void c2w_send(String message) {
-            if (state == ConnectionState.CONNECTED) {
-                c2w_postMessage("c2w_SEND:  " + message);
-                out.println(message);
-                out.flush();
-                if (out.checkError()) {
-                    c2w_postMessage("\nERROR OCCURRED WHILE TRYING TO c2w_SEND DATA.");
-                    close();
-                }
-            }
+        private static final double CELL_INSETS = 40;
+
+        /**
+         * Time that the width of the list must stay the same before the
+         * lines are wrapped again, so that dragging the edge of the window
+         * does not re-wrap them on every pulse.
+         */
+        private static final long REWRAP_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+        private final long minIntervalNanos;
+        private final Text measure = new Text();  // Measures the width of lines, in the cells' font.
+        private final double maxCharWidth;
+        private double wrapWidth;      // The width at which the lines in the store were wrapped.
+        private long widthChangedAt;   // When the list was first seen at a width other than wrapWidth.
+        private long lastRender;
+        private int shownQueueDepth;
+        private int shownFilePercent = -1;
+        private long lastStats;
+
+        /**
+         * For each of the most recent lines of the transcript, oldest first,
+         * the number of display lines that it was split into.  Only lines
+         * whose display lines are all still in memory are included, so
+         * they can be put back together and wrapped again.
+         */
+        private final ArrayDeque<Integer> wrappedCounts = new ArrayDeque<>();
+        private int wrappedTotal;  // The sum of wrappedCounts.
+
+        /**
+         * @param maxHz maximum number of c2w_transcript updates per second;
+         *    zero or less means once per pulse.  This is set with the system
+         *    property "c2w.render.maxHz".
+         */
+        TranscriptRenderer(int maxHz) {
+            minIntervalNanos = maxHz > 0 ? TimeUnit.SECONDS.toNanos(1) / maxHz : 0;
+            measure.setFont(Font.getDefault());
+            maxCharWidth = 2 * width("W");  // Room for full-width characters such as CJK and emoji.
+        }
+
+        private double width(String text) {
+            measure.setText(text);
+            return measure.getLayoutBounds().getWidth();
         }
 
         /**
-         * Close the connection. If the server socket is non-null, the
-         * server socket is closed, which will cause its accept() method to
-         * fail with an error.  If the socket is non-null, then the socket
-         * is closed, which will cause its input method to fail with an
-         * error.  (However, these errors will not be reported to the user.)
+         * Called when all lines have been removed from the store.
          */
-        synchronized void close() {
-            state = ConnectionState.CLOSED;
-            try {
-                if (socket != null)
-                    socket.close();
-                else if (listener != null)
-                    listener.close();
-            }
-            catch (IOException e) {
-            }
+        void transcriptCleared() {
+            wrappedCounts.clear();
+            wrappedTotal = 0;
         }
 
         /**
-         * This is called by the run() method when a message is received from
-         * the other side of the connection.  The message is posted to the
-         * c2w_transcript, but only if the connection state is CONNECTED.  (This
-         * is because a message might be received after the user has clicked
-         * the "Disconnect" button; that message should not be seen by the
-         * user.)
+         * Add one line of a message to the store, split into as many display
+         * lines as it takes to fit the width, breaking after a space where
+         * possible.  Only lines that might be too wide are measured.
          */
-        synchronized private void received(String message) {
-            if (state == ConnectionState.CONNECTED)
-                c2w_postMessage("RECEIVE:  " + message);
+        private void appendWrapped(String line, double available) {
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            int pieces = 1;
+            while (line.length() * maxCharWidth > available && width(line) > available) {
+                int low = 1;
+                int high = line.length() - 1;
+                while (low < high) {  // The longest prefix that fits, but at least one character.
+                    int middle = (low + high + 1) >>> 1;
+                    if (width(line.substring(0, middle)) <= available)
+                        low = middle;
+                    else
+                        high = middle - 1;
+                }
+                int space = line.lastIndexOf(' ', low - 1);
+                int end = space > low / 2 ? space + 1 : low;
+                c2w_transcriptStore.append(line.substring(0, end));
+                line = line.substring(end);
+                pieces++;
+            }
+            c2w_transcriptStore.append(line);
+            wrappedCounts.addLast(pieces);
+            wrappedTotal += pieces;
+            while (wrappedTotal > c2w_transcriptStore.linesInMemory())
+                wrappedTotal -= wrappedCounts.removeFirst();  // Part of it has been spilled.
         }
 
         /**
-         * This is called by the run() method when the connection has been
-         * successfully opened.  It enables the correct buttons, writes a
-         * message to the c2w_transcript, and sets the connected state to CONNECTED.
+         * Wrap the lines that are still in memory again, to fit a new width.
+         * Lines that have been spilled to disk keep their old wrapping.
          */
-        synchronized private void connectionOpened() throws IOException {
-            listener = null;
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream());
-            state = ConnectionState.CONNECTED;
+        private void rewrap(double available) {
+            int size = c2w_transcriptStore.size();
+            int from = size - wrappedTotal;
+            List<String> removed = new ArrayList<>(wrappedTotal);
+            for (int i = from; i < size; i++)
+                removed.add(c2w_transcriptStore.get(i));
+            Integer[] counts = wrappedCounts.toArray(new Integer[0]);
+            c2w_transcriptStore.removeLast(wrappedTotal);
+            transcriptCleared();
+            StringBuilder line = new StringBuilder();
+            int next = 0;
+            for (int pieces : counts) {
+                line.setLength(0);
+                for (int i = 0; i < pieces; i++)
+                    line.append(removed.get(next++));
+                appendWrapped(line.toString(), available);
+            }
+            c2w_transcriptLines.linesReplaced(from, removed, c2w_transcriptStore.size());
+        }
+
+        public void handle(long now) {
+            C2W_ConnectionHandler handler = connection;
+            int queueDepth = (handler == null) ? 0 : handler.getSendQueueDepth();
+            int filePercent = -1;
+            if (handler != null) {
+                for (C2W_FileTransfer transfer : handler.getFileTransfers()) {
+                    if (transfer.getPath() != null && transfer.getSize() > 0) {
+                        filePercent = (int)(100 * transfer.getTransferred() / transfer.getSize());
+                        break;
+                    }
+                }
+            }
+            if (queueDepth != shownQueueDepth || filePercent != shownFilePercent) {
+                shownQueueDepth = queueDepth;
+                shownFilePercent = filePercent;
+                String text = queueDepth == 0 ? "" : queueDepth + " queued";
+                if (filePercent >= 0)
+                    text = (text + "  file " + filePercent + "%").trim();
+                c2w_queueLabel.setText(text);
+            }
+            if (c2w_statsCheck.isSelected() && now - lastStats >= STATS_INTERVAL_NANOS) {
+                lastStats = now;
+                c2w_statsPanel().setText(c2w_metrics.describe());
+            }
+            double listWidth = c2w_transcript.getWidth() > 0 ? c2w_transcript.getWidth()
+                                                             : c2w_transcript.getPrefWidth();
+            double available = Math.max(maxCharWidth, listWidth - CELL_INSETS);
+            if (wrapWidth == 0 || wrappedTotal == 0)
+                wrapWidth = available;
+            else if (available == wrapWidth)
+                widthChangedAt = 0;
+            else if (widthChangedAt == 0)
+                widthChangedAt = now;
+            else if (now - widthChangedAt >= REWRAP_DELAY_NANOS) {
+                boolean follow = c2w_isScrolledToEnd();
+                rewrap(available);
+                wrapWidth = available;
+                widthChangedAt = 0;
+                if (follow)
+                    c2w_transcript.scrollTo(c2w_transcriptStore.size() - 1);
+            }
+            if (c2w_pendingLines.isEmpty()) {
+                c2w_pendingSince.set(0);
+                return;
+            }
+            if (now - lastRender < minIntervalNanos)
+                return;
+            lastRender = now;
+            long pendingSince = c2w_pendingSince.getAndSet(0);
+            boolean follow = c2w_isScrolledToEnd();
+            int oldSize = c2w_transcriptStore.size();
+            String message;
+            int count = 0;
+            while (count++ < MAX_LINES_PER_PULSE && (message = c2w_pendingLines.poll()) != null) {
+                    // A message can contain line feeds; each line becomes one item.
+                int start = 0;
+                int end;
+                while ((end = message.indexOf('\n', start)) >= 0) {
+                    appendWrapped(message.substring(start, end), available);
+                    start = end + 1;
+                }
+                appendWrapped(message.substring(start), available);
+            }
+            int newSize = c2w_transcriptStore.size();
+            c2w_transcriptLines.linesAdded(oldSize, newSize);
+            if (follow)
+                c2w_transcript.scrollTo(newSize - 1);
+            if (!c2w_pendingLines.isEmpty() && pendingSince != 0)
+                c2w_pendingSince.compareAndSet(0, pendingSince);  // Some lines are still waiting.
+            else if (pendingSince != 0)
+                c2w_metrics.renderLag(System.nanoTime() - pendingSince);
+        }
+
+    } // end nested class TranscriptRenderer
+
+
+    /**
+     * Connects a C2W_ConnectionHandler to the GUI.  The handler calls these
+     * methods on its own threads, so all changes to the GUI that are made
+     * here are done using Platform.runLater(), and messages are shown using
+     * c2w_postMessage(), which can be called from any thread.
+     */
+    private class ConnectionEvents implements C2W_ConnectionHandler.Listener {
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+            String tls = handler.getTlsDescription();
+            String protocol = (handler.isCompressed() ? " (FRAMED PROTOCOL, DEFLATE COMPRESSION)"
+                                : handler.isFramed() ? " (FRAMED PROTOCOL)" : "")
+                              + (tls == null ? "" : " (TLS: " + tls + ")");
+                // If the peer serves its history, ask it for the messages that we
+                // have not seen, or for its most recent ones if this is the first
+                // connection.
+            int replayCount = Integer.getInteger("c2w.history.replayOnConnect", 20);
+            long last = c2w_lastReplayed.getOrDefault(handler.getRemoteAddress(), -1L);
+            if (handler.peerServesReplay()) {
+                if (last >= 0)
+                    handler.requestReplay(last + 1, Integer.MAX_VALUE);
+                else if (replayCount > 0)
+                    handler.requestReplay(-1, replayCount);
+            }
             Platform.runLater( () -> { 
                 c2w_closeButton.setDisable(false);
                 c2w_c2w_sendButton.setDisable(false);
+                c2w_sendFileButton.setDisable(!handler.isFramed());
                 c2w_messageInput.setEditable(true);
                 c2w_messageInput.setText("");
                 c2w_messageInput.requestFocus();
-                c2w_postMessage("CONNECTION ESTABLISHED\n");
+                c2w_postMessage("CONNECTION ESTABLISHED" + protocol + "\n");
             });
         }
 
-        /**
-         * This is called by the run() method when the connection is closed
-         * from the other side.  (This is detected when an end-of-stream is
-         * encountered on the input stream.)  It posts a message to the
-         * c2w_transcript and sets the connection state to CLOSED.
-         */
-        synchronized private void connectionClosedFromOtherSide() {
-            if (state == ConnectionState.CONNECTED) {
-                c2w_postMessage("\nCONNECTION CLOSED FROM OTHER SIDE\n");
-                state = ConnectionState.CLOSED;
-            }
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            c2w_postMessage("RECEIVE:  " + message);
+            c2w_recordHistory((byte)0, message);
         }
 
-        /**
-         * Called from the finally clause of the run() method to clean up
-         * after the network connection closes for any reason.
-         */
-        private void cleanUp() {
-            state = ConnectionState.CLOSED;
+        public void fileOffered(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+            Path directory = C2W_FileTransfer.defaultDownloadDirectory();
+            Platform.runLater( () -> {
+                Alert ask = new Alert(Alert.AlertType.CONFIRMATION,
+                        "The other side wants to send you the file \"" + transfer.getName() + "\" ("
+                            + transfer.getSize() + " bytes).\nAccept it?  It will be saved in " + directory,
+                        ButtonType.YES, ButtonType.NO);
+                ask.setHeaderText("Incoming file");
+                boolean accepted = ask.showAndWait().orElse(ButtonType.NO) == ButtonType.YES;
+                if (accepted)
+                    handler.acceptFile(transfer, directory);
+                else
+                    handler.declineFile(transfer);
+            });
+        }
+
+        public void fileTransferStarted(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+            String verb = transfer.getDirection() == C2W_FileTransfer.Direction.SENDING ? "SENDING" : "RECEIVING";
+            String resume = transfer.getStartOffset() > 0
+                                ? ", RESUMING AT BYTE " + transfer.getStartOffset() : "";
+            c2w_postMessage(verb + " FILE " + transfer.getName() + " (" + transfer.getSize() + " BYTES"
+                                + resume + ")");
+        }
+
+        public void fileTransferEnded(C2W_ConnectionHandler handler, C2W_FileTransfer transfer,
+                                      Exception error) {
+            if (error != null)
+                c2w_postMessage("FILE TRANSFER OF " + transfer.getName() + " STOPPED AFTER "
+                                    + transfer.getTransferred() + " BYTES:  " + error.getMessage());
+            else if (transfer.getDirection() == C2W_FileTransfer.Direction.SENDING)
+                c2w_postMessage("FILE " + transfer.getName() + " SENT");
+            else
+                c2w_postMessage("FILE " + transfer.getName() + " RECEIVED AND SAVED AS " + transfer.getPath());
+        }
+
+        public void historyReceived(C2W_ConnectionHandler handler, long sequence,
+                                    long time, byte flags, String text) {
+            c2w_lastReplayed.merge(handler.getRemoteAddress(), sequence, Math::max);
+            c2w_postMessage("REPLAY" + c2w_formatHistory(sequence, time, flags, text, "PEER", "TO PEER"));
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+            c2w_postMessage("\nERROR OCCURRED WHILE TRYING TO c2w_SEND DATA:  " + error.getMessage());
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+            c2w_postMessage("\nCONNECTION CLOSED FROM OTHER SIDE\n");
+        }
+
+        public void connectionLost(C2W_ConnectionHandler handler, Exception error) {
+            c2w_postMessage("\nCONNECTION LOST (" + error.getMessage() + "); TRYING TO RESUME...\n");
+            Platform.runLater( () -> c2w_sendFileButton.setDisable(true) );
+        }
+
+        public void connectionResumed(C2W_ConnectionHandler handler, int resent, boolean complete) {
+            if (complete)
+                c2w_postMessage("CONNECTION RESUMED; " + resent + " MESSAGES RESENT\n");
+            else
+                c2w_postMessage("CONNECTION RESUMED, BUT SOME MESSAGES MAY HAVE BEEN LOST\n");
+            Platform.runLater( () -> c2w_sendFileButton.setDisable(!handler.isFramed()) );
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+            c2w_postMessage("\n\n ERROR:  " + error);
+        }
+
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+            C2W_Compression.Stats stats = handler.getCompressionStats();
+            if (stats != null)
+                c2w_postMessage("COMPRESSION:  " + stats.describe());
             Platform.runLater( () -> {
                 c2w_listenButton.setDisable(false);
                 c2w_connectButton.setDisable(false);
+                c2w_relayCheck.setDisable(false);
                 c2w_closeButton.setDisable(true);
                 c2w_c2w_sendButton.setDisable(true);
+                c2w_sendFileButton.setDisable(true);
                 c2w_messageInput.setEditable(false);
                 c2w_postMessage("\n*** CONNECTION CLOSED ***\n");
             });
-            if (socket != null && !socket.isClosed()) {
-                // Make sure that the socket, if any, is closed.
-                try {
-                    socket.close();
-                }
-                catch (IOException e) {
-                }
-            }
-            socket = null;
-            in = null;
-            out = null;
-            listener = null;
-        }
-
-
-        /**
-         * The run() method that is executed by the thread.  It opens a
-         * connection as a client or as a server (depending on which 
-         * constructor was used).
-         */
-        public void run() {
-            try {
-                if (state == ConnectionState.LISTENING) {
-                        // Open a connection as a server.
-                    listener = new ServerSocket(port);
-                    socket = listener.accept();
-                    listener.close();
-                }
-                else if (state == ConnectionState.CONNECTING) {
-                        // Open a connection as a client.
-                    socket = new Socket(remoteHost,port);
-                }
-                connectionOpened();  // Set up to use the connection.
-                while (state == ConnectionState.CONNECTED) {
-                        // Read one line of text from the other side of
-                        // the connection, and report it to the user.
-                    String input = in.readLine();
-                    if (input == null)
-                        connectionClosedFromOtherSide();
-                    else
-                        received(input);  // Report message to user.
-                }
-            }
-            catch (Exception e) {
-                    // An error occurred.  Report it to the user, but not
-                    // if the connection has been closed (since the error
-                    // might be the expected error that is generated when
-                    // a socket is closed).
-                if (state != ConnectionState.CLOSED)
-                    c2w_postMessage("\n\n ERROR:  " + e);
-            }
-            finally {  // Clean up before terminating the thread.
-                cleanUp();
-            }
         }
 
-    } // end nested class ConnectionHandler
+    } // end nested class ConnectionEvents
 
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Per-message Deflate compression for the framing protocol.  It is used
+ * when both peers offer DEFLATE_TOKEN in their hello lines; see
+ * C2W_FrameCodec.  Each direction of a connection has one Deflate stream:
+ * every compressed payload is the output of a sync flush of the same
+ * Deflater, and the receiver feeds the payloads, in order, to one Inflater.
+ * So each message is compressed against the messages before it, and
+ * repeated text, such as the lines of a pasted log or stack trace, costs
+ * very little after its first appearance.  The stream starts with a preset
+ * dictionary of text that is common in chat messages, logs and stack
+ * traces, which helps the first messages.
+ *
+ * <p>Messages shorter than a threshold are not compressed, since Deflate
+ * would save little or nothing on them.  A compressed frame has the
+ * C2W_FrameCodec.FLAG_DEFLATE bit set in its flags.  Note that a payload
+ * that has been given to the Deflater must be sent compressed, even if it
+ * did not get smaller, since the receiver's Inflater must see everything
+ * that the Deflater saw.  The native memory of the Deflater and Inflater
+ * is freed when they are garbage collected.
+ */
+public class C2W_Compression {
+
+    /**
+     * The token in a hello line that offers this compression.
+     */
+    public static final String DEFLATE_TOKEN = "deflate/1";
+
+    /**
+     * The preset dictionary.  Deflate looks for matches mostly near the end
+     * of the dictionary, so the most common strings are at the end.
+     */
+    private static final byte[] DICTIONARY = (
+            "Caused by: java.lang.IllegalStateException java.lang.IllegalArgumentException "
+            + "java.lang.NullPointerException java.io.IOException java.net.SocketException "
+            + "Exception in thread \"main\" \tat java.base/java.lang.Thread.run(Thread.java:"
+            + "\tat java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:"
+            + "\tat java.base/jdk.internal.reflect. ... more\n"
+            + "Traceback (most recent call last):\n  File \"\", line , in \n"
+            + "ERROR WARN INFO DEBUG TRACE [main] 2026-01-01T00:00:00.000Z "
+            + "error: warning: failed could not connection timeout refused null undefined "
+            + "https://www. http://localhost: .com .org /api/v1/ .json .java .py .js .html "
+            + "{\"id\": \"name\": \"type\": \"value\": \"status\": \"message\": true, false, "
+            + "what when where which would could should there their about think know "
+            + "thanks please sorry okay yes no the and that this with have for you are "
+            + "it's I'm don't can't is it not but was just like what's so ").getBytes(StandardCharsets.UTF_8);
+
+
+    /**
+     * Statistics for one connection, which can be read by any thread.
+     * CPU cost is measured as the time spent in the Deflater and Inflater.
+     */
+    public static final class Stats {
+
+        final LongAdder messagesSent = new LongAdder();
+        final LongAdder messagesCompressed = new LongAdder();
+        final LongAdder bytesBeforeCompression = new LongAdder();
+        final LongAdder bytesAfterCompression = new LongAdder();
+        final LongAdder compressNanos = new LongAdder();
+        final LongAdder messagesInflated = new LongAdder();
+        final LongAdder bytesBeforeInflation = new LongAdder();
+        final LongAdder bytesAfterInflation = new LongAdder();
+        final LongAdder inflateNanos = new LongAdder();
+
+        /**
+         * Returns the number of messages sent, compressed or not.
+         */
+        public long messagesSent() {
+            return messagesSent.sum();
+        }
+
+        /**
+         * Returns the number of messages that were long enough to be compressed.
+         */
+        public long messagesCompressed() {
+            return messagesCompressed.sum();
+        }
+
+        /**
+         * Returns the total size of the payloads that were compressed, before
+         * compression.
+         */
+        public long bytesBeforeCompression() {
+            return bytesBeforeCompression.sum();
+        }
+
+        /**
+         * Returns the total size of the payloads that were compressed, after
+         * compression.
+         */
+        public long bytesAfterCompression() {
+            return bytesAfterCompression.sum();
+        }
+
+        /**
+         * Returns the total time spent compressing, in nanoseconds.
+         */
+        public long compressNanos() {
+            return compressNanos.sum();
+        }
+
+        /**
+         * Returns the total size of the compressed payloads divided by their
+         * size before compression, or 1 if nothing has been compressed.
+         * Smaller is better.
+         */
+        public double compressionRatio() {
+            long before = bytesBeforeCompression.sum();
+            return before == 0 ? 1 : (double)bytesAfterCompression.sum() / before;
+        }
+
+        /**
+         * Returns the mean time spent compressing one message, in nanoseconds.
+         */
+        public double nanosPerCompression() {
+            long n = messagesCompressed.sum();
+            return n == 0 ? 0 : (double)compressNanos.sum() / n;
+        }
+
+        /**
+         * Returns the mean time spent inflating one message, in nanoseconds.
+         */
+        public double nanosPerInflation() {
+            long n = messagesInflated.sum();
+            return n == 0 ? 0 : (double)inflateNanos.sum() / n;
+        }
+
+        /**
+         * Returns the number of bytes that compression has saved so far.
+         */
+        public long bytesSaved() {
+            return bytesBeforeCompression.sum() - bytesAfterCompression.sum();
+        }
+
+        /**
+         * Returns a one-line summary of the statistics.
+         */
+        public String describe() {
+            return String.format("sent %d of %d messages compressed, ratio %.3f, %,d bytes saved, "
+                                     + "%.1f us/compress; received %d compressed, ratio %.3f, %.1f us/inflate",
+                                 messagesCompressed(), messagesSent(), compressionRatio(), bytesSaved(),
+                                 nanosPerCompression() / 1000, messagesInflated.sum(),
+                                 bytesAfterInflation.sum() == 0 ? 1.0
+                                     : (double)bytesBeforeInflation.sum() / bytesAfterInflation.sum(),
+                                 nanosPerInflation() / 1000);
+        }
+
+    } // end nested class Stats
+
+
+    /**
+     * Compresses the payloads sent on one connection.  It is used only by
+     * the connection's writer thread.
+     */
+    public static final class Compressor {
+
+        private final Deflater deflater;
+        private final int threshold;
+        private final Stats stats;
+        private ByteBuffer output = ByteBuffer.allocateDirect(16 * 1024);
+
+        /**
+         * @param level the Deflate level, from 1 (fastest) to 9 (smallest)
+         * @param threshold payloads shorter than this are not compressed
+         * @param stats where statistics are recorded
+         */
+        public Compressor(int level, int threshold, Stats stats) {
+            this.deflater = new Deflater(level);
+            this.threshold = threshold;
+            this.stats = stats;
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Tells whether a payload of a given length should be compressed,
+         * and counts the message.
+         */
+        boolean shouldCompress(int length) {
+            stats.messagesSent.increment();
+            return length >= threshold;
+        }
+
+        /**
+         * Compress a payload.  All of the input is consumed.
+         * @return a buffer holding the compressed bytes, valid until the next call
+         */
+        ByteBuffer compress(ByteBuffer input) {
+            long start = System.nanoTime();
+            int length = input.remaining();
+            deflater.setInput(input);
+            output.clear();
+            while (true) {
+                deflater.deflate(output, Deflater.SYNC_FLUSH);
+                if (output.hasRemaining())
+                    break;  // All of the output has been produced.
+                output = grow(output);
+            }
+            output.flip();
+            stats.compressNanos.add(System.nanoTime() - start);
+            stats.messagesCompressed.increment();
+            stats.bytesBeforeCompression.add(length);
+            stats.bytesAfterCompression.add(output.remaining());
+            return output;
+        }
+
+    } // end nested class Compressor
+
+
+    /**
+     * Inflates the payloads received on one connection.  It is used only by
+     * the connection's reader thread.
+     */
+    public static final class Decompressor {
+
+        private final Inflater inflater = new Inflater();
+        private final Stats stats;
+        private ByteBuffer output = ByteBuffer.allocateDirect(16 * 1024);
+
+        public Decompressor(Stats stats) {
+            this.stats = stats;
+        }
+
+        /**
+         * Inflate one compressed payload.
+         * @param maxLength largest inflated size that is accepted
+         * @return a buffer holding the inflated bytes, valid until the next call
+         * @throws IOException if the data is not valid, or inflates to more
+         *    than maxLength bytes
+         */
+        ByteBuffer inflate(ByteBuffer input, int maxLength) throws IOException {
+            long start = System.nanoTime();
+            int length = input.remaining();
+            inflater.setInput(input);
+            output.clear();
+            try {
+                while (true) {
+                    int n = inflater.inflate(output);
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    }
+                    else if (!output.hasRemaining()) {
+                            // There may be more output; make room for it.
+                        if (output.capacity() > maxLength)
+                            throw new IOException("Compressed message is too large");
+                        output = grow(output);
+                    }
+                    else if (n == 0 || inflater.needsInput() || inflater.finished()) {
+                        break;
+                    }
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Invalid compressed message: " + e.getMessage());
+            }
+            output.flip();
+            if (output.remaining() > maxLength)
+                throw new IOException("Compressed message is too large");
+            stats.inflateNanos.add(System.nanoTime() - start);
+            stats.messagesInflated.increment();
+            stats.bytesBeforeInflation.add(length);
+            stats.bytesAfterInflation.add(output.remaining());
+            return output;
+        }
+
+    } // end nested class Decompressor
+
+
+    private C2W_Compression() {
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+}
@@ -0,0 +1,166 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runs connection handlers, one thread per connection.  The threads are
+ * either ordinary platform daemon threads or, on a Java runtime that
+ * supports them (Java 21 and later), virtual threads.  A virtual thread
+ * does not tie up a platform stack while it is blocked in a read, so a
+ * single process can hold a very large number of mostly idle sessions.
+ *
+ * <p>The mode is chosen with the system property "c2w.threads" or the
+ * command-line option "--threads=", whose value is "platform" or "virtual".
+ * If virtual threads are requested but not available, platform threads
+ * are used instead, and isVirtual() returns false.
+ */
+public class C2W_ConnectionExecutor implements Executor {
+
+    /**
+     * The kinds of thread that can be used to run connection handlers.
+     */
+    public enum ThreadMode { PLATFORM, VIRTUAL }
+
+    /**
+     * Name of the system property that selects the thread mode.
+     */
+    public static final String THREAD_MODE_PROPERTY = "c2w.threads";
+
+    private final ThreadMode requestedMode;
+    private final ThreadFactory factory;
+    private final boolean virtual;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * Create an executor that uses the specified kind of thread.
+     * @param mode the requested thread mode; null means PLATFORM
+     * @param namePrefix prefix for the names of the threads that are created
+     */
+    public C2W_ConnectionExecutor(ThreadMode mode, String namePrefix) {
+        requestedMode = (mode == null) ? ThreadMode.PLATFORM : mode;
+        ThreadFactory virtualFactory = null;
+        if (requestedMode == ThreadMode.VIRTUAL)
+            virtualFactory = virtualThreadFactory(namePrefix);
+        if (virtualFactory != null) {
+            factory = virtualFactory;
+            virtual = true;
+        }
+        else {
+            AtomicLong count = new AtomicLong();
+            factory = task -> {
+                Thread thread = new Thread(task, namePrefix + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+            virtual = false;
+        }
+    }
+
+    /**
+     * Parse a thread mode name, as given in the "c2w.threads" property or
+     * the "--threads=" option.  Returns null if the name is null or empty.
+     * @throws IllegalArgumentException if the name is not a legal mode
+     */
+    public static ThreadMode parseMode(String name) {
+        if (name == null || name.trim().isEmpty())
+            return null;
+        try {
+            return ThreadMode.valueOf(name.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " is not a legal thread mode;"
+                                                   + " use \"platform\" or \"virtual\".");
+        }
+    }
+
+    /**
+     * Returns the thread mode selected by the "c2w.threads" system property,
+     * or PLATFORM if the property is not set.
+     */
+    public static ThreadMode modeFromSystemProperty() {
+        ThreadMode mode = parseMode(System.getProperty(THREAD_MODE_PROPERTY));
+        return mode == null ? ThreadMode.PLATFORM : mode;
+    }
+
+    /**
+     * Start a new thread to run the task.
+     */
+    public void execute(Runnable task) {
+        Thread thread = factory.newThread( () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                active.decrementAndGet();
+            }
+        });
+        started.incrementAndGet();
+        thread.start();
+    }
+
+    /**
+     * Returns the mode that was requested when this executor was created.
+     */
+    public ThreadMode getRequestedMode() {
+        return requestedMode;
+    }
+
+    /**
+     * Tells whether this executor actually runs tasks on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Returns the number of tasks that are currently running.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of tasks that have been started since this
+     * executor was created.
+     */
+    public long getStartedCount() {
+        return started.get();
+    }
+
+    /**
+     * Returns a short description of the thread mode, for display to the user.
+     */
+    public String describe() {
+        if (virtual)
+            return "virtual threads";
+        else if (requestedMode == ThreadMode.VIRTUAL)
+            return "platform threads (virtual threads are not supported by this Java runtime)";
+        else
+            return "platform threads";
+    }
+
+    /**
+     * Returns a factory for virtual threads, or null if the running Java
+     * version does not support them.  Reflection is used so that the
+     * program can still be compiled and run on older versions of Java.
+     */
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, namePrefix, 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,1869 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * Handles one two-way chat connection.  The handler is responsible for
+ * opening the connection, as a server or as a client, for negotiating the
+ * protocol, and for receiving messages; it runs on its own thread, which
+ * is started by a C2W_ConnectionExecutor.  Messages are sent through an
+ * outgoing queue that is written by a second thread, so that sending never
+ * blocks the caller.  Everything that happens on the connection is reported
+ * to a Listener, which is called on the handler's threads.
+ *
+ * <p>With the framing protocol, files can also be sent; see
+ * C2W_FileTransfer.  Over TCP, the connection is a SocketChannel in
+ * blocking mode, so that the chunks of a file can be sent with
+ * FileChannel.transferTo(), without copying them into the program's memory.
+ *
+ * <p>The sockets come from the C2W_Transport in Options.transport, which is
+ * normally TCP.  A C2W_SimulatedTransport can be used instead, to run the
+ * handler over a network with delays, stalls and disconnects, inside one
+ * program; C2W_LoadGen does that with its --scenario option.
+ *
+ * <p>If Options.tls is set, everything is sent through TLS; see
+ * C2W_TlsChannel.  The handshake is done as soon as the socket is open,
+ * before the hellos, so both sides must use TLS.  A client that connects
+ * to the same server again, such as a resumable session that lost its
+ * socket, resumes its TLS session and skips most of the handshake.  (The
+ * chunks of a file then go through the TLS channel, so transferTo() has
+ * to copy them after all.)
+ *
+ * <p>The state of the connection is kept in an AtomicReference and is only
+ * changed by compare-and-set, along the transitions allowed by
+ * ConnectionState.canMoveTo().  No lock is used, so reading the state never
+ * blocks, and close() can be called at any time, on any thread, any number
+ * of times:  the first call moves the connection to CLOSED and closes the
+ * socket, which makes a blocked read or write fail; the failure is then
+ * recognized as the result of the close and is not reported as an error.
+ *
+ * <p>If both sides offer it, a framed connection is a resumable session.
+ * Each side keeps the chat messages that it has sent in a
+ * C2W_RetransmitBuffer until the other side acknowledges them, and sends
+ * heartbeats when it has nothing else to send.  If the socket fails, or
+ * nothing arrives for a while, the connection goes to RECONNECTING instead
+ * of CLOSED:  the client connects again, with exponential backoff, and the
+ * server listens again on the same port.  The new hellos carry the session
+ * id and the last sequence number that each side received, and only the
+ * messages after that are sent again, so no message is lost or shown
+ * twice.  Messages sent while the connection is RECONNECTING are held and
+ * sent once it resumes.  If a peer with a different session connects
+ * instead, the old session is not resumed:  the connection is CLOSED and
+ * the held messages are reported as not sent, so that they are never
+ * delivered to another session.  A side that closes the connection on purpose
+ * sends a goodbye first, so that the other side does not try to resume.
+ *
+ * <p>This class does not depend on JavaFX.  C2W_Chat_App uses it to run the
+ * connection of a chat window, and C2W_LoadGen uses it to drive synthetic
+ * peers without any GUI.
+ */
+public class C2W_ConnectionHandler implements Runnable {
+
+    /**
+     * Possible states of the thread that handles the network connection.
+     * A handler starts out LISTENING or CONNECTING, becomes CONNECTED when
+     * the connection is open, and ends up CLOSED.  A resumable session that
+     * loses its socket goes from CONNECTED to RECONNECTING, and back to
+     * CONNECTED when it has been resumed.  A handler can go to CLOSED from
+     * any other state, but it never leaves CLOSED.
+     */
+    public enum ConnectionState {
+        LISTENING, CONNECTING, CONNECTED, RECONNECTING, CLOSED;
+
+        /**
+         * Tells whether a connection in this state can change to a
+         * specified state.
+         */
+        public boolean canMoveTo(ConnectionState next) {
+            switch (this) {
+                case LISTENING:
+                case CONNECTING:
+                    return next == CONNECTED || next == CLOSED;
+                case CONNECTED:
+                    return next == RECONNECTING || next == CLOSED;
+                case RECONNECTING:
+                    return next == CONNECTED || next == CLOSED;
+                default:
+                    return false;
+            }
+        }
+    }
+
+
+    /**
+     * Receives notification of what happens on a connection.  Except for
+     * connectionStateChanged(), all methods are called on the threads of the
+     * handler, never on the caller's thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called each time the state of the connection changes, on the
+         * thread that changed it.  That is a thread of the handler, except
+         * when the connection is closed by a call to close(), which calls
+         * this on the caller's thread.  This is called once for each
+         * transition, and always before the other notifications that the
+         * transition causes.  By default, this does nothing.
+         */
+        default void connectionStateChanged(C2W_ConnectionHandler handler,
+                                            ConnectionState oldState, ConnectionState newState) {
+        }
+
+        /**
+         * Called when a listening handler has opened its server socket.
+         */
+        default void listening(C2W_ConnectionHandler handler, int localPort) {
+        }
+
+        /**
+         * Called when the connection has been opened and the protocol has
+         * been negotiated.  Messages can be sent from now on.
+         */
+        void connectionOpened(C2W_ConnectionHandler handler);
+
+        /**
+         * Called for each message received while the connection is open.
+         */
+        void messageReceived(C2W_ConnectionHandler handler, String message);
+
+        /**
+         * Called for each frame received while the connection is open.  In
+         * the line protocol, each line arrives as a TYPE_TEXT frame (see
+         * C2W_FrameCodec.LineDecoder).  The frame is only valid during
+         * the call.  By default, the payload of a text frame is decoded and
+         * passed to messageReceived(); other frame types are ignored, so that
+         * newer peers can add types.  A listener that doesn't need the text
+         * can override this to avoid decoding it.
+         */
+        default void frameReceived(C2W_ConnectionHandler handler, C2W_FrameCodec.Frame frame) {
+            if (frame.type() == C2W_FrameCodec.TYPE_TEXT)
+                messageReceived(handler, frame.text());
+            else if (frame.type() == C2W_FrameCodec.TYPE_HISTORY)
+                historyReceived(handler, frame.sequence(), frame.timestamp(), frame.flags(), frame.text());
+        }
+
+        /**
+         * Called for each message that the other side replays from its
+         * history, in answer to requestReplay().  The sequence number, time
+         * and flags are those of the message in the other side's
+         * C2W_HistoryStore.  By default, this does nothing.
+         */
+        default void historyReceived(C2W_ConnectionHandler handler, long sequence,
+                                     long time, byte flags, String text) {
+        }
+
+        /**
+         * Called when the other side offers to send a file.  The listener
+         * must eventually call acceptFile() or declineFile(), on any thread.
+         * By default, the file is declined.
+         */
+        default void fileOffered(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+            handler.declineFile(transfer);
+        }
+
+        /**
+         * Called when a file transfer starts, in either direction:  when this
+         * side accepts an offer, or when the other side accepts one.  The
+         * transfer's start offset is not zero if it is being resumed.
+         */
+        default void fileTransferStarted(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+        }
+
+        /**
+         * Called when a file transfer ends, in either direction.
+         * @param error null if the file was transferred completely;
+         *    otherwise, what went wrong
+         */
+        default void fileTransferEnded(C2W_ConnectionHandler handler, C2W_FileTransfer transfer,
+                                       Exception error) {
+        }
+
+        /**
+         * Called if writing to the connection fails.  The connection is
+         * closed after this is called.
+         */
+        void sendFailed(C2W_ConnectionHandler handler, IOException error);
+
+        /**
+         * Called when the other side closes an open connection.
+         */
+        void connectionClosedFromOtherSide(C2W_ConnectionHandler handler);
+
+        /**
+         * Called when the socket of a resumable session is lost, after the
+         * state has changed to RECONNECTING.  Messages can still be sent;
+         * they are held until the session is resumed.  By default, this
+         * does nothing.
+         * @param error what went wrong with the socket
+         */
+        default void connectionLost(C2W_ConnectionHandler handler, Exception error) {
+        }
+
+        /**
+         * Called when a resumable session has been resumed on a new socket,
+         * after the state has changed back to CONNECTED.
+         * @param resent the number of messages that were sent again because
+         *    the other side had not received them
+         * @param complete false if some messages may have been lost, because
+         *    too many messages were waiting to be acknowledged
+         */
+        default void connectionResumed(C2W_ConnectionHandler handler, int resent, boolean complete) {
+        }
+
+        /**
+         * Called when an error ends the connection, except for errors that
+         * are caused by close().
+         */
+        void connectionError(C2W_ConnectionHandler handler, Exception error);
+
+        /**
+         * Called once, as the last notification, when the handler's thread
+         * is about to end, however the connection was closed.
+         */
+        void connectionClosed(C2W_ConnectionHandler handler);
+
+    } // end interface Listener
+
+
+    /**
+     * Settings for a connection.  The defaults come from system properties:
+     * <ul>
+     * <li>"c2w.protocol" -- "line" to use only the old line protocol; any
+     *     other value (default "auto") offers the framing protocol
+     * <li>"c2w.protocol.helloTimeoutMs" -- how long to wait for the other
+     *     side's hello (default 3000)
+     * <li>"c2w.compress" -- "none" to not offer compression; any other value
+     *     (default "deflate") offers Deflate compression of the framed protocol
+     * <li>"c2w.compress.threshold" -- messages shorter than this many bytes
+     *     are not compressed (default 256)
+     * <li>"c2w.compress.level" -- the Deflate level, 1 to 9 (default 6)
+     * <li>"c2w.files.chunkBytes" -- size of the chunks of a file that is
+     *     sent (default 256 KB)
+     * <li>"c2w.files.window" -- how many chunks of a file can be queued at
+     *     once (default 2)
+     * <li>"c2w.history.serve" -- "true" to answer the other side's replay
+     *     requests from Options.history, and to say so in the hello
+     *     (default false)
+     * <li>"c2w.history.maxReplay" -- the largest number of messages sent
+     *     in answer to one replay request (default 1000)
+     * <li>"c2w.resume" -- "false" to not offer resumable sessions
+     *     (default true)
+     * <li>"c2w.resume.bufferMessages" and "c2w.resume.bufferChars" -- the
+     *     size of the retransmit buffer (default 10000 messages and 4M chars)
+     * <li>"c2w.resume.reconnectDelayMs" and "c2w.resume.maxReconnectDelayMs" --
+     *     the first and the longest delay between attempts to reconnect
+     *     (default 250 and 15000)
+     * <li>"c2w.resume.timeoutMs" -- how long to try to resume a session
+     *     before giving up (default 120000)
+     * <li>"c2w.resume.heartbeatMs" -- send a heartbeat after this long
+     *     without sending anything (default 2000)
+     * <li>"c2w.resume.idleTimeoutMs" -- consider the socket lost after this
+     *     long without receiving anything (default 8000)
+     * <li>"c2w.tls" -- "true" to use TLS (default false); see C2W_TlsChannel
+     *     for the properties that say which keys are used and trusted
+     * <li>"c2w.threads" -- see C2W_ConnectionExecutor
+     * </ul>
+     */
+    public static class Options {
+
+        /**
+         * Whether the binary framing protocol of C2W_FrameCodec is offered.
+         */
+        public boolean offerFraming =
+                !"line".equalsIgnoreCase(System.getProperty("c2w.protocol", "auto"));
+
+        /**
+         * How long to wait, in milliseconds, for the other side's hello when
+         * negotiating the protocol.  If it does not arrive in time, the other
+         * side is assumed to be an old peer that only knows the line protocol.
+         */
+        public int helloTimeout = Integer.getInteger("c2w.protocol.helloTimeoutMs", 3000);
+
+        /**
+         * Whether Deflate compression of the framing protocol is offered.
+         * See C2W_Compression.
+         */
+        public boolean offerCompression =
+                !"none".equalsIgnoreCase(System.getProperty("c2w.compress", "deflate"));
+
+        /**
+         * Payloads shorter than this many bytes are sent uncompressed.
+         */
+        public int compressionThreshold = Integer.getInteger("c2w.compress.threshold", 256);
+
+        /**
+         * The Deflate level, from 1 (fastest) to 9 (smallest).
+         */
+        public int compressionLevel = Integer.getInteger("c2w.compress.level", 6);
+
+        /**
+         * Runs the reader and writer threads of the connection.
+         */
+        public C2W_ConnectionExecutor executor;
+
+        /**
+         * The store that replay requests from the other side are answered
+         * from, if serveReplay is true.  If it is null, they are ignored.
+         */
+        public volatile C2W_HistoryStore history;
+
+        /**
+         * Whether replay requests from the other side are answered, which
+         * the hello tells the other side.  This is off by default, since a store can hold the messages of
+         * conversations with other peers, which the other side should not
+         * see unless the user allows it.
+         */
+        public boolean serveReplay = Boolean.getBoolean("c2w.history.serve");
+
+        /**
+         * The largest number of messages sent in answer to one replay request.
+         */
+        public int maxReplay = Integer.getInteger("c2w.history.maxReplay", 1000);
+
+        /**
+         * Size of the chunks in which files are sent.
+         */
+        public int fileChunkBytes = Integer.getInteger("c2w.files.chunkBytes",
+                                                       C2W_FileTransfer.DEFAULT_CHUNK_BYTES);
+
+        /**
+         * The number of chunks of a file that can be in the outgoing queue at
+         * once.  Chat messages sent during a transfer wait behind at most this
+         * many chunks.
+         */
+        public int fileWindow = Integer.getInteger("c2w.files.window", 2);
+
+        /**
+         * Whether resumable sessions are offered.  Only framed connections
+         * can be resumable.
+         */
+        public boolean offerResume = !"false".equalsIgnoreCase(System.getProperty("c2w.resume", "true"));
+
+        /**
+         * The largest number of sent messages that are kept until the other
+         * side acknowledges them, and also the largest number of messages
+         * that are held while a session is RECONNECTING.
+         */
+        public int resumeBufferMessages = Integer.getInteger("c2w.resume.bufferMessages", 10000);
+
+        /**
+         * The largest total length of the messages that are kept until the
+         * other side acknowledges them.
+         */
+        public long resumeBufferChars = Long.getLong("c2w.resume.bufferChars", 4 * 1024 * 1024);
+
+        /**
+         * The delay, in milliseconds, before the first attempt to reconnect
+         * after a failed attempt.  It doubles after each failure.
+         */
+        public long reconnectDelayMs = Long.getLong("c2w.resume.reconnectDelayMs", 250);
+
+        /**
+         * The longest delay, in milliseconds, between attempts to reconnect.
+         */
+        public long maxReconnectDelayMs = Long.getLong("c2w.resume.maxReconnectDelayMs", 15000);
+
+        /**
+         * How long, in milliseconds, a session can stay RECONNECTING before
+         * the connection is closed with an error.
+         */
+        public long resumeTimeoutMs = Long.getLong("c2w.resume.timeoutMs", 120000);
+
+        /**
+         * A heartbeat is sent when nothing has been sent for this many
+         * milliseconds.  Zero means no heartbeats.
+         */
+        public long heartbeatMs = Long.getLong("c2w.resume.heartbeatMs", 2000);
+
+        /**
+         * The socket of a resumable session is considered lost when nothing
+         * has been received for this many milliseconds.  It should be a few
+         * times heartbeatMs.  Zero means never.
+         */
+        public long idleTimeoutMs = Long.getLong("c2w.resume.idleTimeoutMs", 8000);
+
+        /**
+         * Where the metrics of connections are recorded.
+         */
+        public C2W_Metrics metrics = C2W_Metrics.global();
+
+        /**
+         * Whether connections use TLS.  Both sides must agree.
+         */
+        public boolean tls = Boolean.getBoolean("c2w.tls");
+
+        /**
+         * The keys and trusted certificates for TLS.  If null, the context
+         * of C2W_TlsChannel.defaultContext() is used.
+         */
+        public SSLContext tlsContext;
+
+        /**
+         * The network that connections are opened on.
+         */
+        public C2W_Transport transport = C2W_Transport.sockets();
+
+        public Options() {
+        }
+
+        public Options(C2W_ConnectionExecutor executor) {
+            this.executor = executor;
+        }
+
+    } // end nested class Options
+
+
+    /**
+     * A frame other than a text message, waiting in the outgoing queue.
+     * (Text messages are queued as Strings, and are encoded by the writer.)
+     */
+    private static final class OutgoingFrame {
+
+        final byte type;
+        final byte flags;
+        final long sequence;  // Or -1 to use the connection's next sequence number.
+        final long timestamp;
+        final ByteBuffer payload;
+
+        OutgoingFrame(byte type, byte flags, long sequence, long timestamp, ByteBuffer payload) {
+            this.type = type;
+            this.flags = flags;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+    } // end nested class OutgoingFrame
+
+
+    /**
+     * A chunk of a file, waiting in the outgoing queue.  The writer sends
+     * the chunk's header, and then the data straight from the file.
+     */
+    private static final class OutgoingChunk {
+
+        final C2W_FileTransfer transfer;
+        final FileChannel file;
+        final long offset;
+        final int length;
+        final int crc;
+
+        OutgoingChunk(C2W_FileTransfer transfer, FileChannel file, long offset, int length, int crc) {
+            this.transfer = transfer;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+    } // end nested class OutgoingChunk
+
+
+    /**
+     * Queued in place of a TYPE_ACK frame.  The writer fills in the sequence
+     * number when it writes the frame, so one queued acknowledgement covers
+     * every frame received until then.
+     */
+    private static final Object ACK = new Object();
+
+    /**
+     * Runs checkLink() for every resumable session.
+     */
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "c2w-link-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Options options;
+    private final Listener handlerListener;
+    private final AtomicReference<ConnectionState> state;
+    private String remoteHost;
+    private int port;
+    private volatile C2W_Transport.Acceptor listener;
+    private volatile C2W_Transport.Connection channel;
+    private ByteChannel io;  // The channel, or the C2W_TlsChannel on top of it.
+    private volatile C2W_TlsChannel tls;
+    private boolean framed;  // True if the framing protocol was negotiated.
+    private boolean compressed;  // True if compression was negotiated, too.
+    private volatile boolean peerServesReplay;  // The other side's hello offered replays.
+    private volatile C2W_Compression.Stats compressionStats;
+    private volatile C2W_FrameCodec.FrameSource decoder;  // Reads frames, or lines as frames.
+    private volatile C2W_OutboundQueue<Object> outbound;  // Strings and OutgoingFrames.
+    private long nextSequence;  // Only used by the writer thread.
+    private long fileBytesSent;  // Only used by the writer thread.
+    private volatile C2W_Metrics.Connection metrics;
+    private volatile String remoteAddress;  // Of the first socket.
+    private String firstLine;  // A message that arrived during negotiation.
+    private final Map<Long,C2W_FileTransfer> transfers = new ConcurrentHashMap<>();
+
+    // Used by resumable sessions.
+    private volatile boolean resumable;  // True if resumption was negotiated, too.
+    private long sessionId;  // Chosen by the client; zero if there is none yet.
+    private long peerSession;  // From the other side's last hello.
+    private long peerAck;  // From the other side's last hello.
+    private volatile long lastReceived = -1;  // Sequence number of the last frame received.
+    private boolean ackPending;  // Only used by the reader thread.
+    private final AtomicBoolean ackQueued = new AtomicBoolean();
+    private final C2W_RetransmitBuffer retransmit;
+    private final ArrayDeque<Object> held = new ArrayDeque<>();  // Sent while RECONNECTING.
+    private volatile long lastSentNanos;
+    private volatile long lostAt;  // When the connection became RECONNECTING.
+    private volatile boolean sayingGoodbye;
+    private volatile ScheduledFuture<?> watch;
+    private C2W_FrameCodec.FrameSource watchedDecoder;  // Only used by checkLink().
+    private long watchedBytes;  // Only used by checkLink().
+    private long lastReceivedNanos;  // Only used by checkLink().
+    private long closedNanos;  // Only used by checkLink().
+
+    /**
+     * Listen for a connection on a specified port.  The constructor
+     * does not perform any network operations; it just sets some
+     * instance variables and starts the thread that runs this handler.  Note that the
+     * thread will only listen for one connection, and then will
+     * close its server socket.
+     * @param port the port to listen on; 0 means any free port, which is
+     *    reported to Listener.listening()
+     */
+    public C2W_ConnectionHandler(int port, Options options, Listener listener) {
+        this.options = options;
+        this.handlerListener = listener;
+        state = new AtomicReference<>(ConnectionState.LISTENING);
+        this.port = port;
+        retransmit = new C2W_RetransmitBuffer(options.resumeBufferMessages, options.resumeBufferChars);
+        options.executor.execute(this);
+    }
+
+    /**
+     * Open a connection to specified computer and port.  The constructor
+     * does not perform any network operations; it just sets some
+     * instance variables and starts the thread that runs this handler.
+     */
+    public C2W_ConnectionHandler(String remoteHost, int port, Options options, Listener listener) {
+        this.options = options;
+        this.handlerListener = listener;
+        state = new AtomicReference<>(ConnectionState.CONNECTING);
+        this.remoteHost = remoteHost;
+        this.port = port;
+        retransmit = new C2W_RetransmitBuffer(options.resumeBufferMessages, options.resumeBufferChars);
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        sessionId = id;
+        options.executor.execute(this);
+    }
+
+    /**
+     * Returns the current state of the connection.  This never blocks.
+     */
+    public ConnectionState getConnectionState() {
+        return state.get();
+    }
+
+    /**
+     * Change the state of the connection from one state to another, and
+     * tell the listener.
+     * @return true if the state was changed; false if the state was not
+     *    equal to from, because another thread changed it first
+     * @throws IllegalStateException if the change is not a legal transition
+     */
+    private boolean transition(ConnectionState from, ConnectionState to) {
+        if (!from.canMoveTo(to))
+            throw new IllegalStateException("Illegal connection state change from " + from + " to " + to);
+        if (!state.compareAndSet(from, to))
+            return false;
+        handlerListener.connectionStateChanged(this, from, to);
+        return true;
+    }
+
+    /**
+     * Move the connection to CLOSED from whatever state it is in.
+     * @return true if this call closed it; false if it was already CLOSED
+     */
+    private boolean moveToClosed() {
+        while (true) {
+            ConnectionState current = state.get();
+            if (current == ConnectionState.CLOSED)
+                return false;
+            if (transition(current, ConnectionState.CLOSED))
+                return true;
+        }
+    }
+
+    /**
+     * Tells whether the framing protocol is in use.  This is only meaningful
+     * once the connection is open.
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Tells whether Deflate compression is in use.  This is only meaningful
+     * once the connection is open.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns the TLS protocol and cipher suite of the connection, as given
+     * by C2W_TlsChannel.describe(), or null if TLS is not used.  This is only
+     * meaningful once the connection is open.
+     */
+    public String getTlsDescription() {
+        C2W_TlsChannel tls = this.tls;
+        return tls == null ? null : tls.describe();
+    }
+
+    /**
+     * Returns a description of the address of the other side, as given by
+     * C2W_Transport.Connection.describeRemote() for the first socket of the
+     * connection, or null if it has not been opened.
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Tells whether the connection is a resumable session.  This is only
+     * meaningful once the connection is open.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * Returns the compression statistics of the connection, or null if
+     * compression is not in use.  They are still available after the
+     * connection closes.
+     */
+    public C2W_Compression.Stats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Returns the metrics of the connection, or null if it has not been
+     * opened.  They are still available after the connection closes.
+     */
+    public C2W_Metrics.Connection getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * c2w_Send a message to the other side of the connection.  This should
+     * only be called when the connection state is ConnectionState.CONNECTED
+     * or RECONNECTING; if it is called at other times, it is ignored.  The
+     * message is only added to the outgoing queue, which is written to the
+     * socket by a separate writer thread, so this method never blocks.  While
+     * a resumable session is RECONNECTING, the message is held, and queued
+     * when the session resumes.
+     * @return true if the message was queued or held; false if the
+     *    connection is not open, if the queue is above its high-water
+     *    mark because the other side is not keeping up, or if the message
+     *    is longer than the other side accepts (see
+     *    C2W_FrameCodec.fitsInMessage())
+     */
+    public boolean c2w_send(String message) {
+        if (!C2W_FrameCodec.fitsInMessage(message))
+            return false;
+        ConnectionState current = state.get();
+        if (current == ConnectionState.RECONNECTING)
+            return hold(message);
+        if (current == ConnectionState.CONNECTED) {
+            C2W_OutboundQueue<Object> queue = outbound;
+            if (queue != null && queue.offer(message))
+                return true;
+            if (resumable && (queue == null || queue.isClosed()))
+                return hold(message);  // The socket is being lost.
+            metrics.sendRefused();
+        }
+        return false;
+    }
+
+    /**
+     * Hold a message until the session resumes.  The state is checked again
+     * while holding the lock, since resumeSession() queues the held messages
+     * and changes the state to CONNECTED while it holds the same lock.
+     */
+    private boolean hold(String message) {
+        synchronized (held) {
+            ConnectionState current = state.get();
+            if (current == ConnectionState.CONNECTED) {
+                C2W_OutboundQueue<Object> queue = outbound;
+                if (queue != null && !queue.isClosed())
+                    return queue.offer(message);
+            }
+            else if (current != ConnectionState.RECONNECTING) {
+                return false;
+            }
+            if (held.size() >= options.resumeBufferMessages)
+                return false;
+            held.addLast(message);
+            return true;
+        }
+    }
+
+    /**
+     * Tells whether the other side said in its hello that it answers
+     * requestReplay().  This is only meaningful once the connection is open.
+     */
+    public boolean peerServesReplay() {
+        return peerServesReplay;
+    }
+
+    /**
+     * Ask the other side to replay messages from its history.  The messages
+     * are reported to Listener.historyReceived().  This only works if the
+     * framing protocol is in use, and the other side said in its hello
+     * that it serves replays.
+     * @param fromSequence the sequence number of the first message wanted,
+     *    or -1 for the most recent messages
+     * @param maxCount the largest number of messages wanted
+     * @return true if the request was queued
+     */
+    public boolean requestReplay(long fromSequence, int maxCount) {
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (state.get() != ConnectionState.CONNECTED || !framed || !peerServesReplay || queue == null)
+            return false;
+        ByteBuffer request = ByteBuffer.allocate(12);
+        request.putLong(fromSequence).putInt(maxCount).flip();
+        return queue.offer(new OutgoingFrame(C2W_FrameCodec.TYPE_REPLAY_REQUEST, (byte)0, -1,
+                                             System.currentTimeMillis(), request));
+    }
+
+    /**
+     * Offer to send a file to the other side.  This only works if the
+     * framing protocol is in use.  If the other side accepts, the file is
+     * sent in the background, and the listener is told when the transfer
+     * starts and ends.  If the same file was partly sent before, the
+     * transfer resumes where it stopped.
+     * @return the transfer
+     * @throws IOException if the file can't be read, or files can't be sent
+     *    on this connection
+     */
+    public C2W_FileTransfer sendFile(Path file) throws IOException {
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (state.get() != ConnectionState.CONNECTED || !framed || queue == null)
+            throw new IOException("Files can only be sent on an open connection that uses the framed protocol.");
+        C2W_FileTransfer transfer = C2W_FileTransfer.forSending(file, Math.max(1, options.fileWindow));
+        if (transfers.putIfAbsent(transfer.getId(), transfer) != null)
+            throw new IOException(file.getFileName() + " is already being sent.");
+        sendControl(C2W_FrameCodec.TYPE_FILE_OFFER,
+                    C2W_FileTransfer.offerPayload(transfer.getId(), transfer.getSize(), transfer.getName()));
+        return transfer;
+    }
+
+    /**
+     * Accept a file that the other side has offered.  The file is received
+     * into a ".part" file in the directory, which is renamed when the
+     * transfer is complete.  If a ".part" file from an earlier, interrupted
+     * transfer of the same file exists, the transfer resumes at its end.
+     */
+    public void acceptFile(C2W_FileTransfer transfer, Path directory) {
+        try {
+            Files.createDirectories(directory);
+            String name = C2W_FileTransfer.safeName(transfer.getName());
+            transfer.partPath = directory.resolve(name + ".c2w-" + Long.toHexString(transfer.getId()) + ".part");
+            transfer.setPath(directory.resolve(name));
+            FileChannel file = FileChannel.open(transfer.partPath, StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE);
+            long offset = file.size();
+            if (offset > transfer.getSize()) {
+                file.truncate(0);
+                offset = 0;
+            }
+            transfer.file = file;
+            transfer.started(offset);
+            sendControl(C2W_FrameCodec.TYPE_FILE_ACCEPT, C2W_FileTransfer.idAndLong(transfer.getId(), offset));
+            handlerListener.fileTransferStarted(this, transfer);
+        }
+        catch (IOException e) {
+            declineFile(transfer);
+            endTransfer(transfer, e);
+        }
+    }
+
+    /**
+     * Decline a file that the other side has offered.
+     */
+    public void declineFile(C2W_FileTransfer transfer) {
+        transfers.remove(transfer.getId());
+        sendControl(C2W_FrameCodec.TYPE_FILE_ACCEPT, C2W_FileTransfer.idAndLong(transfer.getId(), -1));
+    }
+
+    /**
+     * Stop a file transfer, in either direction, and tell the other side.
+     * A partly received file is kept, so that the transfer can be resumed.
+     */
+    public void cancelFile(C2W_FileTransfer transfer) {
+        sendControl(C2W_FrameCodec.TYPE_FILE_CANCEL,
+                    C2W_FileTransfer.cancelPayload(transfer.getId(), "Cancelled by the user"));
+        endTransfer(transfer, new IOException("Cancelled"));
+    }
+
+    /**
+     * Returns the file transfers that have not finished.
+     */
+    public List<C2W_FileTransfer> getFileTransfers() {
+        return new ArrayList<>(transfers.values());
+    }
+
+    /**
+     * Returns the number of messages that are waiting to be written to
+     * the socket.
+     */
+    public int getSendQueueDepth() {
+        C2W_OutboundQueue<Object> queue = outbound;
+        return queue == null ? 0 : queue.depth();
+    }
+
+    /**
+     * Close the connection.  The state is set to CLOSED.  Then, if the
+     * server socket is non-null, the server socket is closed, which will
+     * cause its accept() method to fail with an error.  If the socket is
+     * non-null, then the socket is closed, which will cause its read and
+     * write methods to fail with an error.  (However, these errors will not
+     * be reported to the listener.)  If the handler's thread has not opened
+     * its socket yet, it closes the socket itself as soon as it has opened
+     * it.  This method can be called from any thread, and calling it again
+     * does nothing.
+     *
+     * <p>A resumable session that is CONNECTED is closed more gently:  a
+     * TYPE_BYE frame is queued after the messages that are already queued,
+     * and the writer thread closes the socket once it has sent it.  The
+     * goodbye tells the other side not to try to resume the session.
+     */
+    public void close() {
+        C2W_OutboundQueue<Object> queue = outbound;
+        boolean goodbye = resumable && state.get() == ConnectionState.CONNECTED && queue != null;
+        if (moveToClosed() && goodbye && queue.add(new OutgoingFrame(C2W_FrameCodec.TYPE_BYE, (byte)0, -1,
+                                                                     System.currentTimeMillis(),
+                                                                     ByteBuffer.allocate(0)))) {
+            sayingGoodbye = true;
+            queue.close();
+            return;
+        }
+        if (sayingGoodbye)
+            return;
+        closeSockets();
+    }
+
+    /**
+     * This is called by the run() method when a message is received from
+     * the other side of the connection.  The message is passed to the
+     * listener, but only if the connection state is CONNECTED.  (This
+     * is because a message might be received after the user has clicked
+     * the "Disconnect" button; that message should not be seen by the
+     * user.)  Only the handler's thread calls this, so no lock is needed.
+     */
+    private void received(String message) {
+        if (state.get() == ConnectionState.CONNECTED)
+            handlerListener.messageReceived(this, message);
+    }
+
+    /**
+     * This is called by the run() method when a frame is received, or, in
+     * line mode, a line.
+     */
+    private void received(C2W_FrameCodec.Frame frame) throws IOException {
+        if (state.get() != ConnectionState.CONNECTED)
+            return;
+        if (resumable && frame.type() != C2W_FrameCodec.TYPE_HISTORY) {
+                // History frames have the sequence numbers of the history
+                // store, so they are not counted.
+            long sequence = frame.sequence();
+            if (sequence <= lastReceived && frame.type() == C2W_FrameCodec.TYPE_TEXT)
+                return;  // Already received, before the session was resumed.
+            if (sequence > lastReceived)
+                lastReceived = sequence;
+            if (frame.type() == C2W_FrameCodec.TYPE_ACK) {
+                if (frame.payloadLength() >= 8)
+                    retransmit.acknowledge(frame.payload().getLong());
+                return;
+            }
+            if (frame.type() == C2W_FrameCodec.TYPE_BYE) {
+                connectionClosedFromOtherSide();
+                return;
+            }
+            if (frame.type() == C2W_FrameCodec.TYPE_TEXT)
+                ackPending = true;
+        }
+        if (frame.type() == C2W_FrameCodec.TYPE_REPLAY_REQUEST)
+            answerReplayRequest(frame);
+        else if (frame.type() >= C2W_FrameCodec.TYPE_FILE_OFFER && frame.type() <= C2W_FrameCodec.TYPE_FILE_CANCEL)
+            fileFrameReceived(frame);
+        else
+            handlerListener.frameReceived(this, frame);
+    }
+
+    /**
+     * Answer a replay request by queuing TYPE_HISTORY frames.  Their payloads
+     * are views of the history store's memory-mapped segments, which the
+     * writer copies straight into its buffer.  The replay stops if the
+     * outgoing queue reaches its high-water mark.  Requests are ignored
+     * unless Options.serveReplay is true.
+     */
+    private void answerReplayRequest(C2W_FrameCodec.Frame frame) {
+        C2W_HistoryStore history = options.history;
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (!options.serveReplay || history == null || queue == null || frame.payloadLength() < 12)
+            return;
+        ByteBuffer request = frame.payload();
+        long from = request.getLong();
+        int max = Math.max(0, Math.min(request.getInt(), options.maxReplay));
+        if (from < 0)
+            from = Math.max(0, history.size() - max);
+        history.replay(from, max, (sequence, time, flags, payload) ->
+                queue.offer(new OutgoingFrame(C2W_FrameCodec.TYPE_HISTORY, flags, sequence, time, payload)));
+    }
+
+    /**
+     * Returns the size of an item in the outgoing queue, for its limits.
+     */
+    private static int sizeOf(Object item) {
+        if (item instanceof String)
+            return ((String)item).length();
+        if (item instanceof C2W_RetransmitBuffer.Entry)
+            return ((C2W_RetransmitBuffer.Entry)item).text.length();
+        if (item instanceof OutgoingChunk)
+            return C2W_FrameCodec.HEADER_SIZE + C2W_FileTransfer.CHUNK_HEADER + ((OutgoingChunk)item).length;
+        if (item == ACK)
+            return C2W_FrameCodec.HEADER_SIZE + 8;
+        return C2W_FrameCodec.HEADER_SIZE + ((OutgoingFrame)item).payload.remaining();
+    }
+
+    /**
+     * Queue a small control frame.  It is queued even if the outgoing queue
+     * is above its high-water mark.
+     */
+    private void sendControl(byte type, ByteBuffer payload) {
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (queue != null)
+            queue.add(new OutgoingFrame(type, (byte)0, -1, System.currentTimeMillis(), payload));
+    }
+
+    /**
+     * Handle a frame of one of the FILE types.  This runs on the reader
+     * thread.  The data of a chunk is checked and written to the ".part"
+     * file directly from the Decoder's buffer.
+     */
+    private void fileFrameReceived(C2W_FrameCodec.Frame frame) throws IOException {
+        ByteBuffer payload = frame.payload();
+        if (payload.remaining() < 8)
+            throw new IOException("Invalid file transfer frame");
+        long id = payload.getLong();
+        C2W_FileTransfer transfer = transfers.get(id);
+        switch (frame.type()) {
+        case C2W_FrameCodec.TYPE_FILE_OFFER: {
+            long size = payload.getLong();
+            String name = C2W_FileTransfer.restAsText(payload);
+            if (transfer != null)
+                return;  // Already offered.
+            transfer = new C2W_FileTransfer(id, name, size, C2W_FileTransfer.Direction.RECEIVING, null, 0);
+            transfers.put(id, transfer);
+            handlerListener.fileOffered(this, transfer);
+            break;
+        }
+        case C2W_FrameCodec.TYPE_FILE_ACCEPT: {
+            long offset = payload.getLong();
+            if (transfer == null || transfer.getDirection() != C2W_FileTransfer.Direction.SENDING)
+                return;
+            if (offset < 0 || offset > transfer.getSize()) {
+                endTransfer(transfer, new IOException("The other side declined the file."));
+                return;
+            }
+            transfer.started(offset);
+            handlerListener.fileTransferStarted(this, transfer);
+            C2W_FileTransfer started = transfer;
+            options.executor.execute( () -> sendChunks(started, offset) );
+            break;
+        }
+        case C2W_FrameCodec.TYPE_FILE_CHUNK: {
+            long offset = payload.getLong();
+            int crc = payload.getInt();
+            if (transfer == null || transfer.file == null || transfer.isFinished())
+                return;  // Cancelled; chunks that were already queued can still arrive.
+            if (offset != transfer.getTransferred() || offset + payload.remaining() > transfer.getSize()) {
+                failReceive(transfer, "Chunk at unexpected offset " + offset);
+                return;
+            }
+            CRC32 check = new CRC32();
+            check.update(payload.duplicate());
+            if ((int)check.getValue() != crc) {
+                failReceive(transfer, "Checksum error in the chunk at offset " + offset);
+                return;
+            }
+            int length = payload.remaining();
+            long position = offset;
+            try {
+                while (payload.hasRemaining())
+                    position += transfer.file.write(payload, position);
+            }
+            catch (IOException e) {
+                if (!transfer.isFinished())  // (Otherwise, it was cancelled during the write.)
+                    failReceive(transfer, "Could not write the file: " + e.getMessage());
+                return;
+            }
+            transfer.addTransferred(length);
+            break;
+        }
+        case C2W_FrameCodec.TYPE_FILE_DONE: {
+            if (transfer == null || transfer.file == null || transfer.isFinished())
+                return;
+            if (transfer.getTransferred() != transfer.getSize()) {
+                failReceive(transfer, "The file ended after " + transfer.getTransferred() + " bytes");
+                return;
+            }
+            try {
+                transfer.file.force(true);
+                transfer.file.close();
+                transfer.file = null;
+                Path target = C2W_FileTransfer.uniquePath(transfer.getPath().getParent(),
+                                                          transfer.getPath().getFileName().toString());
+                Files.move(transfer.partPath, target, StandardCopyOption.ATOMIC_MOVE);
+                transfer.setPath(target);
+                endTransfer(transfer, null);
+            }
+            catch (IOException e) {
+                endTransfer(transfer, e);
+            }
+            break;
+        }
+        case C2W_FrameCodec.TYPE_FILE_CANCEL: {
+            if (transfer != null)
+                endTransfer(transfer, new IOException("Cancelled by the other side: "
+                                                          + C2W_FileTransfer.restAsText(payload)));
+            break;
+        }
+        }
+    }
+
+    /**
+     * Stop receiving a file because of an error, and tell the sender.  The
+     * good part of the file is kept, so the transfer can be resumed.
+     */
+    private void failReceive(C2W_FileTransfer transfer, String reason) {
+        sendControl(C2W_FrameCodec.TYPE_FILE_CANCEL, C2W_FileTransfer.cancelPayload(transfer.getId(), reason));
+        endTransfer(transfer, new IOException(reason));
+    }
+
+    /**
+     * Finish a transfer, close its file, and tell the listener, unless it
+     * has already been finished.
+     */
+    private void endTransfer(C2W_FileTransfer transfer, Exception error) {
+        transfers.remove(transfer.getId());
+        if (!transfer.finish(error))
+            return;
+        FileChannel file = transfer.file;
+        if (file != null) {
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+            }
+            transfer.file = null;
+        }
+        transfer.window.release(Integer.MAX_VALUE / 2);  // Wake the sending thread, if any.
+        handlerListener.fileTransferEnded(this, transfer, error);
+    }
+
+    /**
+     * Send the chunks of a file, starting at an offset, followed by a
+     * TYPE_FILE_DONE frame.  This runs on a thread of its own.  Each chunk is
+     * read once into a reusable direct buffer to compute its CRC; the data
+     * itself is sent by the writer thread with FileChannel.transferTo().
+     * The window semaphore limits the number of chunks in the queue, so
+     * that chat messages can be sent between chunks.  The transfer only
+     * succeeds if the writer has written every chunk while the connection
+     * was CONNECTED; otherwise it ends with an error.  Either way, the file
+     * stays open until the writer is done with the chunks that use it.
+     */
+    private void sendChunks(C2W_FileTransfer transfer, long offset) {
+        int chunkBytes = Math.max(1024, Math.min(options.fileChunkBytes,
+                                                 C2W_FrameCodec.MAX_PAYLOAD - C2W_FileTransfer.CHUNK_HEADER));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBytes);
+        CRC32 crc = new CRC32();
+        long size = transfer.getSize();
+        C2W_OutboundQueue<Object> queue = outbound;
+        FileChannel file;
+        try {
+            file = FileChannel.open(transfer.getPath(), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            endTransfer(transfer, e);
+            return;
+        }
+        Exception error = null;
+        try {
+            queueChunks(transfer, queue, file, offset, buffer, crc);
+            while (!transfer.isFinished() && state.get() == ConnectionState.CONNECTED
+                       && !transfer.awaitChunksWritten(1000)) {
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            error = e;
+        }
+        if (error == null && !transfer.isFinished() && transfer.chunksQueued.get() == 0
+                && state.get() == ConnectionState.CONNECTED) {
+            sendControl(C2W_FrameCodec.TYPE_FILE_DONE, C2W_FileTransfer.idAndLong(transfer.getId(), size));
+            endTransfer(transfer, null);
+        }
+        else {
+            endTransfer(transfer, error != null ? error
+                                                : new IOException("The connection was lost before the file was sent."));
+        }
+        try {
+                // The writer uses the file until it has written or skipped
+                // every queued chunk, or until it stops, so it must not be
+                // closed before then.
+            while (transfer.chunksQueued.get() > 0 && queue != null && !queue.awaitStopped(0, TimeUnit.MILLISECONDS))
+                transfer.awaitChunksWritten(100);
+        }
+        catch (InterruptedException e) {
+        }
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Queue the chunks of a file, waiting for room in the window before
+     * each one.  Returns early if the transfer is cancelled.
+     */
+    private void queueChunks(C2W_FileTransfer transfer, C2W_OutboundQueue<Object> queue, FileChannel file,
+                             long offset, ByteBuffer buffer, CRC32 crc) throws IOException, InterruptedException {
+        long size = transfer.getSize();
+        int chunkBytes = buffer.capacity();
+        while (offset < size) {
+            int length = (int)Math.min(chunkBytes, size - offset);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, offset + buffer.position()) < 0)
+                    throw new IOException("The file became shorter while it was being sent.");
+            }
+            buffer.flip();
+            crc.reset();
+            crc.update(buffer);
+            while (!transfer.window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (state.get() != ConnectionState.CONNECTED)
+                    throw new IOException("The connection was closed.");
+            }
+            if (transfer.isFinished())
+                return;
+            transfer.chunksQueued.incrementAndGet();
+            if (queue == null || queue != outbound || !queue.add(new OutgoingChunk(transfer, file, offset, length,
+                                                                                   (int)crc.getValue()))) {
+                transfer.chunkDone();
+                throw new IOException("The connection was closed.");
+            }
+            offset += length;
+            transfer.addTransferred(length);
+        }
+    }
+
+    /**
+     * Write one chunk to the channel:  the header of the frame, with the
+     * chunk's id, offset and CRC, and then the data, directly from the
+     * file.  With TLS, the data has to go through io, the TLS channel;
+     * otherwise, the connection's transferFrom() sends it.  Called by the
+     * writer thread.
+     */
+    private void writeChunk(C2W_FrameCodec.Encoder encoder, OutgoingChunk chunk,
+                            C2W_Transport.Connection channel, ByteChannel io) throws IOException {
+        try {
+            if (chunk.transfer.isFinished())
+                return;
+            ByteBuffer header = ByteBuffer.allocate(C2W_FileTransfer.CHUNK_HEADER);
+            header.putLong(chunk.transfer.getId()).putLong(chunk.offset).putInt(chunk.crc).flip();
+            encoder.appendPartial(C2W_FrameCodec.TYPE_FILE_CHUNK, (byte)0, nextSequence++,
+                                  System.currentTimeMillis(), header.remaining() + chunk.length, header);
+            encoder.writeTo(io);
+            long position = chunk.offset;
+            long end = chunk.offset + chunk.length;
+            while (position < end) {
+                long n = io == channel ? channel.transferFrom(chunk.file, position, end - position)
+                                       : chunk.file.transferTo(position, end - position, io);
+                if (n <= 0)
+                    throw new IOException("The file became shorter while it was being sent.");
+                position += n;
+                fileBytesSent += n;
+            }
+        }
+        finally {
+            chunk.transfer.window.release();
+            chunk.transfer.chunkDone();
+        }
+    }
+
+
+    /**
+     * This is called by the run() method when a socket has been opened,
+     * before the link is started.  If framing is enabled, the client sends
+     * a hello and waits for the server's hello; the server waits for the
+     * client's hello and only answers it if it is one, so that an old
+     * client, which does not know about hellos, never sees one.  (An old
+     * client that does not send anything still makes the server wait for
+     * the hello timeout before it uses the line protocol.  The reverse case
+     * cannot be helped:  a new client that connects to an old server sends
+     * its hello, which the old server shows as a message, and then waits
+     * for the hello timeout.)  If the other side's hello offers framing, the framing protocol will be used; a
+     * hello without framing means the line protocol.  Compression is used
+     * if both hellos offer framing and compression, and the session is
+     * resumable if both offer framing and resumption; in that case, the
+     * other side's session id and the last sequence number that it received
+     * are saved in peerSession and peerAck.  If the other side's hello
+     * offers replays, peerServesReplay is set.  Otherwise, the other side is an
+     * old peer, and the line that it sent, if any, is saved in firstLine so
+     * that it can be shown once the connection is open.
+     */
+    private void negotiateProtocol() throws IOException {
+        framed = compressed = resumable = peerServesReplay = false;
+        if (!options.offerFraming)
+            return;
+        List<String> tokens = new ArrayList<>();
+        if (options.offerCompression)
+            tokens.add(C2W_Compression.DEFLATE_TOKEN);
+        if (options.offerResume) {
+            tokens.add(C2W_FrameCodec.RESUME_TOKEN);
+            if (sessionId != 0)
+                tokens.add("session=" + Long.toHexString(sessionId));
+            tokens.add("ack=" + lastReceived);
+        }
+        if (options.serveReplay)
+            tokens.add(C2W_FrameCodec.REPLAY_TOKEN);
+        boolean server = remoteHost == null;
+        if (!server)
+            C2W_FrameCodec.sendHello(outputStream(), tokens.toArray(new String[0]));
+        channel.setReadTimeout(options.helloTimeout);
+        try {
+            String line = C2W_FrameCodec.readRawLine(inputStream());
+            if (C2W_FrameCodec.isHello(line)) {
+                if (server)
+                    C2W_FrameCodec.sendHello(outputStream(), tokens.toArray(new String[0]));
+                framed = C2W_FrameCodec.offersFraming(line);
+                compressed = framed && options.offerCompression
+                                 && C2W_FrameCodec.offers(line, C2W_Compression.DEFLATE_TOKEN);
+                resumable = framed && options.offerResume
+                                 && C2W_FrameCodec.offers(line, C2W_FrameCodec.RESUME_TOKEN);
+                peerServesReplay = framed && C2W_FrameCodec.offers(line, C2W_FrameCodec.REPLAY_TOKEN);
+                if (resumable) {
+                    peerSession = parseToken(C2W_FrameCodec.tokenValue(line, "session"), 16, 0);
+                    peerAck = parseToken(C2W_FrameCodec.tokenValue(line, "ack"), 10, -1);
+                }
+            }
+            else
+                firstLine = line;
+        }
+        catch (SocketTimeoutException e) {
+                // The other side is an old peer that has not sent anything.
+        }
+        finally {
+            channel.setReadTimeout(0);
+        }
+    }
+
+    /**
+     * Returns a stream that reads from the socket, through TLS if it is used.
+     * Either way, reads honor the channel's read timeout.
+     */
+    private InputStream inputStream() {
+        return Channels.newInputStream(io);
+    }
+
+    /**
+     * Returns a stream that writes to the socket, through TLS if it is used.
+     */
+    private OutputStream outputStream() {
+        return Channels.newOutputStream(io);
+    }
+
+    /**
+     * Returns the number in a hello token, or a default value if the token
+     * is missing or is not a number.
+     */
+    private static long parseToken(String value, int radix, long defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return radix == 16 ? Long.parseUnsignedLong(value, 16) : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Set up the reader and the outgoing queue for the socket that was
+     * just opened, and start the writer thread.  This is called once for
+     * the first socket, and again each time a session is resumed on a new
+     * socket.  The metrics and compression statistics of the connection are
+     * created the first time and kept after that.
+     */
+    private void startLink() throws IOException {
+        C2W_Transport.Connection channel = this.channel;  // The writer keeps it after the field changes.
+        ByteChannel io = this.io;
+        if (remoteAddress == null)
+            remoteAddress = channel.describeRemote();
+        if (metrics == null)
+            metrics = options.metrics.connectionOpened(
+                    remoteAddress + (framed ? " framed" : " line") + (tls != null ? " tls" : ""),
+                    this::getSendQueueDepth);
+        C2W_Metrics.Connection metrics = this.metrics;
+        C2W_OutboundQueue.Sink<Object> sink;
+        C2W_FrameCodec.Encoder encoder = new C2W_FrameCodec.Encoder();
+        if (framed) {
+            C2W_FrameCodec.Decoder decoder = new C2W_FrameCodec.Decoder(io);
+            if (compressed) {
+                if (compressionStats == null)
+                    compressionStats = new C2W_Compression.Stats();
+                C2W_Compression.Stats stats = compressionStats;
+                encoder.setCompressor(new C2W_Compression.Compressor(options.compressionLevel,
+                                                                     options.compressionThreshold, stats));
+                decoder.setDecompressor(new C2W_Compression.Decompressor(stats));
+            }
+            this.decoder = decoder;
+            ByteBuffer ackPayload = ByteBuffer.allocate(8);
+            sink = batch -> {
+                long now = System.currentTimeMillis();
+                long before = encoder.bytesWritten() + fileBytesSent;
+                boolean goodbye = false;
+                for (Object item : batch) {
+                    if (item instanceof String) {
+                        long sequence = nextSequence++;
+                        if (resumable)
+                            retransmit.add(sequence, now, (String)item);
+                        encoder.appendText(sequence, now, (String)item);
+                    }
+                    else if (item instanceof C2W_RetransmitBuffer.Entry) {
+                            // A message that is sent again, after a session is
+                            // resumed, with its original sequence number.
+                        C2W_RetransmitBuffer.Entry entry = (C2W_RetransmitBuffer.Entry)item;
+                        retransmit.add(entry.sequence, entry.timestamp, entry.text);
+                        encoder.appendText(entry.sequence, entry.timestamp, entry.text);
+                    }
+                    else if (item instanceof OutgoingChunk) {
+                        writeChunk(encoder, (OutgoingChunk)item, channel, io);
+                    }
+                    else if (item == ACK) {
+                        ackQueued.set(false);
+                        ackPayload.clear();
+                        ackPayload.putLong(lastReceived).flip();
+                        encoder.append(C2W_FrameCodec.TYPE_ACK, (byte)0, nextSequence++, now, ackPayload);
+                    }
+                    else {
+                        OutgoingFrame frame = (OutgoingFrame)item;
+                        long sequence = frame.sequence >= 0 ? frame.sequence : nextSequence++;
+                        encoder.append(frame.type, frame.flags, sequence, frame.timestamp, frame.payload);
+                        goodbye |= frame.type == C2W_FrameCodec.TYPE_BYE;
+                    }
+                }
+                encoder.writeTo(io);  // All of the frames go out in one write.
+                lastSentNanos = System.nanoTime();
+                metrics.sent(batch.size(), encoder.bytesWritten() + fileBytesSent - before);
+                if (goodbye)
+                    io.close();  // See close().
+            };
+        }
+        else {
+            this.decoder = new C2W_FrameCodec.LineDecoder(io);
+            sink = batch -> {
+                long before = encoder.bytesWritten();
+                for (Object message : batch)
+                    encoder.appendLine((String)message);  // Only Strings are queued in line mode.
+                encoder.writeTo(io);  // One write for the whole batch.
+                lastSentNanos = System.nanoTime();
+                metrics.sent(batch.size(), encoder.bytesWritten() - before);
+            };
+        }
+        lastSentNanos = System.nanoTime();
+        ackQueued.set(false);  // An ACK left in the queue of a lost socket is not sent.
+        C2W_OutboundQueue<Object> queue = new C2W_OutboundQueue<>(C2W_ConnectionHandler::sizeOf, sink, error -> {
+            if (resumable) {
+                    // Only this socket is lost.  Closing it makes the reader
+                    // fail, and the reader resumes the session.
+                closeQuietly(channel);
+                return;
+            }
+            if (transition(ConnectionState.CONNECTED, ConnectionState.CLOSED)) {
+                options.metrics.sendFailed();
+                handlerListener.sendFailed(this, error);
+            }
+            close();
+        });
+        outbound = queue;
+        options.executor.execute( () -> {
+            try {
+                queue.run();
+            }
+            finally {
+                encoder.release();  // Only the writer uses it, and the writer is done.
+            }
+        });
+    }
+
+    /**
+     * This is called by the run() method when the connection has been
+     * successfully opened and its link started.  It sets the connected state
+     * to CONNECTED, starts watching the link if the session is resumable, and
+     * tells the listener.  If the connection was closed in the meantime, the
+     * state stays CLOSED and the listener is not told; the writer thread is
+     * stopped by cleanUp().
+     */
+    private void connectionOpened() {
+        ConnectionState opening = state.get();
+        if (opening != ConnectionState.CLOSED && transition(opening, ConnectionState.CONNECTED)) {
+            if (resumable) {
+                long tick = Math.max(50, Math.min(250, Math.min(options.heartbeatMs, options.idleTimeoutMs) / 4));
+                watch = WATCHDOG.scheduleWithFixedDelay(this::checkLink, tick, tick, TimeUnit.MILLISECONDS);
+            }
+            handlerListener.connectionOpened(this);
+        }
+    }
+
+    /**
+     * This is called by the run() method when the connection is closed
+     * from the other side.  (This is detected when an end-of-stream is
+     * encountered on the input stream, or when a resumable session receives
+     * a TYPE_BYE frame.)  It sets the connection state to CLOSED and tells
+     * the listener, unless the connection had already been closed on this
+     * side.
+     */
+    private void connectionClosedFromOtherSide() {
+        if (transition(ConnectionState.CONNECTED, ConnectionState.CLOSED))
+            handlerListener.connectionClosedFromOtherSide(this);
+    }
+
+    /**
+     * Read messages from the other side, and report them to the listener,
+     * until the connection is closed.  In line mode, the decoder returns each
+     * line as a TYPE_TEXT frame, so both protocols are read the same way.
+     * On a resumable session, an acknowledgement is sent after text frames,
+     * once every frame that has already arrived has been handled.
+     * @return null if the connection is over; or, if the socket of a
+     *    resumable session was lost while the connection was CONNECTED, the
+     *    error that lost it, and the session should be resumed
+     */
+    private IOException readLoop() throws IOException {
+        C2W_FrameCodec.FrameSource decoder = this.decoder;
+        long bytesRead = 0;
+        try {
+            while (state.get() == ConnectionState.CONNECTED) {
+                    // Read one frame from the other side of the
+                    // connection, and report it to the listener.
+                C2W_FrameCodec.Frame frame = decoder.next();
+                if (frame == null) {
+                    if (resumable)  // No goodbye was received, so this is a lost socket.
+                        return new EOFException("The socket was closed without a goodbye.");
+                    connectionClosedFromOtherSide();
+                }
+                else {
+                    long start = System.nanoTime();
+                    received(frame);
+                    long total = decoder.bytesRead();
+                    metrics.received(total - bytesRead, System.nanoTime() - start);
+                    bytesRead = total;
+                    if (ackPending && !decoder.hasFrame()) {
+                        ackPending = false;
+                        sendAck();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            if (resumable && state.get() == ConnectionState.CONNECTED)
+                return e;
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Queue a TYPE_ACK frame with the sequence number of the last frame
+     * received, unless one is already queued.
+     */
+    private void sendAck() {
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (queue != null && ackQueued.compareAndSet(false, true) && !queue.add(ACK))
+            ackQueued.set(false);
+    }
+
+    /**
+     * Open the socket, as a server or as a client (depending on which
+     * constructor was used).  A server listens on its port again each time
+     * a session is resumed; if the port was 0, the port that was picked the
+     * first time is used.  The listener is only told about the first time.
+     */
+    private void openSocket() throws IOException {
+        C2W_Transport transport = options.transport;
+        if (remoteHost == null) {
+                // Open a connection as a server.
+            C2W_Transport.Acceptor server = transport.listen(port);
+            listener = server;
+            if (state.get() == ConnectionState.CLOSED)
+                server.close();  // close() was called before listener was set.
+            port = server.getLocalPort();
+            if (state.get() == ConnectionState.LISTENING)
+                handlerListener.listening(this, port);
+            try {
+                channel = server.accept();
+            }
+            finally {
+                server.close();
+            }
+        }
+        else {
+                // Open a connection as a client.  The channel is made
+                // visible to close() before it connects, so that closing
+                // the handler can interrupt a slow connect.
+            channel = transport.open();
+            if (state.get() == ConnectionState.CLOSED)
+                channel.close();
+            channel.connect(remoteHost, port);
+        }
+        if (state.get() == ConnectionState.CLOSED)
+            channel.close();  // close() was called before channel was set.
+        options.metrics.accepted();
+        io = channel;
+        tls = null;
+        if (options.tls)
+            startTls();
+    }
+
+    /**
+     * Do the TLS handshake on the socket that openSocket() just opened.  The
+     * handshake has the same time limit as the hello.  A client engine is
+     * created with the server's host and port, so that it can resume an
+     * earlier session with the same server.
+     */
+    private void startTls() throws IOException {
+        SSLContext context = options.tlsContext != null ? options.tlsContext : C2W_TlsChannel.defaultContext();
+        C2W_TlsChannel tls = remoteHost == null ? C2W_TlsChannel.server(channel, context)
+                                                : C2W_TlsChannel.client(channel, context, remoteHost, port);
+        channel.setReadTimeout(options.helloTimeout);
+        try {
+            tls.handshake();
+        }
+        finally {
+            channel.setReadTimeout(0);
+        }
+        options.metrics.tlsHandshake(tls.getHandshakeNanos(), tls.isResumed());
+        io = tls;
+        this.tls = tls;
+    }
+
+    /**
+     * Take down the link of a session whose socket was lost:  close the
+     * socket, stop the writer thread, and keep the messages that it did not
+     * write, so that they can be sent when the session resumes.  Other
+     * queued frames are dropped.  File transfers end; sending the file
+     * again resumes it from where it stopped.
+     */
+    private void tearDownLink() throws InterruptedException {
+        closeQuietly(channel);
+        for (C2W_FileTransfer transfer : getFileTransfers())
+            endTransfer(transfer, new IOException("The connection was lost."));
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (queue != null) {
+            queue.close();
+            queue.awaitStopped(5, TimeUnit.SECONDS);
+            List<Object> unsent = queue.drain();
+            synchronized (held) {
+                for (int i = unsent.size() - 1; i >= 0; i--) {
+                    Object item = unsent.get(i);
+                    if (item instanceof String || item instanceof C2W_RetransmitBuffer.Entry) {
+                        held.addFirst(item);  // Before anything sent since the socket was lost.
+                    }
+                    else if (item instanceof OutgoingChunk) {
+                        ((OutgoingChunk)item).transfer.window.release();
+                        ((OutgoingChunk)item).transfer.chunkDone();
+                    }
+                }
+            }
+        }
+        outbound = null;
+        releaseDecoder();
+        channel = null;
+        firstLine = null;
+    }
+
+    /**
+     * Open a new socket for a session whose socket was lost, and resume the
+     * session on it.  A client tries to connect again after a delay that
+     * doubles after each failure, up to Options.maxReconnectDelayMs, with
+     * random jitter so that many clients that lost their sockets at the same
+     * moment do not all come back at once.  A server listens again.  This
+     * keeps trying until the session is resumed or the connection is
+     * closed, by close() or by checkLink() when Options.resumeTimeoutMs has
+     * passed.
+     * @return true if the session was resumed and the connection is
+     *    CONNECTED again
+     */
+    private boolean reconnect() throws InterruptedException {
+        long delay = Math.max(1, options.reconnectDelayMs);
+        while (state.get() == ConnectionState.RECONNECTING) {
+            try {
+                openSocket();
+                negotiateProtocol();
+                if (!resumable)
+                    throw new IOException("The other side did not offer to resume the session.");
+                return resumeSession();
+            }
+            catch (IOException e) {
+                closeQuietly(channel);
+            }
+            long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+            long left;
+            while (state.get() == ConnectionState.RECONNECTING && (left = end - System.nanoTime()) > 0)
+                Thread.sleep(Math.max(1, Math.min(100, TimeUnit.NANOSECONDS.toMillis(left))));
+            delay = Math.min(delay * 2, Math.max(delay, options.maxReconnectDelayMs));
+        }
+        return false;
+    }
+
+    /**
+     * Resume the session on a new socket, after both hellos have been
+     * exchanged.  The session is resumed only if the other side has the same
+     * session; the messages that it did not receive are then sent again from
+     * the retransmit buffer, followed by the messages that were sent while
+     * the socket was down.  If the other side has a different session (for
+     * example, because the other program was restarted, or because a
+     * different client connected to this port), the new socket is closed and
+     * the old session ends:  the connection is CLOSED, and the messages that
+     * were waiting are reported as not sent rather than being delivered to
+     * someone else.  The caller can then open a new connection.
+     * @return true if the connection is CONNECTED again; false if it was
+     *    closed, either in the meantime or because the session could not
+     *    be resumed
+     */
+    private boolean resumeSession() throws IOException {
+        if (sessionId == 0 || peerSession != sessionId) {
+            closeQuietly(channel);
+            if (moveToClosed()) {
+                int waiting;
+                synchronized (held) {
+                    waiting = held.size() + retransmit.size();
+                }
+                if (waiting > 0) {
+                    options.metrics.sendFailed();
+                    handlerListener.sendFailed(this, new IOException(
+                            "A different session connected, so " + waiting + " message(s) that were "
+                            + "waiting to be delivered were not sent."));
+                }
+                options.metrics.connectionError();
+                handlerListener.connectionError(this, new IOException(
+                        "The session could not be resumed, because the other side has a different session."));
+            }
+            return false;
+        }
+        boolean complete = !retransmit.lostAfter(peerAck);
+        List<C2W_RetransmitBuffer.Entry> again = retransmit.takeAfter(peerAck);
+        startLink();
+        C2W_OutboundQueue<Object> queue = outbound;
+        for (C2W_RetransmitBuffer.Entry entry : again)
+            queue.add(entry);
+        synchronized (held) {
+            for (Object item : held)
+                queue.add(item);
+            held.clear();
+            if (!transition(ConnectionState.RECONNECTING, ConnectionState.CONNECTED))
+                return false;
+        }
+        options.metrics.reconnected();
+        handlerListener.connectionResumed(this, again.size(), complete);
+        return true;
+    }
+
+    /**
+     * Run periodically by WATCHDOG while the handler of a resumable session
+     * is running.  While the connection is CONNECTED, it sends a heartbeat
+     * if nothing has been sent for Options.heartbeatMs, and closes the socket
+     * if nothing has been received for Options.idleTimeoutMs, which makes the
+     * reader resume the session on a new socket.  While it is RECONNECTING,
+     * it closes the connection, with an error, if it has not been resumed
+     * within Options.resumeTimeoutMs.  Once it is CLOSED, it closes the
+     * sockets if the writer has not done so within a second, after a
+     * goodbye that could not be sent.
+     */
+    private void checkLink() {
+        long now = System.nanoTime();
+        switch (state.get()) {
+        case CONNECTED: {
+            C2W_FrameCodec.FrameSource decoder = this.decoder;
+            long bytes = decoder == null ? 0 : decoder.bytesRead();
+            if (decoder != watchedDecoder || bytes != watchedBytes) {
+                watchedDecoder = decoder;
+                watchedBytes = bytes;
+                lastReceivedNanos = now;
+            }
+            else if (options.idleTimeoutMs > 0
+                         && now - lastReceivedNanos > TimeUnit.MILLISECONDS.toNanos(options.idleTimeoutMs)) {
+                closeQuietly(channel);
+                lastReceivedNanos = now;
+            }
+            if (options.heartbeatMs > 0 && now - lastSentNanos > TimeUnit.MILLISECONDS.toNanos(options.heartbeatMs))
+                sendAck();
+            break;
+        }
+        case RECONNECTING:
+            if (now - lostAt > TimeUnit.MILLISECONDS.toNanos(options.resumeTimeoutMs) && moveToClosed()) {
+                options.metrics.connectionError();
+                handlerListener.connectionError(this, new IOException(
+                        "The session could not be resumed within " + options.resumeTimeoutMs / 1000 + " seconds."));
+                closeSockets();
+            }
+            break;
+        case CLOSED:
+            if (closedNanos == 0)
+                closedNanos = now;
+            else if (now - closedNanos > TimeUnit.SECONDS.toNanos(1))
+                closeSockets();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Give the decoder's buffer back to C2W_BufferPool.  This is only called
+     * by the reader thread, once it has stopped reading from the decoder.
+     */
+    private void releaseDecoder() {
+        C2W_FrameCodec.FrameSource decoder = this.decoder;
+        this.decoder = null;
+        if (decoder != null)
+            decoder.release();
+    }
+
+    /**
+     * Close the server socket and the socket, if they are open.
+     */
+    private void closeSockets() {
+        closeQuietly(listener);
+        closeQuietly(channel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Called from the finally clause of the run() method to clean up
+     * after the network connection closes for any reason.
+     */
+    private void cleanUp() {
+        moveToClosed();
+        ScheduledFuture<?> watch = this.watch;
+        if (watch != null)
+            watch.cancel(false);
+        C2W_OutboundQueue<Object> queue = outbound;
+        if (queue != null) {
+            queue.close();
+            if (sayingGoodbye) {
+                try {
+                    queue.awaitStopped(1, TimeUnit.SECONDS);  // Give the goodbye time to go out.
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        }
+        closeQuietly(channel);  // Make sure that the socket, if any, is closed.
+        for (C2W_FileTransfer transfer : getFileTransfers())
+            endTransfer(transfer, new IOException("The connection was closed."));
+        synchronized (held) {
+            held.clear();
+        }
+        this.channel = null;
+        releaseDecoder();
+        outbound = null;
+        listener = null;
+        C2W_Metrics.Connection metrics = this.metrics;
+        if (metrics != null)
+            metrics.closed();
+        handlerListener.connectionClosed(this);
+    }
+
+
+    /**
+     * The run() method that is executed by the thread.  It opens a
+     * connection as a client or as a server (depending on which
+     * constructor was used), and reads from it until it is closed.  If the
+     * socket of a resumable session is lost, the session is resumed on a
+     * new socket, and reading goes on.
+     */
+    public void run() {
+        try {
+            openSocket();
+            negotiateProtocol();
+            if (resumable && sessionId == 0)
+                sessionId = peerSession;  // The server adopts the client's session.
+            startLink();
+            connectionOpened();  // Set up to use the connection.
+            if (firstLine != null)
+                received(firstLine);
+            IOException lost;
+            while ((lost = readLoop()) != null) {
+                if (!transition(ConnectionState.CONNECTED, ConnectionState.RECONNECTING))
+                    break;  // Closed by close() in the meantime.
+                lostAt = System.nanoTime();
+                handlerListener.connectionLost(this, lost);
+                tearDownLink();
+                if (!reconnect())
+                    break;
+            }
+        }
+        catch (Exception e) {
+                // An error occurred.  Report it to the listener, but not
+                // if the connection has been closed (since the error
+                // might be the expected error that is generated when
+                // a socket is closed).  Only the thread that moves the
+                // state to CLOSED reports, so an error can't be reported
+                // after close() has been called.
+            if (moveToClosed()) {
+                options.metrics.connectionError();
+                handlerListener.connectionError(this, e);
+            }
+        }
+        finally {  // Clean up before terminating the thread.
+            cleanUp();
+        }
+    }
+
+}
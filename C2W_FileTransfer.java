@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * One file that is being sent or received over a chat connection, using
+ * the FILE frame types of the framing protocol:
+ * <pre>
+ *     TYPE_FILE_OFFER   sender to receiver: id, size, name
+ *     TYPE_FILE_ACCEPT  receiver to sender: id, offset to start at (or -1 to decline)
+ *     TYPE_FILE_CHUNK   sender to receiver: id, offset, CRC-32 of the data, data
+ *     TYPE_FILE_DONE    sender to receiver: id, size
+ *     TYPE_FILE_CANCEL  either way: id, reason
+ * </pre>
+ * All numbers are longs except the CRC, which is an int; the name and the
+ * reason are UTF-8 text that fills the rest of the payload.  Chunks are sent
+ * in order, and only a few are queued at a time, so that chat messages sent
+ * during a transfer are not stuck behind the whole file.
+ *
+ * <p>The receiver writes the file to a ".part" file whose name includes the
+ * transfer's id, which is computed from the sender's file name, size and
+ * modification time.  If the connection is lost, sending the same file again
+ * resumes the transfer at the end of the ".part" file.  Every chunk is
+ * checked against its CRC before it is written, so everything in the
+ * ".part" file is known to be good.  When the transfer is done, the ".part"
+ * file is renamed.
+ *
+ * <p>C2W_ConnectionHandler runs the protocol; objects of this class hold the
+ * state of a transfer, and can be inspected by any thread.
+ */
+public class C2W_FileTransfer {
+
+    /**
+     * Default size of a chunk, used when the system property
+     * "c2w.files.chunkBytes" is not set.
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 256 * 1024;
+
+    /**
+     * Size of the fixed part of a chunk's payload: id, offset and CRC.
+     */
+    static final int CHUNK_HEADER = 8 + 8 + 4;
+
+    /**
+     * Whether this side is sending or receiving the file.
+     */
+    public enum Direction { SENDING, RECEIVING }
+
+    private final long id;
+    private final String name;
+    private final long size;
+    private final Direction direction;
+    private volatile Path path;
+    private volatile long startOffset;
+    private volatile long transferred;
+    private volatile boolean finished;
+    private volatile Exception error;
+
+    // Used by C2W_ConnectionHandler.
+    volatile FileChannel file;  // The ".part" file, while receiving.
+    Path partPath;
+    final Semaphore window;  // Chunks that may be queued, while sending.
+    final AtomicInteger chunksQueued = new AtomicInteger();  // Not yet written.
+
+    C2W_FileTransfer(long id, String name, long size, Direction direction, Path path, int window) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.direction = direction;
+        this.path = path;
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Create the state for sending a file.  The id is the same every time
+     * the same unchanged file is sent, which is what makes resuming work.
+     */
+    static C2W_FileTransfer forSending(Path file, int window) throws IOException {
+        long size = Files.size(file);
+        String name = file.getFileName().toString();
+        String key = file.toAbsolutePath() + "\n" + size + "\n" + Files.getLastModifiedTime(file).toMillis();
+        long id = UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        return new C2W_FileTransfer(id, name, size, Direction.SENDING, file, window);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the name of the file, without any directory.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    /**
+     * Returns the file that is being sent, or the file where a received
+     * file is saved.  For a received file, this is null until the transfer
+     * is accepted.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the offset at which the transfer started; it is not zero if
+     * an earlier transfer of the file was resumed.
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * Returns the number of bytes of the file that have been sent (that
+     * is, queued to be written to the connection) or received so far,
+     * including the ones before the start offset.
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the error that ended the transfer, or null if it succeeded
+     * or is not finished.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    void setPath(Path path) {
+        this.path = path;
+    }
+
+    void started(long offset) {
+        startOffset = offset;
+        transferred = offset;
+    }
+
+    void addTransferred(long count) {
+        transferred += count;  // Only ever updated by one thread.
+    }
+
+    /**
+     * Mark the transfer as finished.
+     * @return false if it was already finished
+     */
+    synchronized boolean finish(Exception error) {
+        if (finished)
+            return false;
+        this.error = error;
+        finished = true;
+        notifyAll();  // Wake a thread in awaitChunksWritten().
+        return true;
+    }
+
+    /**
+     * Count a chunk that has been written, or taken out of the queue without
+     * being written, and wake the sending thread if it was the last one.
+     */
+    void chunkDone() {
+        if (chunksQueued.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every queued chunk is done, or the transfer is finished,
+     * or the time runs out.
+     * @return true if no chunks are queued
+     */
+    synchronized boolean awaitChunksWritten(long millis) throws InterruptedException {
+        if (chunksQueued.get() > 0 && !finished)
+            wait(millis);
+        return chunksQueued.get() == 0;
+    }
+
+    /**
+     * Returns a file name that is safe to create in the download directory:
+     * only the last part of the sender's name is used, and characters that
+     * are not allowed in file names on common systems are replaced.
+     */
+    static String safeName(String name) {
+        String base = name.replace('\\', '/');
+        base = base.substring(base.lastIndexOf('/') + 1);
+        base = base.replaceAll("[\\x00-\\x1f:*?\"<>|]", "_").trim();
+        if (base.isEmpty() || base.equals(".") || base.equals(".."))
+            base = "received-file";
+        return base;
+    }
+
+    /**
+     * Returns a path in the directory for a file with the specified name,
+     * adding a number to the name if a file with that name already exists.
+     */
+    static Path uniquePath(Path directory, String name) {
+        Path target = directory.resolve(name);
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; Files.exists(target); i++)
+            target = directory.resolve(stem + " (" + i + ")" + extension);
+        return target;
+    }
+
+    /**
+     * Returns the directory where received files are saved:  the value of
+     * the system property "c2w.files.dir", or the user's Downloads directory
+     * if there is one, or the user's home directory.
+     */
+    public static Path defaultDownloadDirectory() {
+        String dir = System.getProperty("c2w.files.dir");
+        if (dir != null)
+            return Paths.get(dir);
+        Path downloads = Paths.get(System.getProperty("user.home"), "Downloads");
+        return Files.isDirectory(downloads) ? downloads : Paths.get(System.getProperty("user.home"));
+    }
+
+    static ByteBuffer offerPayload(long id, long size, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(16 + bytes.length);
+        payload.putLong(id).putLong(size).put(bytes).flip();
+        return payload;
+    }
+
+    static ByteBuffer idAndLong(long id, long value) {
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putLong(id).putLong(value).flip();
+        return payload;
+    }
+
+    static ByteBuffer cancelPayload(long id, String reason) {
+        byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + bytes.length);
+        payload.putLong(id).put(bytes).flip();
+        return payload;
+    }
+
+    /**
+     * Decode the text at the end of a payload, after the bytes that have
+     * already been read from it.
+     */
+    static String restAsText(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+}
@@ -0,0 +1,853 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * The length-prefixed binary framing protocol that GUIChat peers use when
+ * both sides support it.  (Older peers only understand the line protocol,
+ * where each message is one line of text; see negotiation below.)  Every
+ * frame starts with a fixed-size header, in network byte order:
+ * <pre>
+ *     int   payload length in bytes
+ *     byte  frame type (one of the TYPE_ constants)
+ *     byte  flags (zero unless documented by a frame type, except FLAG_DEFLATE)
+ *     long  sequence number, counted separately by each sender
+ *     long  timestamp, in milliseconds since the epoch
+ * </pre>
+ * followed by the payload.  The payload of a TYPE_TEXT frame is a message
+ * encoded in UTF-8, and it can contain line feeds.
+ *
+ * <p>Negotiation:  Right after the connection opens, a client that supports
+ * framing sends HELLO_LINE, terminated by a line feed, and then reads one
+ * line.  The server reads one line first, and answers with its own hello
+ * only if that line is a hello, so an old client is never sent one.  If
+ * the line that a side reads is a hello that offers framing, and its own
+ * hello did too, both sides switch to framing.  A hello that does not
+ * offer framing, such as LINE_HELLO_LINE sent by C2W_RelayServer, means
+ * that the line protocol is used.  If the line is not a hello at all, the
+ * peer is an old one, the line is an ordinary message, and the line
+ * protocol continues to be used.  If nothing arrives within the hello
+ * timeout, the line protocol is used too.  (So a new client that connects
+ * to an old server waits for the timeout, and the old server shows the
+ * client's hello as a message.)  A hello can also offer
+ * C2W_Compression.DEFLATE_TOKEN; if both hellos offer it, the payloads of
+ * long text frames are compressed (see C2W_Compression).  If both hellos
+ * offer RESUME_TOKEN, the connection is a resumable session, which
+ * survives the loss of the socket (see C2W_ConnectionHandler).  A hello
+ * that offers REPLAY_TOKEN says that its sender answers replay requests,
+ * so the other side only sends TYPE_REPLAY_REQUEST if it is there.
+ *
+ * <p>The line protocol is read by a LineDecoder, which returns each line as
+ * a TYPE_TEXT frame, and written by Encoder.appendLine(), so both protocols
+ * are read and written the same way:  through direct buffers that come from
+ * C2W_BufferPool and are given back by release(), with no String made for a
+ * message unless Frame.text() is called.
+ */
+public class C2W_FrameCodec {
+
+    /**
+     * Frame type for a chat message.
+     */
+    public static final byte TYPE_TEXT = 1;
+
+    /**
+     * Frame type for a request to replay messages from the receiver's
+     * C2W_HistoryStore.  The payload is a long, the sequence number of the
+     * first message wanted, followed by an int, the largest number of
+     * messages wanted.  A negative sequence number asks for the most recent
+     * messages.  The answer is a series of TYPE_HISTORY frames, which can
+     * stop early if the sender's outgoing queue fills up; the requester can
+     * then ask again, starting after the last message that arrived.
+     */
+    public static final byte TYPE_REPLAY_REQUEST = 2;
+
+    /**
+     * Frame type for a message replayed from the sender's history.  The
+     * payload is UTF-8 text, as for TYPE_TEXT, but the sequence number and
+     * timestamp in the header are those of the message in the sender's
+     * C2W_HistoryStore, and the flags are the flags stored with it.
+     */
+    public static final byte TYPE_HISTORY = 3;
+
+    /**
+     * Frame type that offers to send a file.  This and the following FILE
+     * types are described in C2W_FileTransfer.
+     */
+    public static final byte TYPE_FILE_OFFER = 4;
+
+    /**
+     * Frame type that accepts or declines a file offer.
+     */
+    public static final byte TYPE_FILE_ACCEPT = 5;
+
+    /**
+     * Frame type that carries a chunk of a file, with its CRC-32.
+     */
+    public static final byte TYPE_FILE_CHUNK = 6;
+
+    /**
+     * Frame type that ends a file transfer.
+     */
+    public static final byte TYPE_FILE_DONE = 7;
+
+    /**
+     * Frame type that stops a file transfer, in either direction.
+     */
+    public static final byte TYPE_FILE_CANCEL = 8;
+
+    /**
+     * Frame type that acknowledges frames, on a resumable session.  The
+     * payload is a long, the sequence number of the last frame received.
+     * It is also sent as a heartbeat when nothing else has been sent for a
+     * while.  See C2W_RetransmitBuffer.
+     */
+    public static final byte TYPE_ACK = 9;
+
+    /**
+     * Frame type that says goodbye, on a resumable session.  The side that
+     * sends it is closing the connection on purpose, so the other side does
+     * not try to resume the session.  It has no payload.
+     */
+    public static final byte TYPE_BYE = 10;
+
+    /**
+     * Flag bit, used by every frame type that has a text payload, that
+     * means that the payload is compressed.  A Decoder inflates the payload
+     * and clears this bit before the frame is seen by anyone else.
+     */
+    public static final byte FLAG_DEFLATE = (byte)0x80;
+
+    /**
+     * Size of the frame header, in bytes.
+     */
+    public static final int HEADER_SIZE = 4 + 1 + 1 + 8 + 8;
+
+    /**
+     * Largest payload that will be accepted.  A larger length in a header
+     * means that the stream is corrupt, or that the peer is misbehaving.
+     */
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    /**
+     * The start of every hello line.  The rest of the line lists the
+     * protocols that the sender supports, separated by spaces.
+     */
+    public static final String HELLO_PREFIX = "C2W-HELLO";
+
+    /**
+     * The line that announces support for the framing protocol.
+     */
+    public static final String HELLO_LINE = HELLO_PREFIX + " framed/1";
+
+    /**
+     * The hello of a peer that understands negotiation but only supports
+     * the line protocol.
+     */
+    public static final String LINE_HELLO_LINE = HELLO_PREFIX + " line";
+
+    /**
+     * The token in a hello line that offers resumable sessions.  A hello
+     * that offers them also has the tokens "session=ID", if the sender has
+     * a session that it wants to resume, and "ack=N", the sequence number of
+     * the last frame that it received in that session.
+     */
+    public static final String RESUME_TOKEN = "resume/1";
+
+    /**
+     * The token in a hello line that says that the sender answers
+     * TYPE_REPLAY_REQUEST frames from its message history.
+     */
+    public static final String REPLAY_TOKEN = "replay/1";
+
+    /**
+     * Longest line that is read during negotiation.
+     */
+    private static final int MAX_HELLO_LINE = 4096;
+
+    private C2W_FrameCodec() {
+    }
+
+    /**
+     * Tells whether a line received during negotiation is a hello.
+     */
+    public static boolean isHello(String line) {
+        return line != null && (line.equals(HELLO_PREFIX) || line.startsWith(HELLO_PREFIX + " "));
+    }
+
+    /**
+     * Tells whether a hello line offers the framing protocol.
+     */
+    public static boolean offersFraming(String hello) {
+        return offers(hello, "framed/1");
+    }
+
+    /**
+     * Tells whether a hello line lists a protocol or feature token.
+     */
+    public static boolean offers(String hello, String token) {
+        return isHello(hello) && (" " + hello + " ").contains(" " + token + " ");
+    }
+
+    /**
+     * Returns the value of a "name=value" token in a hello line, or null
+     * if there is no such token.
+     */
+    public static String tokenValue(String hello, String name) {
+        if (!isHello(hello))
+            return null;
+        for (String token : hello.split(" ")) {
+            if (token.length() > name.length() && token.startsWith(name) && token.charAt(name.length()) == '=')
+                return token.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Write the hello line to a stream, and flush it.
+     * @param tokens more tokens for the hello, after the one that offers
+     *    framing, such as C2W_Compression.DEFLATE_TOKEN
+     */
+    public static void sendHello(OutputStream out, String... tokens) throws IOException {
+        StringBuilder hello = new StringBuilder(HELLO_LINE);
+        for (String token : tokens)
+            hello.append(' ').append(token);
+        out.write(hello.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Read one line from a stream, one byte at a time, so that no bytes
+     * after the line feed are consumed.  (A BufferedReader can't be used
+     * here, since it might read ahead into the first frame.)  A trailing
+     * carriage return is removed.
+     * @return the line, or null if the stream ended before any byte was read
+     */
+    public static String readRawLine(InputStream in) throws IOException {
+        byte[] bytes = new byte[128];
+        int count = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (count == 0)
+                    return null;
+                break;
+            }
+            if (b == '\n')
+                break;
+            if (count == bytes.length) {
+                if (count >= MAX_HELLO_LINE)
+                    throw new IOException("Line too long during protocol negotiation");
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            bytes[count++] = (byte)b;
+        }
+        if (count > 0 && bytes[count - 1] == '\r')
+            count--;
+        return new String(bytes, 0, count, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * A frame that has been read by a Decoder or a LineDecoder.  The same
+     * Frame object is returned for every frame that a decoder reads, and its payload is a
+     * view of the Decoder's buffer (or of the inflated data, if the payload
+     * was compressed), so the data is only valid until the next
+     * call to Decoder.next().  The payload is not turned into a String unless
+     * text() is called.
+     */
+    public static final class Frame {
+
+        private byte type;
+        private byte flags;
+        private long sequence;
+        private long timestamp;
+        private ByteBuffer payload;
+
+        public byte type() {
+            return type;
+        }
+
+        public byte flags() {
+            return flags;
+        }
+
+        public long sequence() {
+            return sequence;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns a read-only view of the payload.  Each call returns a new
+         * view, positioned at the start of the payload.
+         */
+        public ByteBuffer payload() {
+            return payload.asReadOnlyBuffer();
+        }
+
+        public int payloadLength() {
+            return payload.remaining();
+        }
+
+        /**
+         * Decode the payload as UTF-8 text.
+         */
+        public String text() {
+            return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+        }
+
+    } // end nested class Frame
+
+
+    /**
+     * Something that reads frames from a channel:  a Decoder, or a
+     * LineDecoder, which turns the lines of the line protocol into frames.
+     */
+    public interface FrameSource {
+
+        /**
+         * Read the next frame.  The frame that is returned is only valid
+         * until the next call of this method.
+         * @return the frame, or null if the stream ends at a frame boundary
+         * @throws EOFException if the stream ends in the middle of a frame
+         * @throws IOException if an I/O error occurs or the data is not a
+         *    legal frame
+         */
+        Frame next() throws IOException;
+
+        /**
+         * Tells whether a whole frame, after the one that was returned last,
+         * is already in the buffer, so that next() will return it without
+         * reading from the channel.
+         */
+        boolean hasFrame();
+
+        /**
+         * Returns the total number of bytes that have been read from the
+         * channel.  Some of them may be in the buffer, not yet decoded.  Any
+         * thread can call this.
+         */
+        long bytesRead();
+
+        /**
+         * Give the buffer back to C2W_BufferPool.  The decoder, and the last
+         * frame that it returned, can't be used after this.
+         */
+        void release();
+
+    } // end interface FrameSource
+
+
+    /**
+     * Reads frames from a channel into a reusable direct buffer, which comes
+     * from C2W_BufferPool.global().  A Decoder is used by just one thread.
+     */
+    public static final class Decoder implements FrameSource {
+
+        private final ReadableByteChannel channel;
+        private final int maxPayload;
+        private ByteBuffer buffer;
+        private final Frame frame = new Frame();
+        private int consumed;  // Bytes of the previous frame's payload in the buffer.
+        private volatile long bytesRead;  // Only the reader changes it; any thread can read it.
+        private C2W_Compression.Decompressor decompressor;
+
+        /**
+         * @param channel the channel from which frames are read; it must be
+         *    in blocking mode
+         * @param maxPayload largest payload size that is accepted
+         */
+        public Decoder(ReadableByteChannel channel, int maxPayload) {
+            this.channel = channel;
+            this.maxPayload = maxPayload;
+            buffer = C2W_BufferPool.global().acquire(64 * 1024);
+            buffer.flip();  // The buffer is kept in "draining" mode between calls.
+        }
+
+        public Decoder(ReadableByteChannel channel) {
+            this(channel, MAX_PAYLOAD);
+        }
+
+        /**
+         * Set the Decompressor for frames with FLAG_DEFLATE.  If there is
+         * none, such frames are an error.
+         */
+        public void setDecompressor(C2W_Compression.Decompressor decompressor) {
+            this.decompressor = decompressor;
+        }
+
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        public void release() {
+            if (buffer != null) {
+                C2W_BufferPool.global().release(buffer);
+                buffer = null;
+                frame.payload = null;
+            }
+        }
+
+        public boolean hasFrame() {
+            int start = buffer.position() + (frame.payload != null ? consumed : 0);
+            int available = buffer.limit() - start;
+            return available >= HEADER_SIZE && available >= HEADER_SIZE + buffer.getInt(start);
+        }
+
+        public Frame next() throws IOException {
+            if (frame.payload != null) {
+                    // Skip the payload of the previous frame.
+                buffer.position(buffer.position() + consumed);
+                frame.payload = null;
+            }
+            if (!fill(HEADER_SIZE))
+                return null;
+            int length = buffer.getInt(buffer.position());
+            if (length < 0 || length > maxPayload)
+                throw new IOException("Illegal frame length " + length);
+            if (!fill(HEADER_SIZE + length))
+                throw new EOFException("Connection closed in the middle of a frame");
+            int start = buffer.position();
+            frame.type = buffer.get(start + 4);
+            frame.flags = buffer.get(start + 5);
+            frame.sequence = buffer.getLong(start + 6);
+            frame.timestamp = buffer.getLong(start + 14);
+            buffer.position(start + HEADER_SIZE);
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            consumed = length;
+            if ((frame.flags & FLAG_DEFLATE) != 0) {
+                if (decompressor == null)
+                    throw new IOException("Compressed frame received, but compression was not negotiated");
+                payload = decompressor.inflate(payload, maxPayload);
+                frame.flags &= ~FLAG_DEFLATE;
+            }
+            frame.payload = payload;
+            return frame;
+        }
+
+        /**
+         * Make sure that at least the specified number of bytes is available
+         * in the buffer, reading from the channel if necessary.  Returns
+         * false if the stream ends before any new byte is read and the buffer
+         * is empty.
+         */
+        private boolean fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed)
+                return true;
+            buffer = makeRoom(buffer, needed);
+            // The buffer is now in "filling" mode.
+            while (buffer.position() < needed) {
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    boolean empty = buffer.position() == 0;
+                    buffer.flip();
+                    if (empty)
+                        return false;
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+                bytesRead += n;
+            }
+            buffer.flip();
+            return true;
+        }
+
+    } // end nested class Decoder
+
+
+    /**
+     * Reads the lines of the line protocol from a channel, and returns each
+     * one as a TYPE_TEXT frame, whose payload is the line without its line
+     * feed (or carriage return and line feed).  The sequence numbers of the
+     * frames count the lines from 1, and their timestamps are the times at
+     * which the lines were read.  Like a Decoder, it reads into a direct
+     * buffer from C2W_BufferPool.global(), and a line is only turned into a
+     * String if Frame.text() is called.  The line protocol has no limit on
+     * the length of a line, but a LineDecoder fails on one that is longer
+     * than the largest payload, since it must hold a whole line in its
+     * buffer.  A LineDecoder is used by just one thread.
+     */
+    public static final class LineDecoder implements FrameSource {
+
+        private final ReadableByteChannel channel;
+        private final int maxLength;
+        private ByteBuffer buffer;
+        private final Frame frame = new Frame();
+        private int consumed;  // Bytes of the previous line, with its terminator.
+        private int scanned;  // Bytes after the position that have no line feed.
+        private long lines;
+        private volatile long bytesRead;
+        private boolean ended;
+
+        /**
+         * @param channel the channel from which lines are read; it must be
+         *    in blocking mode
+         * @param maxLength longest line that is accepted, in bytes
+         */
+        public LineDecoder(ReadableByteChannel channel, int maxLength) {
+            this.channel = channel;
+            this.maxLength = maxLength;
+            buffer = C2W_BufferPool.global().acquire(16 * 1024);
+            buffer.flip();
+            frame.type = TYPE_TEXT;
+        }
+
+        public LineDecoder(ReadableByteChannel channel) {
+            this(channel, MAX_PAYLOAD);
+        }
+
+        public long bytesRead() {
+            return bytesRead;
+        }
+
+        public void release() {
+            if (buffer != null) {
+                C2W_BufferPool.global().release(buffer);
+                buffer = null;
+                frame.payload = null;
+            }
+        }
+
+        public boolean hasFrame() {
+            int start = buffer.position() + (frame.payload != null ? consumed : 0);
+            for (int i = start; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n')
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Read the next line.  If the stream ends after a line that has no
+         * line feed, that line is returned, as BufferedReader.readLine()
+         * would do.
+         * @return the line, as a frame, or null at the end of the stream
+         * @throws IOException if an I/O error occurs or the line is too long
+         */
+        public Frame next() throws IOException {
+            if (frame.payload != null) {
+                buffer.position(buffer.position() + consumed);
+                frame.payload = null;
+                scanned = 0;
+            }
+            int end;  // Index of the line feed, or of the end of the last line.
+            while (true) {
+                end = -1;
+                for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end >= 0) {
+                    consumed = end + 1 - buffer.position();
+                    break;
+                }
+                scanned = buffer.remaining();
+                if (scanned > maxLength)
+                    throw new IOException("Line of more than " + maxLength + " bytes received");
+                if (ended || !fill()) {
+                    if (!buffer.hasRemaining())
+                        return null;
+                    end = buffer.limit();  // The last line has no line feed.
+                    consumed = buffer.remaining();
+                    break;
+                }
+            }
+            int start = buffer.position();
+            if (end > start && buffer.get(end - 1) == '\r')
+                end--;
+            ByteBuffer payload = buffer.slice();
+            payload.limit(end - start);
+            frame.sequence = ++lines;
+            frame.timestamp = System.currentTimeMillis();
+            frame.payload = payload;
+            return frame;
+        }
+
+        /**
+         * Read more data into the buffer, after the bytes that are already
+         * there.  Returns false at the end of the stream.
+         */
+        private boolean fill() throws IOException {
+            buffer = makeRoom(buffer, Math.max(buffer.capacity(), buffer.remaining() + 1));
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n < 0) {
+                ended = true;
+                return false;
+            }
+            bytesRead += n;
+            return true;
+        }
+
+    } // end nested class LineDecoder
+
+
+    /**
+     * Put the unread data of a buffer that is in "draining" mode at the start
+     * of a buffer with room for at least the specified number of bytes,
+     * which is the same buffer if it is large enough, or a bigger one from
+     * C2W_BufferPool.global().  The buffer that is returned is in "filling"
+     * mode.
+     */
+    private static ByteBuffer makeRoom(ByteBuffer buffer, int needed) {
+        if (buffer.capacity() >= needed) {
+            buffer.compact();
+            return buffer;
+        }
+        ByteBuffer bigger = C2W_BufferPool.global().acquire(Math.max(needed, buffer.capacity() * 2));
+        bigger.put(buffer);
+        C2W_BufferPool.global().release(buffer);
+        return bigger;
+    }
+
+    /**
+     * Returns the number of bytes that putUtf8() encodes text into.
+     */
+    public static long utf8Length(CharSequence text) {
+        int length = text.length();
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                bytes += 1;
+            else if (c < 0x800)
+                bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+                bytes += 1;  // Encoded as '?'.
+            else
+                bytes += 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Tells whether a message is short enough for the other side to accept
+     * it, as the payload of a TYPE_TEXT frame or as a line:  no more than
+     * MAX_PAYLOAD bytes of UTF-8.  Only long messages are measured.
+     */
+    public static boolean fitsInMessage(CharSequence text) {
+        return text.length() <= MAX_PAYLOAD / 3 || utf8Length(text) <= MAX_PAYLOAD;
+    }
+
+    /**
+     * Encode text as UTF-8, directly into a buffer, without an intermediate
+     * byte array.  An unpaired surrogate is encoded as '?'.  The buffer must
+     * have room for three bytes per char.
+     */
+    public static void putUtf8(ByteBuffer out, CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte)c);
+            }
+            else if (c < 0x800) {
+                out.put((byte)(0xC0 | (c >> 6)));
+                out.put((byte)(0x80 | (c & 0x3F)));
+            }
+            else if (Character.isSurrogate(c)) {
+                char low = (i + 1 < length) ? text.charAt(i + 1) : 0;
+                if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                    int cp = Character.toCodePoint(c, low);
+                    i++;
+                    out.put((byte)(0xF0 | (cp >> 18)));
+                    out.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                    out.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                    out.put((byte)(0x80 | (cp & 0x3F)));
+                }
+                else {
+                    out.put((byte)'?');
+                }
+            }
+            else {
+                out.put((byte)(0xE0 | (c >> 12)));
+                out.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+
+    /**
+     * Encodes frames into a reusable direct buffer, from which they are
+     * written to a channel.  Several frames can be appended before they are
+     * written, so that they go out in a single write.  It can also encode
+     * the lines of the line protocol.  The buffer comes from
+     * C2W_BufferPool.global(), and release() gives it back.  An Encoder is
+     * used by just one thread at a time.
+     */
+    public static final class Encoder {
+
+        private ByteBuffer buffer = C2W_BufferPool.global().acquire(64 * 1024);
+        private C2W_Compression.Compressor compressor;
+        private long bytesWritten;
+
+        /**
+         * Set the Compressor for the payloads of TYPE_TEXT and TYPE_HISTORY
+         * frames.  If there is none, nothing is compressed.
+         */
+        public void setCompressor(C2W_Compression.Compressor compressor) {
+            this.compressor = compressor;
+        }
+
+        /**
+         * Append a TYPE_TEXT frame containing a message encoded as UTF-8.
+         * The characters are encoded directly into the buffer, without an
+         * intermediate byte array.  An unpaired surrogate is encoded as '?'.
+         * @throws IllegalArgumentException if the encoded text is longer than
+         *    MAX_PAYLOAD, so that the other side would reject the frame; the
+         *    frame is not appended.  (See fitsInMessage().)
+         */
+        public void appendText(long sequence, long timestamp, CharSequence text) {
+            ensureCapacity(HEADER_SIZE + 3 * text.length());  // At most 3 bytes per char.
+            int start = buffer.position();
+            putHeader(0, TYPE_TEXT, (byte)0, sequence, timestamp);
+            putUtf8(buffer, text);
+            int length = buffer.position() - start - HEADER_SIZE;
+            if (length > MAX_PAYLOAD) {
+                buffer.position(start);
+                throw new IllegalArgumentException("A message of " + length + " bytes is too long for a frame.");
+            }
+            buffer.putInt(start, length);
+            if (compressor != null)
+                compressPayload(start);
+        }
+
+        /**
+         * Append a message in the line protocol:  the text, encoded as
+         * UTF-8, followed by a line feed, with no header.
+         */
+        public void appendLine(CharSequence text) {
+            ensureCapacity(3 * text.length() + 1);
+            putUtf8(buffer, text);
+            buffer.put((byte)'\n');
+        }
+
+        /**
+         * Append a frame with an arbitrary type and payload.  The payload
+         * buffer is not modified.
+         */
+        public void append(byte type, byte flags, long sequence, long timestamp, ByteBuffer payload) {
+            int length = payload == null ? 0 : payload.remaining();
+            ensureCapacity(HEADER_SIZE + length);
+            int start = buffer.position();
+            putHeader(length, type, flags, sequence, timestamp);
+            if (payload != null)
+                buffer.put(payload.duplicate());
+            if (compressor != null && (type == TYPE_TEXT || type == TYPE_HISTORY))
+                compressPayload(start);
+        }
+
+        /**
+         * Append the header of a frame, and the first part of its payload.
+         * The caller must write the rest of the payload, which is
+         * payloadLength minus the size of the first part, to the channel
+         * itself, immediately after calling writeTo().  This lets a large
+         * payload, such as a chunk of a file, be sent without copying it
+         * into the buffer.
+         */
+        public void appendPartial(byte type, byte flags, long sequence, long timestamp,
+                                  int payloadLength, ByteBuffer firstPart) {
+            ensureCapacity(HEADER_SIZE + firstPart.remaining());
+            putHeader(payloadLength, type, flags, sequence, timestamp);
+            buffer.put(firstPart.duplicate());
+        }
+
+        /**
+         * Returns the number of encoded bytes that have not yet been written.
+         */
+        public int pending() {
+            return buffer.position();
+        }
+
+        /**
+         * Returns the total number of bytes that writeTo() has written.
+         */
+        public long bytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * Give the buffer back to C2W_BufferPool.  The Encoder can't be used
+         * after this.
+         */
+        public void release() {
+            if (buffer != null) {
+                C2W_BufferPool.global().release(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * Write all the frames that have been appended, and empty the buffer.
+         */
+        public void writeTo(WritableByteChannel channel) throws IOException {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining())
+                    bytesWritten += channel.write(buffer);
+            }
+            finally {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Replace the payload of the frame that starts at the specified
+         * position, which is the last frame in the buffer, with its
+         * compressed form, if it is long enough to be compressed.
+         */
+        private void compressPayload(int start) {
+            int length = buffer.getInt(start);
+            if (!compressor.shouldCompress(length))
+                return;
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(start + HEADER_SIZE);
+            payload.limit(start + HEADER_SIZE + length);
+            ByteBuffer compressed = compressor.compress(payload);
+            buffer.position(start + HEADER_SIZE);
+            ensureCapacity(compressed.remaining());  // Deflate can make some data larger.
+            buffer.put(compressed);
+            buffer.putInt(start, compressed.limit());
+            buffer.put(start + 5, (byte)(buffer.get(start + 5) | FLAG_DEFLATE));
+        }
+
+        private void putHeader(int length, byte type, byte flags, long sequence, long timestamp) {
+            buffer.putInt(length);
+            buffer.put(type);
+            buffer.put(flags);
+            buffer.putLong(sequence);
+            buffer.putLong(timestamp);
+        }
+
+        private void ensureCapacity(int needed) {
+            if (buffer.remaining() >= needed)
+                return;
+            int size = buffer.capacity();
+            while (size - buffer.position() < needed)
+                size *= 2;
+            ByteBuffer bigger = C2W_BufferPool.global().acquire(size);
+            buffer.flip();
+            bigger.put(buffer);
+            C2W_BufferPool.global().release(buffer);
+            buffer = bigger;
+        }
+
+    } // end nested class Encoder
+
+}
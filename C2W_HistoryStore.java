@@ -0,0 +1,647 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A local store of all the chat messages that have been sent and received,
+ * across sessions, which can be searched and replayed without reading it
+ * onto the heap.  Messages are numbered with sequence numbers 0, 1, 2, ...
+ * and are kept in three kinds of file in the history directory:
+ * <ul>
+ * <li>"segment-NNNNNN.dat" -- the messages themselves, one record after
+ *     another.  A segment is memory-mapped, so appending a message is a
+ *     memory copy, and reading one is done by the operating system's page
+ *     cache.  When a segment is full, a new one is started.
+ * <li>"index.dat" -- a memory-mapped array with one fixed-size entry per
+ *     message, giving its time and where its record is.  The entry for a
+ *     sequence number is found by arithmetic, and the entry for a time by
+ *     binary search, since times never decrease.
+ * <li>"terms.dat" -- the inverted index for keyword search, saved when the
+ *     store is closed.  While the store is open, it is kept in memory as a
+ *     map from each word to the list of sequence numbers of the messages
+ *     that contain it.  A list is stored as variable-length differences,
+ *     so most entries take one or two bytes.  Messages that were added
+ *     after the file was saved (for example, if the program crashed) are
+ *     indexed again when the store is opened.
+ * </ul>
+ *
+ * <p>All public methods are synchronized, so a store can be used by the
+ * JavaFX thread and by connection threads at the same time.  Only one
+ * program at a time can open the same directory.  A thread that must not
+ * wait for the store, such as the relay server's event loop, can use
+ * appendLater(), which hands the message to a writer thread of the store's
+ * own, the way C2W_TranscriptJournal writes its lines.
+ */
+public class C2W_HistoryStore {
+
+    /**
+     * Flag stored with a message that was sent by this user.  Messages
+     * without it were received.
+     */
+    public static final byte FLAG_SENT = 1;
+
+    /**
+     * A message read from the store.
+     */
+    public static final class Message {
+
+        public final long sequence;
+        public final long time;
+        public final byte flags;
+        public final String text;
+
+        Message(long sequence, long time, byte flags, String text) {
+            this.sequence = sequence;
+            this.time = time;
+            this.flags = flags;
+            this.text = text;
+        }
+
+    } // end nested class Message
+
+
+    /**
+     * Receives messages from replay().  The payload is a read-only view of
+     * the UTF-8 text of the message in the memory-mapped segment; it stays
+     * valid after the call, even after the store is closed, so it can be
+     * queued for sending without being copied.
+     */
+    public interface Visitor {
+        /**
+         * @return false to stop the replay
+         */
+        boolean visit(long sequence, long time, byte flags, ByteBuffer payload);
+    }
+
+
+    /**
+     * The list of sequence numbers of the messages that contain one word,
+     * in increasing order, stored as the differences between consecutive
+     * numbers.  Each difference takes 7 bits per byte, with the high bit
+     * set on every byte but the last.
+     */
+    private static final class Postings {
+
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        long last = -1;
+
+        void add(long sequence) {
+            if (sequence <= last)
+                return;  // The word occurs more than once in the message.
+            long delta = (last < 0) ? sequence : sequence - last;
+            if (data.length - length < 10)
+                data = Arrays.copyOf(data, data.length * 2);
+            while (delta >= 0x80) {
+                data[length++] = (byte)(delta | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte)delta;
+            last = sequence;
+            count++;
+        }
+
+        long[] decode() {
+            long[] result = new long[count];
+            long value = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long)(b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value = (i == 0) ? delta : value + delta;
+                result[i] = value;
+            }
+            return result;
+        }
+
+    } // end nested class Postings
+
+
+    private static final int INDEX_MAGIC = 0x43325749;  // "C2WI"
+    private static final int TERMS_MAGIC = 0x43325754;  // "C2WT"
+    private static final int INDEX_HEADER = 16;  // magic, unused int, long count
+    private static final int INDEX_ENTRY = 16;   // long time, int segment, int offset
+    private static final int RECORD_HEADER = 4 + 8 + 8 + 1;  // length, sequence, time, flags
+
+    /**
+     * The largest number of messages that the store can hold.  The index is
+     * mapped as a single buffer, so its entries must all be at positions
+     * that fit in an int.
+     */
+    private static final long MAX_MESSAGES = (Integer.MAX_VALUE - INDEX_HEADER) / INDEX_ENTRY;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final FileChannel indexChannel;
+    private final FileLock lock;
+    private MappedByteBuffer index;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int writePosition;  // In the last segment.
+    private long count;
+    private long lastTime;
+    private final Map<String,Postings> terms = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Messages given to appendLater(), waiting for the writer thread, which
+     * is started by the first call of appendLater().
+     */
+    private final C2W_OutboundQueue<Pending> pending =
+            new C2W_OutboundQueue<>(Pending::size, this::appendBatch,
+                                    error -> System.err.println("Message history writer failed: " + error),
+                                    Long.getLong("c2w.history.highWaterBytes", 32L * 1024 * 1024),
+                                    256 * 1024);
+    private final AtomicBoolean writerStarted = new AtomicBoolean();
+
+    /**
+     * A message given to appendLater().  Its time is taken when it is
+     * queued, not when it is written.
+     */
+    private static final class Pending {
+        final byte flags;
+        final String text;
+        final long time;
+
+        Pending(byte flags, String text) {
+            this.flags = flags;
+            this.text = text;
+            this.time = System.currentTimeMillis();
+        }
+
+        int size() {
+            return text.length() + 32;
+        }
+    }
+
+    /**
+     * Open the store in a directory, creating it if necessary.
+     * @param directory the history directory
+     * @param segmentBytes size of a new segment file
+     * @throws IOException if the files cannot be opened, or if another
+     *    program is using the directory
+     */
+    public C2W_HistoryStore(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        indexChannel = FileChannel.open(directory.resolve("index.dat"), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean ok = false;
+        try {
+            FileLock held;
+            try {
+                held = indexChannel.tryLock();
+            }
+            catch (OverlappingFileLockException e) {
+                held = null;  // This program already has the store open.
+            }
+            lock = held;
+            if (lock == null)
+                throw new IOException("The message history in " + directory
+                                          + " is in use by another program.");
+            long size = indexChannel.size();
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                     Math.max(size, INDEX_HEADER + 65536L * INDEX_ENTRY));
+            if (size < INDEX_HEADER) {
+                index.putInt(0, INDEX_MAGIC);
+                index.putLong(8, 0);
+            }
+            else if (index.getInt(0) != INDEX_MAGIC) {
+                throw new IOException(directory.resolve("index.dat") + " is not a history index.");
+            }
+            count = index.getLong(8);
+            if (count < 0 || count > MAX_MESSAGES)
+                throw new IOException(directory.resolve("index.dat") + " is damaged:  it says it holds "
+                                          + count + " messages.");
+            openSegments();
+            loadTerms();
+            ok = true;
+        }
+        finally {
+            if (!ok)
+                indexChannel.close();
+        }
+    }
+
+    /**
+     * Open the store in the directory given by the system property
+     * "c2w.history.dir" (default "~/.c2w_chat/history"), with segments of
+     * the size given by "c2w.history.segmentBytes" (default 64 MB).
+     */
+    public static C2W_HistoryStore openFromSystemProperties() throws IOException {
+        String dir = System.getProperty("c2w.history.dir");
+        Path path = (dir != null) ? Paths.get(dir)
+                                  : Paths.get(System.getProperty("user.home"), ".c2w_chat", "history");
+        return new C2W_HistoryStore(path, Integer.getInteger("c2w.history.segmentBytes", 64 * 1024 * 1024));
+    }
+
+    /**
+     * Returns the number of messages in the store, which is also the
+     * sequence number that the next message will get.
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Add a message to the store.
+     * @param flags FLAG_SENT, or 0 for a message that was received
+     * @return the sequence number of the message
+     */
+    public long append(byte flags, String text) throws IOException {
+        return append(flags, text, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue a message to be added to the store by the store's writer thread.
+     * This never blocks, so it can be called on a thread that must not wait
+     * for the disk or for a search that is holding the store's lock.
+     * @param flags FLAG_SENT, or 0 for a message that was received
+     * @return true if the message was queued; false if the store is closing,
+     *    or if too many messages are already waiting to be written (the
+     *    limit is set by the system property "c2w.history.highWaterBytes",
+     *    default 32 MB)
+     */
+    public boolean appendLater(byte flags, String text) {
+        if (!writerStarted.get() && writerStarted.compareAndSet(false, true)) {
+            Thread writer = new Thread(pending, "C2W-history-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return pending.offer(new Pending(flags, text));
+    }
+
+    /**
+     * The Sink of the writer's queue.
+     */
+    private void appendBatch(List<Pending> batch) throws IOException {
+        for (Pending message : batch)
+            append(message.flags, message.text, message.time);
+    }
+
+    private synchronized long append(byte flags, String text, long now) throws IOException {
+        checkOpen();
+        if (count >= MAX_MESSAGES)
+            throw new IOException("The message history is full:  it cannot hold more than "
+                                      + MAX_MESSAGES + " messages.");
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_HEADER + bytes.length;
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+        if (segment.capacity() - writePosition < recordSize) {
+            mapSegment(segments.size(), Math.max(segmentBytes, recordSize), true);
+            segment = segments.get(segments.size() - 1);
+            writePosition = 0;
+        }
+        long sequence = count;
+        long time = Math.max(now, lastTime);  // Keep times in order.
+        segment.putInt(writePosition, bytes.length);
+        segment.putLong(writePosition + 4, sequence);
+        segment.putLong(writePosition + 12, time);
+        segment.put(writePosition + 20, flags);
+        ByteBuffer target = segment.duplicate();
+        target.position(writePosition + RECORD_HEADER);
+        target.put(bytes);
+        long entry = INDEX_HEADER + (sequence + 1) * INDEX_ENTRY;
+        if (entry > index.capacity())
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                     Math.min(Math.max(entry, 2L * index.capacity()),
+                                              INDEX_HEADER + MAX_MESSAGES * INDEX_ENTRY));
+        int at = indexPosition(sequence);
+        index.putLong(at, time);
+        index.putInt(at + 8, segments.size() - 1);
+        index.putInt(at + 12, writePosition);
+        writePosition += recordSize;
+        lastTime = time;
+        count = sequence + 1;
+        index.putLong(8, count);  // Written last, so a crash never leaves a partial entry counted.
+        addTerms(sequence, text);
+        return sequence;
+    }
+
+    /**
+     * Read one message.
+     * @return the message, or null if there is no message with that number
+     */
+    public synchronized Message get(long sequence) {
+        if (closed || sequence < 0 || sequence >= count)
+            return null;
+        ByteBuffer payload = payloadOf(sequence);
+        int at = indexPosition(sequence);
+        MappedByteBuffer segment = segments.get(index.getInt(at + 8));
+        return new Message(sequence, index.getLong(at), segment.get(index.getInt(at + 12) + 20),
+                           StandardCharsets.UTF_8.decode(payload).toString());
+    }
+
+    /**
+     * Read up to maxCount messages, starting with the one that has the
+     * specified sequence number.
+     */
+    public synchronized List<Message> read(long fromSequence, int maxCount) {
+        List<Message> result = new ArrayList<>();
+        for (long seq = Math.max(0, fromSequence); seq < count && result.size() < maxCount; seq++)
+            result.add(get(seq));
+        return result;
+    }
+
+    /**
+     * Find the first message that was added at or after a given time, by
+     * binary search of the index.
+     * @param time a time in milliseconds since the epoch
+     * @return the sequence number of the message, or size() if there is none
+     */
+    public synchronized long sequenceAt(long time) {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (index.getLong(indexPosition(mid)) < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Pass up to maxCount messages, starting with the one that has the
+     * specified sequence number, to a visitor.  The text of the messages
+     * is not decoded or copied.  The visitor is called while the store is
+     * locked, so it should not take long.
+     * @return the number of messages that were visited and accepted
+     */
+    public synchronized int replay(long fromSequence, int maxCount, Visitor visitor) {
+        int visited = 0;
+        for (long seq = Math.max(0, fromSequence); !closed && seq < count && visited < maxCount; seq++) {
+            int at = indexPosition(seq);
+            byte flags = segments.get(index.getInt(at + 8)).get(index.getInt(at + 12) + 20);
+            if (!visitor.visit(seq, index.getLong(at), flags, payloadOf(seq)))
+                break;
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Find the most recent messages that contain all of the words in a
+     * query.  Case is ignored, and so is everything in the query that is
+     * not a letter or digit.  Words must match completely.
+     * @param query one or more words
+     * @param limit largest number of messages that are returned
+     * @return the messages, most recent first
+     */
+    public synchronized List<Message> search(String query, int limit) {
+        List<Message> result = new ArrayList<>();
+        Set<String> words = words(query);
+        if (closed || words.isEmpty())
+            return result;
+        List<Postings> lists = new ArrayList<>();
+        for (String word : words) {
+            Postings postings = terms.get(word);
+            if (postings == null)
+                return result;
+            lists.add(postings);
+        }
+        lists.sort( (a, b) -> Integer.compare(a.count, b.count) );
+        long[] candidates = lists.get(0).decode();  // The shortest list.
+        long[][] others = new long[lists.size() - 1][];
+        for (int i = 1; i < lists.size(); i++)
+            others[i - 1] = lists.get(i).decode();
+        for (int i = candidates.length - 1; i >= 0 && result.size() < limit; i--) {
+            boolean inAll = true;
+            for (long[] other : others) {
+                if (Arrays.binarySearch(other, candidates[i]) < 0) {
+                    inAll = false;
+                    break;
+                }
+            }
+            if (inAll)
+                result.add(get(candidates[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Write the messages queued by appendLater(), waiting for at most two
+     * seconds, then save the search index, force the files to the disk, and
+     * close them.
+     */
+    public void close() {
+        pending.close();
+        if (writerStarted.get()) {
+            try {
+                pending.awaitStopped(2, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeFiles();
+    }
+
+    private synchronized void closeFiles() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            saveTerms();
+        }
+        catch (IOException e) {
+            System.err.println("Could not save the history search index: " + e);
+        }
+        index.force();
+        segments.get(segments.size() - 1).force();
+        try {
+            indexChannel.close();  // Also releases the lock.
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Returns the position in the index of the entry for a message.  The
+     * sequence number must be less than MAX_MESSAGES, which append() makes
+     * sure of.
+     */
+    private static int indexPosition(long sequence) {
+        return INDEX_HEADER + (int)(sequence * INDEX_ENTRY);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("The history store is closed.");
+    }
+
+    /**
+     * Returns a read-only view of the text of a message in its segment.
+     */
+    private ByteBuffer payloadOf(long sequence) {
+        int at = indexPosition(sequence);
+        MappedByteBuffer segment = segments.get(index.getInt(at + 8));
+        int offset = index.getInt(at + 12);
+        ByteBuffer payload = segment.asReadOnlyBuffer();
+        payload.position(offset + RECORD_HEADER);
+        payload.limit(offset + RECORD_HEADER + segment.getInt(offset));
+        return payload.slice();
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("segment-%06d.dat", number));
+    }
+
+    /**
+     * Map a segment file and add it to the list of segments.  The segment
+     * being written is mapped at its full size; the rest of the file is not
+     * allocated on the disk by most file systems until it is written.
+     */
+    private void mapSegment(int number, int size, boolean writable) throws IOException {
+        if (writable && !segments.isEmpty())
+            segments.get(segments.size() - 1).force();
+        StandardOpenOption[] open = writable
+                ? new StandardOpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                             StandardOpenOption.WRITE }
+                : new StandardOpenOption[] { StandardOpenOption.READ };
+        try (FileChannel channel = FileChannel.open(segmentPath(number), open)) {
+            long mapSize = writable ? Math.max(size, channel.size()) : channel.size();
+            segments.add(channel.map(writable ? FileChannel.MapMode.READ_WRITE
+                                              : FileChannel.MapMode.READ_ONLY, 0, mapSize));
+        }  // The mapping stays valid after the channel is closed.
+    }
+
+    /**
+     * Map the existing segments, as far as the index says they are used, and
+     * find the place where the next message will be written.  (Anything
+     * after it was written by a program that crashed before it updated the
+     * index, and it will be overwritten.)
+     */
+    private void openSegments() throws IOException {
+        if (count == 0) {
+            mapSegment(0, segmentBytes, true);
+            return;
+        }
+        int at = indexPosition(count - 1);
+        int lastSegment = index.getInt(at + 8);
+        for (int number = 0; number < lastSegment; number++)
+            mapSegment(number, 0, false);
+        mapSegment(lastSegment, segmentBytes, true);
+        int offset = index.getInt(at + 12);
+        writePosition = offset + RECORD_HEADER + segments.get(lastSegment).getInt(offset);
+        lastTime = index.getLong(at);
+    }
+
+    /**
+     * Returns the distinct words of a text, in lower case.
+     */
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i)))
+                i++;
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+                i++;
+            if (i - start >= MIN_TERM_LENGTH)
+                words.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase());
+        }
+        return words;
+    }
+
+    private void addTerms(long sequence, String text) {
+        for (String word : words(text))
+            terms.computeIfAbsent(word, w -> new Postings()).add(sequence);
+    }
+
+    /**
+     * Load the saved search index, and index the messages that were added
+     * after it was saved.  If it is missing or damaged, every message is
+     * indexed again.
+     */
+    private void loadTerms() {
+        long indexed = 0;
+        Path file = directory.resolve("terms.dat");
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != TERMS_MAGIC)
+                    throw new IOException("Not a search index");
+                long saved = in.readLong();
+                if (saved > count)
+                    throw new IOException("The search index is newer than the history");
+                int termCount = in.readInt();
+                for (int i = 0; i < termCount; i++) {
+                    String word = in.readUTF();
+                    Postings postings = new Postings();
+                    postings.count = in.readInt();
+                    postings.last = in.readLong();
+                    postings.length = in.readInt();
+                    postings.data = new byte[Math.max(4, postings.length)];
+                    in.readFully(postings.data, 0, postings.length);
+                    terms.put(word, postings);
+                }
+                indexed = saved;
+            }
+            catch (IOException | RuntimeException e) {
+                terms.clear();
+                indexed = 0;
+            }
+        }
+        for (long seq = indexed; seq < count; seq++)
+            addTerms(seq, StandardCharsets.UTF_8.decode(payloadOf(seq)).toString());
+    }
+
+    /**
+     * Write the search index to a temporary file, and then replace the old
+     * one with it, so that a crash never leaves a half-written index.
+     */
+    private void saveTerms() throws IOException {
+        Path file = directory.resolve("terms.dat");
+        Path temp = directory.resolve("terms.dat.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(TERMS_MAGIC);
+            out.writeLong(count);
+            out.writeInt(terms.size());
+            for (Map.Entry<String,Postings> entry : terms.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.count);
+                out.writeLong(postings.last);
+                out.writeInt(postings.length);
+                out.write(postings.data, 0, postings.length);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
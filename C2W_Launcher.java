@@ -0,0 +1,529 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * The entry point of the program, which can open the network side before
+ * the JavaFX window exists, or without any window at all.  Most of the time
+ * that it takes to start a chat window is spent starting the JavaFX
+ * toolkit; for scripted deployments that start many instances as relays
+ * or test peers, the window is not needed, and the listener should be open
+ * as soon as possible.  This class does not use JavaFX, so JavaFX classes
+ * are not even loaded unless a window is shown.
+ * <pre>
+ *     java C2W_Launcher [options]
+ *
+ *     --listen=PORT        listen for one connection on PORT (0 means any free port)
+ *     --connect=HOST:PORT  connect to another GUIChat on HOST
+ *     --relay=PORT         run a relay (see C2W_RelayServer); implies --headless
+ *     --headless           no window:  received messages are printed, and
+ *                          lines typed on standard input are sent
+ *     --quiet              with --headless, do not print received messages
+ *     --threads=MODE       "platform" or "virtual"; see C2W_ConnectionExecutor
+ *     --train              run a short, fixed workload over the loopback
+ *                          interface, and exit
+ *     --checkpoint         warm up with the --train workload, then take a
+ *                          CRaC checkpoint; after a restore, start as usual
+ * </pre>
+ * With --listen or --connect and a window, the connection is opened before
+ * the JavaFX toolkit is started, and what happens on it is saved and shown
+ * as soon as the window exists.  Without either option, the window starts
+ * as usual.  C2W_Chat_App.main() also comes here.
+ *
+ * <p>The time from startup to the first connection that is accepted (or,
+ * for --connect, established) is recorded by C2W_Metrics, and is printed in
+ * headless mode, so that startup time can be tracked from run to run.
+ *
+ * <p>Class-data sharing can cut the time to load and link the program's
+ * classes.  An archive is made by running the --train workload once, and
+ * used by later runs:
+ * <pre>
+ *     java -XX:ArchiveClassesAtExit=guichat.jsa C2W_Launcher --train
+ *     java -XX:SharedArchiveFile=guichat.jsa C2W_Launcher --headless --listen=1501
+ * </pre>
+ * (Add the same class path, and the JavaFX module options for a window,
+ * to every command.  The class path must name jar files, not directories,
+ * or the JVM will not use the archive.)  The workload is always the same, so the archive is
+ * reproducible for a given JDK and class path.  With a JDK that supports
+ * CRaC, a warmed-up process can be saved and restored:
+ * <pre>
+ *     java -XX:CRaCCheckpointTo=guichat.crac C2W_Launcher --checkpoint --headless --listen=1501
+ *     java -XX:CRaCRestoreFrom=guichat.crac
+ * </pre>
+ * No socket or file is open when the checkpoint is taken, since CRaC
+ * requires that; the listener is opened after the restore, and the time to
+ * the first accept is measured from the restore.  CRaC is used by
+ * reflection, so the program still compiles and runs on a JDK without it;
+ * there, --checkpoint only warms up.
+ */
+public class C2W_Launcher {
+
+    /**
+     * The number of messages that each side sends in the --train workload.
+     */
+    private static final int TRAINING_MESSAGES = 200;
+
+
+    /**
+     * A connection that was opened before the window existed, waiting for
+     * C2W_Chat_App to take it.
+     */
+    static final class EarlyConnection {
+
+        final C2W_ConnectionExecutor executor;
+        final C2W_ConnectionHandler.Options options;
+        final DeferredListener listener = new DeferredListener();
+        final String description;  // What the window shows first, such as "LISTENING ON PORT 1501".
+        C2W_ConnectionHandler handler;
+
+        EarlyConnection(C2W_ConnectionExecutor executor, C2W_ConnectionHandler.Options options,
+                        String description) {
+            this.executor = executor;
+            this.options = options;
+            this.description = description;
+        }
+
+    } // end nested class EarlyConnection
+
+
+    /**
+     * A Listener that saves the events of a connection until the real
+     * listener is attached, and then passes them on, in order, followed by
+     * all later events.  Frames are not saved, since they are only valid
+     * during the call; the default frameReceived() turns text and history
+     * frames into calls of messageReceived() and historyReceived(), which
+     * are saved.
+     */
+    static final class DeferredListener implements C2W_ConnectionHandler.Listener {
+
+        private final List<Consumer<C2W_ConnectionHandler.Listener>> saved = new ArrayList<>();
+        private volatile C2W_ConnectionHandler.Listener target;
+
+        /**
+         * Pass the saved events to a listener, and send all later events to
+         * it directly.
+         */
+        synchronized void attach(C2W_ConnectionHandler.Listener listener) {
+            for (Consumer<C2W_ConnectionHandler.Listener> event : saved)
+                event.accept(listener);
+            saved.clear();
+            target = listener;
+        }
+
+        private void deliver(Consumer<C2W_ConnectionHandler.Listener> event) {
+            C2W_ConnectionHandler.Listener listener = target;
+            if (listener == null) {
+                synchronized (this) {
+                    listener = target;
+                    if (listener == null) {
+                        saved.add(event);
+                        return;
+                    }
+                }
+            }
+            event.accept(listener);
+        }
+
+        public void connectionStateChanged(C2W_ConnectionHandler handler,
+                                           C2W_ConnectionHandler.ConnectionState oldState,
+                                           C2W_ConnectionHandler.ConnectionState newState) {
+            deliver(l -> l.connectionStateChanged(handler, oldState, newState));
+        }
+
+        public void listening(C2W_ConnectionHandler handler, int localPort) {
+            deliver(l -> l.listening(handler, localPort));
+        }
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+            deliver(l -> l.connectionOpened(handler));
+        }
+
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            deliver(l -> l.messageReceived(handler, message));
+        }
+
+        public void historyReceived(C2W_ConnectionHandler handler, long sequence,
+                                    long time, byte flags, String text) {
+            deliver(l -> l.historyReceived(handler, sequence, time, flags, text));
+        }
+
+        public void fileOffered(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+            deliver(l -> l.fileOffered(handler, transfer));
+        }
+
+        public void fileTransferStarted(C2W_ConnectionHandler handler, C2W_FileTransfer transfer) {
+            deliver(l -> l.fileTransferStarted(handler, transfer));
+        }
+
+        public void fileTransferEnded(C2W_ConnectionHandler handler, C2W_FileTransfer transfer,
+                                      Exception error) {
+            deliver(l -> l.fileTransferEnded(handler, transfer, error));
+        }
+
+        public void connectionLost(C2W_ConnectionHandler handler, Exception error) {
+            deliver(l -> l.connectionLost(handler, error));
+        }
+
+        public void connectionResumed(C2W_ConnectionHandler handler, int resent, boolean complete) {
+            deliver(l -> l.connectionResumed(handler, resent, complete));
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+            deliver(l -> l.sendFailed(handler, error));
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+            deliver(l -> l.connectionClosedFromOtherSide(handler));
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+            deliver(l -> l.connectionError(handler, error));
+        }
+
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+            deliver(l -> l.connectionClosed(handler));
+        }
+
+    } // end nested class DeferredListener
+
+
+    /**
+     * The listener of a headless connection, which prints what happens.
+     */
+    private static final class ConsoleListener implements C2W_ConnectionHandler.Listener {
+
+        private final boolean quiet;
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean failed;
+
+        ConsoleListener(boolean quiet) {
+            this.quiet = quiet;
+        }
+
+        public void listening(C2W_ConnectionHandler handler, int localPort) {
+            System.out.printf("LISTENING ON PORT %d, %.1f MS AFTER START%n", localPort,
+                              C2W_Metrics.millisSinceStart());
+        }
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+            String tls = handler.getTlsDescription();
+            String protocol = (handler.isCompressed() ? " (FRAMED PROTOCOL, DEFLATE COMPRESSION)"
+                                : handler.isFramed() ? " (FRAMED PROTOCOL)" : "")
+                              + (tls == null ? "" : " (TLS: " + tls + ")");
+            System.out.printf("CONNECTION ESTABLISHED%s; FIRST ACCEPT %.1f MS AFTER START%n", protocol,
+                              C2W_Metrics.global().getTimeToFirstAcceptMillis());
+            opened.countDown();
+        }
+
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            if (!quiet)
+                System.out.println("RECEIVE:  " + message);
+        }
+
+        public void connectionLost(C2W_ConnectionHandler handler, Exception error) {
+            System.out.println("CONNECTION LOST (" + error.getMessage() + "); TRYING TO RESUME...");
+        }
+
+        public void connectionResumed(C2W_ConnectionHandler handler, int resent, boolean complete) {
+            System.out.println(complete ? "CONNECTION RESUMED; " + resent + " MESSAGES RESENT"
+                                        : "CONNECTION RESUMED, BUT SOME MESSAGES MAY HAVE BEEN LOST");
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+            System.out.println("ERROR OCCURRED WHILE TRYING TO SEND DATA:  " + error.getMessage());
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+            System.out.println("CONNECTION CLOSED FROM OTHER SIDE");
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+            failed = true;
+            System.out.println("ERROR:  " + error);
+        }
+
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+            System.out.println("CONNECTION CLOSED");
+            opened.countDown();
+            closed.countDown();
+        }
+
+    } // end nested class ConsoleListener
+
+
+    private static volatile EarlyConnection earlyConnection;
+
+    private C2W_Launcher() {
+    }
+
+    /**
+     * Returns the connection that was opened before the window existed, if
+     * any, and forgets it, so that only one window takes it.  The caller
+     * must attach its listener to the EarlyConnection's DeferredListener.
+     */
+    static EarlyConnection takeEarlyConnection() {
+        EarlyConnection early = earlyConnection;
+        earlyConnection = null;
+        return early;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> opts;
+        try {
+            opts = C2W_LoadGen.parseOptions(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        C2W_ConnectionExecutor.ThreadMode mode = C2W_ConnectionExecutor.parseMode(opts.get("threads"));
+        if (mode == null)
+            mode = C2W_ConnectionExecutor.modeFromSystemProperty();
+        C2W_ConnectionExecutor executor = new C2W_ConnectionExecutor(mode, "C2W-connection-");
+        if (opts.containsKey("train")) {
+            long start = System.nanoTime();
+            train(executor);
+            System.out.printf("TRAINING WORKLOAD DONE IN %.1f MS%n", (System.nanoTime() - start) / 1e6);
+            System.exit(0);
+        }
+        if (opts.containsKey("checkpoint")) {
+            train(executor);
+            checkpoint();
+        }
+        if (opts.containsKey("relay")) {
+            C2W_RelayServer.main(new String[] { opts.get("relay") });
+            return;
+        }
+        C2W_ConnectionHandler.Options options = new C2W_ConnectionHandler.Options(executor);
+        if (!opts.containsKey("headless")) {
+            if (opts.containsKey("listen") || opts.containsKey("connect")) {
+                EarlyConnection early = new EarlyConnection(executor, options, describe(opts));
+                early.handler = open(opts, options, early.listener);
+                earlyConnection = early;
+            }
+            C2W_Chat_App.c2w_launchWindow(args);
+            return;
+        }
+        if (!opts.containsKey("listen") && !opts.containsKey("connect")) {
+            System.err.println("--headless needs --listen=PORT, --connect=HOST:PORT or --relay=PORT");
+            System.exit(2);
+        }
+        ConsoleListener listener = new ConsoleListener(opts.containsKey("quiet"));
+        if (opts.containsKey("connect"))
+            System.out.println(describe(opts));  // (The listener prints the port that it listens on.)
+        C2W_ConnectionHandler handler = open(opts, options, listener);
+        Runtime.getRuntime().addShutdownHook(new Thread(handler::close));
+        Thread input = new Thread( () -> {
+                // Send the lines typed on standard input.  At the end of the
+                // input, the connection stays open, so that a peer can be run
+                // with no input at all.  Nothing is read until the connection
+                // is open, since lines can't be sent before that.
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+                listener.opened.await();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!handler.c2w_send(line))
+                        System.out.println("MESSAGE NOT SENT:  " + line);
+                }
+            }
+            catch (IOException | InterruptedException e) {
+            }
+        }, "C2W-console-input");
+        input.setDaemon(true);
+        input.start();
+        listener.closed.await();
+        System.exit(listener.failed ? 1 : 0);
+    }
+
+    /**
+     * Returns the line that describes what --listen or --connect does.
+     */
+    private static String describe(Map<String,String> opts) {
+        if (opts.containsKey("listen"))
+            return "LISTENING ON PORT " + opts.get("listen");
+        return "CONNECTING TO " + opts.get("connect");
+    }
+
+    /**
+     * Create the handler for --listen or --connect.
+     */
+    private static C2W_ConnectionHandler open(Map<String,String> opts, C2W_ConnectionHandler.Options options,
+                                              C2W_ConnectionHandler.Listener listener) {
+        if (opts.containsKey("listen"))
+            return new C2W_ConnectionHandler(C2W_LoadGen.intOption(opts, "listen", 1501), options, listener);
+        String target = opts.get("connect");
+        int colon = target.lastIndexOf(':');
+        if (colon < 0)
+            return new C2W_ConnectionHandler(target, 1501, options, listener);
+        return new C2W_ConnectionHandler(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)),
+                                         options, listener);
+    }
+
+    /**
+     * Run the --train workload:  framed and line-protocol connections
+     * between two handlers, and a relay with two clients, all over the
+     * loopback interface.  Its messages include long log lines, so that
+     * compression is used too.  The metrics of the workload are kept apart
+     * from the global metrics.
+     */
+    static void train(C2W_ConnectionExecutor executor) throws Exception {
+        C2W_Metrics metrics = new C2W_Metrics(false);
+        for (boolean framed : new boolean[] { true, false }) {
+            C2W_ConnectionHandler.Options options = new C2W_ConnectionHandler.Options(executor);
+            options.metrics = metrics;
+            options.offerFraming = framed;
+            trainPair(options);
+        }
+        C2W_RelayServer relay = new C2W_RelayServer(0, 1, null, metrics);
+        relay.start();
+        try {
+            C2W_ConnectionHandler.Options options = new C2W_ConnectionHandler.Options(executor);
+            options.metrics = metrics;
+            options.offerFraming = false;
+            TrainingListener listener = new TrainingListener(TRAINING_MESSAGES);
+            C2W_ConnectionHandler first = new C2W_ConnectionHandler("localhost", relay.getLocalPort(),
+                                                                    options, listener);
+            C2W_ConnectionHandler second = new C2W_ConnectionHandler("localhost", relay.getLocalPort(),
+                                                                     options, listener);
+            await(listener.opened, "connect to the relay");
+            while (relay.getClientCount() < 2)
+                Thread.sleep(1);
+            for (int i = 0; i < TRAINING_MESSAGES; i++)
+                send(first, trainingMessage(i));
+            await(listener.received, "receive from the relay");
+            first.close();
+            second.close();
+            await(listener.closed, "close");
+        }
+        finally {
+            relay.close();
+        }
+    }
+
+    /**
+     * Connect two handlers, send messages both ways, and close them.
+     */
+    private static void trainPair(C2W_ConnectionHandler.Options options) throws Exception {
+        TrainingListener listener = new TrainingListener(2 * TRAINING_MESSAGES);
+        C2W_ConnectionHandler server = new C2W_ConnectionHandler(0, options, listener);
+        C2W_ConnectionHandler client = new C2W_ConnectionHandler(
+                "localhost", listener.port.get(10, TimeUnit.SECONDS), options, listener);
+        await(listener.opened, "connect");
+        for (int i = 0; i < TRAINING_MESSAGES; i++) {
+            send(server, trainingMessage(i));
+            send(client, trainingMessage(i));
+        }
+        await(listener.received, "exchange messages");
+        client.close();
+        server.close();
+        await(listener.closed, "close");
+    }
+
+    private static void send(C2W_ConnectionHandler handler, String message) throws InterruptedException {
+        while (!handler.c2w_send(message))
+            Thread.sleep(1);
+    }
+
+    private static void await(CountDownLatch latch, String what) throws Exception {
+        if (!latch.await(10, TimeUnit.SECONDS))
+            throw new IOException("Training workload failed to " + what + ".");
+    }
+
+    /**
+     * Returns message number i of the training workload:  mostly short chat
+     * lines, with a long log line now and then.
+     */
+    private static String trainingMessage(int i) {
+        if (i % 10 == 0)
+            return "2026-01-01T00:00:00.000Z ERROR [main] Request " + i + " failed: java.io.IOException: "
+                       + "connection refused\n\tat java.base/java.lang.Thread.run(Thread.java:840)\n"
+                       + "\tat java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:635)";
+        return "message " + i + ": thanks, that's what I think too";
+    }
+
+
+    /**
+     * Counts the events of the training workload.
+     */
+    private static final class TrainingListener implements C2W_ConnectionHandler.Listener {
+
+        final CompletableFuture<Integer> port = new CompletableFuture<>();
+        final CountDownLatch opened = new CountDownLatch(2);
+        final CountDownLatch received;
+        final CountDownLatch closed = new CountDownLatch(2);
+
+        TrainingListener(int messages) {
+            received = new CountDownLatch(messages);
+        }
+
+        public void listening(C2W_ConnectionHandler handler, int localPort) {
+            port.complete(localPort);
+        }
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+            opened.countDown();
+        }
+
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            received.countDown();
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+            port.completeExceptionally(error);
+        }
+
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+            closed.countDown();
+        }
+
+    } // end nested class TrainingListener
+
+
+    /**
+     * Take a CRaC checkpoint, if the JDK supports CRaC.  This returns when
+     * the program is restored from the checkpoint, or at once if no
+     * checkpoint could be taken.  Both the JDK's jdk.crac API and the
+     * org.crac library are tried.
+     * @return true if the program was restored from a checkpoint
+     */
+    static boolean checkpoint() {
+        for (String name : new String[] { "jdk.crac.Core", "org.crac.Core" }) {
+            try {
+                Class.forName(name).getMethod("checkpointRestore").invoke(null);
+                C2W_Metrics.restartClock();
+                return true;
+            }
+            catch (ClassNotFoundException e) {
+                    // Try the next one.
+            }
+            catch (InvocationTargetException e) {
+                System.err.println("CHECKPOINT FAILED:  " + e.getCause());
+                return false;
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("CHECKPOINT FAILED:  " + e);
+                return false;
+            }
+        }
+        System.err.println("CRaC IS NOT AVAILABLE; CONTINUING WITHOUT A CHECKPOINT");
+        return false;
+    }
+
+}
@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * A headless load generator for the chat protocol.  It runs pairs of
+ * C2W_ConnectionHandler objects over loopback, with no GUI:  for each of N
+ * synthetic peers, one handler listens and one connects to it, and the
+ * connecting side sends a stream of messages.  Each message starts with
+ * the System.nanoTime() at which it was sent, so the receiving side can
+ * measure end-to-end latency, which includes queueing, the writer thread,
+ * the socket and decoding.  When all messages have arrived, the throughput
+ * and latency percentiles are printed.
+ *
+ * <p>Usage:
+ * <pre>
+ *     java C2W_LoadGen [--peers=N] [--messages=M] [--size=BYTES] [--rate=PER_SECOND]
+ *                      [--protocol=framed|line] [--threads=platform|virtual]
+ *                      [--compress=deflate|none] [--threshold=BYTES] [--level=1-9]
+ *                      [--text=padding|log] [--tls=off|on|compare] [--rounds=N]
+ *                      [--scenario=FILE] [--seed=N] [--timeout=SECONDS]
+ * </pre>
+ * With --text=log, messages look like lines of a log with stack traces,
+ * which is more realistic input for compression than the default padding.
+ * With --tls=on, the connections use TLS (as does the system property
+ * "c2w.tls").  With --tls=compare, the same load is run in plain text and
+ * over TLS:  once each to warm up, which is not counted, and then for a
+ * number of rounds (--rounds, default 3) with the order of the two
+ * alternating, so that neither gets the benefit of running later.  The
+ * cost of TLS is reported from the medians of the rounds, along with the
+ * time taken by full and by resumed TLS handshakes.
+ * With --scenario, the connections run over a C2W_SimulatedTransport
+ * instead of loopback, with the latency, bandwidth, stalls and disconnects
+ * that the scenario file describes (see C2W_SimulatedTransport.Scenario);
+ * --seed replaces the seed in the file.  The same scenario and seed give
+ * every connection the same conditions each time, so a run that shows a
+ * problem with backpressure or with resuming sessions can be repeated.
+ * The report then says what the simulated network did, and how many
+ * sessions were lost and resumed.
+ * The rate is per peer; 0 (the default) means as fast as possible.  For
+ * microbenchmarks of individual parts of the pipeline, see C2W_MicroBench.
+ */
+public class C2W_LoadGen {
+
+    private final int peers;
+    private final int messagesPerPeer;
+    private final int messageSize;
+    private final int ratePerPeer;
+    private final C2W_ConnectionHandler.Options options;
+
+    /**
+     * The smallest number of full and of resumed handshakes that
+     * benchmarkHandshakes() does, and does not count, before it measures
+     * any.  Before then, the handshake code is still being compiled.
+     */
+    private static final int HANDSHAKE_WARMUP = 30;
+
+    private final C2W_LatencyHistogram latency = new C2W_LatencyHistogram();
+    private final LongAdder receivedMessages = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder refusedSends = new LongAdder();
+    private final AtomicLong lastReceive = new AtomicLong();
+    private final LongAdder lostLinks = new LongAdder();
+    private final LongAdder resumedLinks = new LongAdder();
+    private final boolean logText;
+    private boolean quiet;  // If true, run() does not print a report.
+    private long elapsedNanos;
+    private CountDownLatch opened;
+    private CountDownLatch done;
+
+    public C2W_LoadGen(int peers, int messagesPerPeer, int messageSize, int ratePerPeer,
+                       boolean logText, C2W_ConnectionHandler.Options options) {
+        this.logText = logText;
+        this.peers = peers;
+        this.messagesPerPeer = messagesPerPeer;
+        this.messageSize = messageSize;
+        this.ratePerPeer = ratePerPeer;
+        this.options = options;
+    }
+
+    /**
+     * The listener used for both sides of every pair.  Only the listening
+     * sides receive messages.  In framing mode, the send time is parsed
+     * directly from the frame's payload, without decoding it into a String.
+     */
+    private class PeerListener implements C2W_ConnectionHandler.Listener {
+
+        final CompletableFuture<Integer> port = new CompletableFuture<>();
+
+        public void listening(C2W_ConnectionHandler handler, int localPort) {
+            port.complete(localPort);
+        }
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+            opened.countDown();
+        }
+
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            long sent = 0;
+            for (int i = 0; i < message.length() && message.charAt(i) != ' '; i++)
+                sent = sent * 10 + (message.charAt(i) - '0');
+            arrived(sent, message.length());
+        }
+
+        public void frameReceived(C2W_ConnectionHandler handler, C2W_FrameCodec.Frame frame) {
+            ByteBuffer payload = frame.payload();
+            long sent = 0;
+            while (payload.hasRemaining()) {
+                byte b = payload.get();
+                if (b == ' ')
+                    break;
+                sent = sent * 10 + (b - '0');
+            }
+            arrived(sent, frame.payloadLength());
+        }
+
+        private void arrived(long sentNanos, int bytes) {
+            long now = System.nanoTime();
+            latency.record(now - sentNanos);
+            receivedMessages.increment();
+            receivedBytes.add(bytes);
+            lastReceive.set(now);
+            done.countDown();
+        }
+
+        public void connectionLost(C2W_ConnectionHandler handler, Exception error) {
+            lostLinks.increment();
+        }
+
+        public void connectionResumed(C2W_ConnectionHandler handler, int resent, boolean complete) {
+            resumedLinks.increment();
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+            System.err.println("Send failed: " + error);
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+            System.err.println("Connection error: " + error);
+            port.completeExceptionally(error);
+        }
+
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+        }
+
+    } // end nested class PeerListener
+
+    /**
+     * Open the connections, send all of the messages, wait for them to
+     * arrive, and print a report.
+     * @return true if all messages arrived within the timeout
+     */
+    public boolean run(long timeoutSeconds) throws Exception {
+        opened = new CountDownLatch(2 * peers);
+        done = new CountDownLatch(peers * messagesPerPeer);
+        List<C2W_ConnectionHandler> servers = new ArrayList<>();
+        List<C2W_ConnectionHandler> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < peers; i++) {
+                PeerListener listener = new PeerListener();
+                servers.add(new C2W_ConnectionHandler(0, options, listener));
+                int port = listener.port.get(10, TimeUnit.SECONDS);
+                clients.add(new C2W_ConnectionHandler("localhost", port, options, new PeerListener()));
+            }
+            awaitOpened(servers, clients);
+            boolean framed = clients.get(0).isFramed();
+            String padding = logText ? logText(messageSize) : padding(messageSize);
+
+            long start = System.nanoTime();
+            CountDownLatch sendersDone = new CountDownLatch(peers);
+            for (C2W_ConnectionHandler client : clients)
+                options.executor.execute( () -> {
+                    try {
+                        sendAll(client, padding);
+                    }
+                    finally {
+                        sendersDone.countDown();
+                    }
+                });
+            boolean complete = awaitArrivals(timeoutSeconds, clients);
+            long elapsed = Math.max(1, (complete ? lastReceive.get() : System.nanoTime()) - start);
+            elapsedNanos = elapsed;
+            sendersDone.await(1, TimeUnit.SECONDS);
+            if (!quiet) {
+                report(framed, elapsed, complete);
+                reportCompression(clients);
+                reportNetwork();
+            }
+            return complete;
+        }
+        finally {
+            for (C2W_ConnectionHandler handler : clients)
+                handler.close();
+            for (C2W_ConnectionHandler handler : servers)
+                handler.close();
+        }
+    }
+
+    /**
+     * Wait until every connection is open.
+     * @throws IOException if a connection closes before it opens (which a
+     *    disconnect of the simulated network can cause), or if they do not
+     *    all open within 30 seconds
+     */
+    private void awaitOpened(List<C2W_ConnectionHandler> servers, List<C2W_ConnectionHandler> clients)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!opened.await(100, TimeUnit.MILLISECONDS)) {
+            if (System.nanoTime() > deadline)
+                throw new IOException("Connections did not open in time");
+            for (List<C2W_ConnectionHandler> handlers : List.of(servers, clients)) {
+                for (C2W_ConnectionHandler handler : handlers) {
+                    if (handler.getConnectionState() == C2W_ConnectionHandler.ConnectionState.CLOSED)
+                        throw new IOException("A connection closed before it opened");
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all of the messages have arrived.  The wait ends early if
+     * every sending connection has closed, since no more can arrive then.
+     * (That happens if a disconnect of the simulated network closes a
+     * connection that can't be resumed.)
+     * @return true if all of the messages arrived
+     */
+    private boolean awaitArrivals(long timeoutSeconds, List<C2W_ConnectionHandler> clients)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            if (System.nanoTime() > deadline)
+                return false;
+            boolean allClosed = true;
+            for (C2W_ConnectionHandler client : clients)
+                allClosed &= client.getConnectionState() == C2W_ConnectionHandler.ConnectionState.CLOSED;
+            if (allClosed)
+                return done.getCount() == 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of messages per second that arrived in the last
+     * call of run().
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : receivedMessages.sum() / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Returns the median latency, in nanoseconds, of the messages that
+     * arrived in the last call of run().
+     */
+    public long getLatencyP50Nanos() {
+        return latency.percentile(0.50);
+    }
+
+    /**
+     * Measure TLS handshakes over loopback, without the chat protocol:
+     * rounds full handshakes and rounds resumed ones, alternately, after at
+     * least HANDSHAKE_WARMUP of each to warm up.  For a full handshake, the client engine is
+     * created without the server's address, so that it can't find the
+     * cached session.  After each handshake, the client reads one byte from
+     * the server, so that it receives the session ticket that TLS 1.3 sends
+     * after the handshake.
+     */
+    static void benchmarkHandshakes(SSLContext context, int rounds) throws Exception {
+        C2W_LatencyHistogram full = new C2W_LatencyHistogram();
+        C2W_LatencyHistogram resumed = new C2W_LatencyHistogram();
+        int unexpected = 0;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+            Thread acceptor = new Thread( () -> {
+                while (server.isOpen()) {
+                    try (SocketChannel channel = server.accept()) {
+                        C2W_TlsChannel tls = C2W_TlsChannel.server(channel, context);
+                        tls.handshake();
+                        tls.write(ByteBuffer.wrap(new byte[] { 1 }));
+                        tls.read(ByteBuffer.allocate(1));  // Until the client closes.
+                    }
+                    catch (IOException e) {
+                        // The client closed first, or the benchmark is over.
+                    }
+                }
+            }, "C2W-loadgen-tls-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            int warmup = Math.max(HANDSHAKE_WARMUP, rounds);
+            for (int i = 0; i < 2 * (warmup + rounds); i++) {
+                boolean resume = i % 2 == 1;
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+                    channel.socket().setTcpNoDelay(true);
+                    C2W_TlsChannel tls = resume ? C2W_TlsChannel.client(channel, context, "localhost", port)
+                                                : C2W_TlsChannel.client(channel, context, null, -1);
+                    tls.handshake();
+                    tls.read(ByteBuffer.allocate(1));
+                    if (i < 2 * warmup)
+                        continue;  // The first one to this address can't resume.
+                    if (tls.isResumed() != resume)
+                        unexpected++;
+                    (resume ? resumed : full).record(tls.getHandshakeNanos());
+                }
+            }
+        }
+        System.out.printf("handshake  full p50=%s p99=%s, resumed p50=%s p99=%s (%d of each)%n",
+                          micros(full.percentile(0.50)), micros(full.percentile(0.99)),
+                          micros(resumed.percentile(0.50)), micros(resumed.percentile(0.99)), rounds);
+        if (unexpected > 0)
+            System.out.printf("           %d handshakes did not resume as expected%n", unexpected);
+    }
+
+    /**
+     * Send messagesPerPeer messages on one connection, at the requested
+     * rate.  If the outgoing queue refuses a message because it is above
+     * its high-water mark, the sender waits briefly and tries again.
+     */
+    private void sendAll(C2W_ConnectionHandler client, String padding) {
+        long intervalNanos = ratePerPeer > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerPeer : 0;
+        long next = System.nanoTime();
+        StringBuilder message = new StringBuilder(messageSize + 24);
+        for (int i = 0; i < messagesPerPeer; i++) {
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    sleepNanos(wait);
+            }
+            while (true) {
+                message.setLength(0);
+                message.append(System.nanoTime()).append(' ').append(padding);
+                if (client.c2w_send(message.toString()))
+                    break;
+                if (client.getConnectionState() != C2W_ConnectionHandler.ConnectionState.CONNECTED)
+                    return;
+                refusedSends.increment();
+                sleepNanos(50_000);
+            }
+        }
+    }
+
+    private void report(boolean framed, long elapsedNanos, boolean complete) {
+        double seconds = elapsedNanos / 1e9;
+        long messages = receivedMessages.sum();
+        System.out.printf("peers=%d messages/peer=%d size=%d rate/peer=%s protocol=%s threads=%s%n",
+                          peers, messagesPerPeer, messageSize,
+                          ratePerPeer > 0 ? String.valueOf(ratePerPeer) : "unlimited",
+                          (framed ? "framed" : "line") + (options.tls ? "+tls" : ""), options.executor.describe());
+        if (options.transport instanceof C2W_SimulatedTransport)
+            System.out.printf("scenario   %s%n", ((C2W_SimulatedTransport)options.transport).getScenario().describe());
+        if (!complete)
+            System.out.printf("INCOMPLETE: only %d of %d messages arrived%n",
+                              messages, (long)peers * messagesPerPeer);
+        System.out.printf("received   %,d messages in %.3f s%n", messages, seconds);
+        System.out.printf("throughput %,.0f messages/s, %,.2f MB/s of payload%n",
+                          messages / seconds, receivedBytes.sum() / seconds / (1024 * 1024));
+        System.out.printf("latency    p50=%s p99=%s p999=%s max=%s mean=%s%n",
+                          micros(latency.percentile(0.50)), micros(latency.percentile(0.99)),
+                          micros(latency.percentile(0.999)), micros(latency.max()),
+                          micros((long)latency.mean()));
+        System.out.printf("refused    %,d sends were refused by a full outgoing queue%n",
+                          refusedSends.sum());
+    }
+
+    /**
+     * Print what the simulated network did, if one was used.
+     */
+    private void reportNetwork() {
+        if (!(options.transport instanceof C2W_SimulatedTransport))
+            return;
+        System.out.printf("network    %s%n", ((C2W_SimulatedTransport)options.transport).describeStats());
+        System.out.printf("sessions   %d links lost and %d resumed, counting both ends of each connection%n",
+                          lostLinks.sum(), resumedLinks.sum());
+    }
+
+    /**
+     * Print the compression statistics of the sending side of all pairs.
+     */
+    private void reportCompression(List<C2W_ConnectionHandler> clients) {
+        long before = 0;
+        long after = 0;
+        long compressed = 0;
+        long nanos = 0;
+        for (C2W_ConnectionHandler client : clients) {
+            C2W_Compression.Stats stats = client.getCompressionStats();
+            if (stats == null)
+                return;
+            before += stats.bytesBeforeCompression();
+            after += stats.bytesAfterCompression();
+            compressed += stats.messagesCompressed();
+            nanos += stats.compressNanos();
+        }
+        System.out.printf("compress   %,d messages compressed, ratio %.3f, %,d bytes saved, %.1fus/message%n",
+                          compressed, before == 0 ? 1.0 : (double)after / before, before - after,
+                          compressed == 0 ? 0 : nanos / 1000.0 / compressed);
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    private static String padding(int size) {
+        StringBuilder b = new StringBuilder(size);
+        for (int i = 0; i < size; i++)
+            b.append((char)('a' + i % 26));
+        return b.toString();
+    }
+
+    /**
+     * Returns text of about the specified size that looks like a log with a
+     * stack trace, the kind of message that people paste into a chat.
+     */
+    private static String logText(int size) {
+        String[] lines = {
+            "2026-10-16 12:00:01.234 ERROR [worker-3] Request failed for /api/v1/orders/%d",
+            "java.lang.IllegalStateException: Connection pool exhausted after %d ms",
+            "\tat com.example.db.Pool.acquire(Pool.java:%d)",
+            "\tat com.example.orders.OrderService.load(OrderService.java:%d)",
+            "\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:%d)",
+            "2026-10-16 12:00:01.240 WARN  [worker-3] Retrying request %d of 3",
+        };
+        StringBuilder b = new StringBuilder(size + 100);
+        for (int i = 0; b.length() < size; i++)
+            b.append(String.format(lines[i % lines.length], 100 + i * 7)).append('\n');
+        b.setLength(size);
+        return b.toString();
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse command-line options of the form --name=value.
+     */
+    static Map<String,String> parseOptions(String[] args) {
+        Map<String,String> result = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                result.put(arg.substring(2), "true");
+            else
+                result.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return result;
+    }
+
+    static int intOption(Map<String,String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> opts = parseOptions(args);
+        C2W_ConnectionExecutor.ThreadMode mode = C2W_ConnectionExecutor.parseMode(opts.get("threads"));
+        if (mode == null)
+            mode = C2W_ConnectionExecutor.modeFromSystemProperty();
+        C2W_ConnectionHandler.Options options = new C2W_ConnectionHandler.Options(
+                new C2W_ConnectionExecutor(mode, "C2W-loadgen-"));
+        String protocol = opts.getOrDefault("protocol", "framed");
+        if (!protocol.equals("framed") && !protocol.equals("line"))
+            throw new IllegalArgumentException("--protocol must be framed or line");
+        options.offerFraming = protocol.equals("framed");
+        options.offerCompression = !opts.getOrDefault("compress", "deflate").equals("none");
+        options.compressionThreshold = intOption(opts, "threshold", options.compressionThreshold);
+        options.compressionLevel = intOption(opts, "level", options.compressionLevel);
+        String tls = opts.getOrDefault("tls", options.tls ? "on" : "off");
+        if (!tls.equals("off") && !tls.equals("on") && !tls.equals("compare"))
+            throw new IllegalArgumentException("--tls must be off, on or compare");
+        options.tls = tls.equals("on");
+        String scenarioFile = opts.get("scenario");
+        if (scenarioFile != null) {
+            C2W_SimulatedTransport.Scenario scenario = C2W_SimulatedTransport.Scenario.load(Paths.get(scenarioFile));
+            if (opts.containsKey("seed"))
+                scenario.seed = Long.parseLong(opts.get("seed"));
+            options.transport = new C2W_SimulatedTransport(scenario);
+        }
+        boolean complete;
+        if (tls.equals("compare")) {
+            complete = compareTls(opts, options);
+            if (complete)
+                benchmarkHandshakes(options.tlsContext != null ? options.tlsContext : C2W_TlsChannel.defaultContext(),
+                                    intOption(opts, "handshakes", 20));
+        }
+        else
+            complete = newLoadGen(opts, options).run(intOption(opts, "timeout", 120));
+        System.exit(complete ? 0 : 1);
+    }
+
+    /**
+     * Run the load in plain text and over TLS, once each to warm up and then
+     * for the requested number of rounds, alternating which one goes first,
+     * and report each round and the medians.
+     * @return false if a run was incomplete
+     */
+    private static boolean compareTls(Map<String,String> opts, C2W_ConnectionHandler.Options options)
+            throws Exception {
+        int rounds = Math.max(1, intOption(opts, "rounds", 3));
+        long timeout = intOption(opts, "timeout", 120);
+        for (boolean tls : new boolean[] { false, true }) {
+            options.tls = tls;
+            C2W_LoadGen warmup = newLoadGen(opts, options);
+            warmup.quiet = true;
+            if (!warmup.run(timeout)) {
+                System.out.println("INCOMPLETE: the warm-up run " + (tls ? "over TLS" : "in plain text") + " timed out");
+                return false;
+            }
+        }
+        double[][] throughput = new double[2][rounds];
+        long[][] p50 = new long[2][rounds];
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < 2; i++) {
+                int mode = (round + i) % 2;  // 0 is plain text and 1 is TLS; the first one alternates.
+                options.tls = mode == 1;
+                C2W_LoadGen loadGen = newLoadGen(opts, options);
+                loadGen.quiet = true;
+                if (!loadGen.run(timeout)) {
+                    System.out.println("INCOMPLETE: round " + (round + 1) + (mode == 1 ? " over TLS" : " in plain text")
+                                           + " timed out");
+                    return false;
+                }
+                throughput[mode][round] = loadGen.getThroughput();
+                p50[mode][round] = loadGen.getLatencyP50Nanos();
+            }
+            System.out.printf("round %d    %s first:  plain %,.0f messages/s p50=%s, tls %,.0f messages/s p50=%s%n",
+                              round + 1, round % 2 == 0 ? "plain" : "tls",
+                              throughput[0][round], micros(p50[0][round]),
+                              throughput[1][round], micros(p50[1][round]));
+        }
+        for (double[] values : throughput)
+            Arrays.sort(values);
+        for (long[] values : p50)
+            Arrays.sort(values);
+        System.out.printf("tls cost   throughput %.2fx of plain text, p50 latency %+.1fus "
+                              + "(medians of %d rounds, after a warm-up run of each)%n",
+                          throughput[1][rounds / 2] / throughput[0][rounds / 2],
+                          (p50[1][rounds / 2] - p50[0][rounds / 2]) / 1000.0, rounds);
+        return true;
+    }
+
+    private static C2W_LoadGen newLoadGen(Map<String,String> opts, C2W_ConnectionHandler.Options options) {
+        return new C2W_LoadGen(intOption(opts, "peers", 10),
+                               intOption(opts, "messages", 10_000),
+                               intOption(opts, "size", 64),
+                               intOption(opts, "rate", 0),
+                               opts.getOrDefault("text", "padding").equals("log"),
+                               options);
+    }
+
+}
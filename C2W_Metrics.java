@@ -0,0 +1,700 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Counters and histograms that show what the program's connections are
+ * doing:  messages and bytes in and out, the depth of the send queues, the
+ * time that the read loop spends on each message, how long lines wait
+ * before the JavaFX window shows them, and how often connections are
+ * opened, closed, reopened and lost, how long after startup the first
+ * connection was accepted, how long TLS handshakes take and how many
+ * of them resume an earlier session, and how many buffers of
+ * C2W_BufferPool.global() are in use.  There is one set of global metrics,
+ * returned by global(), and a Connection object for each connection that
+ * is open, which counts the same things for that connection alone.
+ *
+ * <p>The counters are LongAdders and the histograms are
+ * C2W_LatencyHistograms, so recording a value never allocates and never
+ * locks; it is cheap enough for the read loop and the writer thread.  The
+ * histograms count every value since the program started.
+ *
+ * <p>The metrics can be read in three ways:
+ * <ul>
+ * <li>Through JMX, with a tool such as JConsole.  The global metrics are the
+ *     MXBean "GUIChat:type=Metrics", and each open connection is
+ *     "GUIChat:type=Connection,id=N".  Set the system property
+ *     "c2w.metrics.jmx" to false to turn this off.  Registration is done on
+ *     a background thread, since creating the platform MBean server takes a
+ *     few hundred milliseconds that would otherwise delay the first
+ *     connection.
+ * <li>In a file that is written periodically:  if the system property
+ *     "c2w.metrics.dump" names a file, the global metrics are appended to it
+ *     every "c2w.metrics.dumpSeconds" seconds (10 by default).  If the
+ *     name ends with ".csv", one CSV row is written each time; otherwise,
+ *     the text of describe() is written.  The name "-" means standard output.
+ * <li>In the stats panel of the chat window, which shows describe().
+ * </ul>
+ */
+public class C2W_Metrics implements C2W_MetricsMXBean {
+
+    /**
+     * The JMX view of the metrics of one connection.  Latencies are in
+     * microseconds.
+     */
+    public interface ConnectionMXBean {
+        String getDescription();
+        long getOpenedAt();
+        long getMessagesIn();
+        long getMessagesOut();
+        long getBytesIn();
+        long getBytesOut();
+        long getSendsRefused();
+        int getSendQueueDepth();
+        double getReadLoopP50Micros();
+        double getReadLoopP99Micros();
+        double getReadLoopMaxMicros();
+    }
+
+
+    /**
+     * The metrics of one open connection.  Everything that is recorded here
+     * is also added to the global metrics.  All methods can be called by
+     * any thread.
+     */
+    public static final class Connection implements ConnectionMXBean {
+
+        private final C2W_Metrics global;
+        private final long id;
+        private final String description;
+        private final long openedAt = System.currentTimeMillis();
+        private final IntSupplier queueDepth;
+        private final LongAdder messagesIn = new LongAdder();
+        private final LongAdder messagesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder sendsRefused = new LongAdder();
+        private final C2W_LatencyHistogram readLoop = new C2W_LatencyHistogram();
+
+        private Connection(C2W_Metrics global, long id, String description, IntSupplier queueDepth) {
+            this.global = global;
+            this.id = id;
+            this.description = description;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * Record one message that was received and handled.
+         * @param bytes the size of the message on the wire
+         * @param nanos the time spent handling it, after it was read
+         */
+        public void received(long bytes, long nanos) {
+            messagesIn.increment();
+            bytesIn.add(bytes);
+            readLoop.record(nanos);
+            global.messagesIn.increment();
+            global.bytesIn.add(bytes);
+            global.readLoop.record(nanos);
+        }
+
+        /**
+         * Record a batch of messages that was written to the connection.
+         * @param bytes the size of the batch on the wire
+         */
+        public void sent(int messages, long bytes) {
+            messagesOut.add(messages);
+            bytesOut.add(bytes);
+            global.messagesOut.add(messages);
+            global.bytesOut.add(bytes);
+        }
+
+        /**
+         * Record a message that was not sent because the send queue was full.
+         */
+        public void sendRefused() {
+            sendsRefused.increment();
+            global.sendsRefused.increment();
+        }
+
+        /**
+         * Record that the connection is closed.  Its metrics are removed
+         * from JMX, but the object can still be read.  Calling this again
+         * does nothing.
+         */
+        public void closed() {
+            if (global.open.remove(this)) {
+                global.connectionsClosed.increment();
+                global.unregister(objectName());
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        String objectName() {
+            return "GUIChat:type=Connection,id=" + id;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Returns the time when the connection was opened, in milliseconds
+         * since the epoch.
+         */
+        public long getOpenedAt() {
+            return openedAt;
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getSendsRefused() {
+            return sendsRefused.sum();
+        }
+
+        public int getSendQueueDepth() {
+            return queueDepth == null ? 0 : queueDepth.getAsInt();
+        }
+
+        public double getReadLoopP50Micros() {
+            return readLoop.percentile(0.5) / 1000.0;
+        }
+
+        public double getReadLoopP99Micros() {
+            return readLoop.percentile(0.99) / 1000.0;
+        }
+
+        public double getReadLoopMaxMicros() {
+            return readLoop.max() / 1000.0;
+        }
+
+        /**
+         * Returns a one-line summary of the connection's metrics.
+         */
+        public String describe() {
+            return String.format("#%d %s:  in %,d (%s), out %,d (%s), queued %d, refused %d, read loop p99 %s",
+                                 id, description, getMessagesIn(), formatBytes(getBytesIn()),
+                                 getMessagesOut(), formatBytes(getBytesOut()), getSendQueueDepth(),
+                                 getSendsRefused(), formatMicros(getReadLoopP99Micros()));
+        }
+
+    } // end nested class Connection
+
+
+    private static volatile C2W_Metrics global;
+
+    /**
+     * The System.nanoTime() at which the program started:  when the JVM
+     * started, or when it was restored from a checkpoint.
+     */
+    private static volatile long startNanos = System.nanoTime()
+            - TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime());
+
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LongAdder connectionErrors = new LongAdder();
+    final LongAdder sendFailures = new LongAdder();
+    final LongAdder sendsRefused = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final C2W_LatencyHistogram readLoop = new C2W_LatencyHistogram();
+    final C2W_LatencyHistogram renderLag = new C2W_LatencyHistogram();
+    final LongAdder tlsHandshakes = new LongAdder();
+    final LongAdder tlsResumed = new LongAdder();
+    final C2W_LatencyHistogram tlsHandshake = new C2W_LatencyHistogram();
+    private final Set<Connection> open = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong firstAcceptNanos = new AtomicLong(-1);
+    private final boolean jmx;
+    private ExecutorService registrar;  // Runs JMX registrations in order.
+    private ScheduledExecutorService dumper;
+
+    /**
+     * Create a set of metrics that is separate from the global one, for
+     * example for a benchmark.
+     * @param jmx whether the metrics of connections are registered with JMX
+     */
+    public C2W_Metrics(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * Returns the global metrics, creating them the first time.  When they
+     * are created, they are registered with JMX, and the periodic dump is
+     * started, as specified by the system properties.
+     */
+    public static C2W_Metrics global() {
+        C2W_Metrics metrics = global;
+        if (metrics != null)
+            return metrics;
+        synchronized (C2W_Metrics.class) {
+            if (global == null) {
+                metrics = new C2W_Metrics(!"false".equalsIgnoreCase(System.getProperty("c2w.metrics.jmx")));
+                metrics.register("GUIChat:type=Metrics", metrics);
+                String dump = System.getProperty("c2w.metrics.dump");
+                if (dump != null && !dump.isEmpty())
+                    metrics.startDump(dump, Integer.getInteger("c2w.metrics.dumpSeconds", 10));
+                global = metrics;
+            }
+            return global;
+        }
+    }
+
+    /**
+     * Start recording the metrics of a connection that has just been opened.
+     * @param description a short description, such as the remote address
+     * @param queueDepth gives the depth of the connection's send queue;
+     *    can be null
+     */
+    public Connection connectionOpened(String description, IntSupplier queueDepth) {
+        Connection connection = new Connection(this, nextId.getAndIncrement(), description, queueDepth);
+        connectionsOpened.increment();
+        open.add(connection);
+        register(connection.objectName(), connection);
+        return connection;
+    }
+
+    /**
+     * Record that a connection was accepted by a listening socket or, for a
+     * client, that a connection was established.  Only the first one counts,
+     * for getTimeToFirstAcceptMillis().
+     */
+    public void accepted() {
+        if (firstAcceptNanos.get() < 0)
+            firstAcceptNanos.compareAndSet(-1, Math.max(0, System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Start measuring the time since startup again from now.  This is called
+     * when the program is restored from a checkpoint, since the time before
+     * the checkpoint was spent in another process.
+     */
+    public static void restartClock() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the time since the program started, in milliseconds.
+     */
+    public static double millisSinceStart() {
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+    /**
+     * Record that a connection was opened again, after an earlier one was
+     * lost or closed.
+     */
+    public void reconnected() {
+        reconnects.increment();
+    }
+
+    /**
+     * Record that an error ended a connection, or kept it from opening.
+     */
+    public void connectionError() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * Record that writing to a connection failed.
+     */
+    public void sendFailed() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Record a message that was not sent on a connection that does not have
+     * a Connection object of its own, because its queue was full.
+     */
+    public void sendRefused() {
+        sendsRefused.increment();
+    }
+
+    /**
+     * Record a connection that does not have a Connection object of its
+     * own, such as a client of C2W_RelayServer.  Call this with true when it
+     * opens and with false when it closes.
+     */
+    public void countConnection(boolean opened) {
+        if (opened)
+            connectionsOpened.increment();
+        else
+            connectionsClosed.increment();
+    }
+
+    /**
+     * Record messages that were received on a connection that does not have
+     * a Connection object of its own.
+     */
+    public void received(int messages, long bytes) {
+        messagesIn.add(messages);
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Record messages that were sent on a connection that does not have a
+     * Connection object of its own.
+     */
+    public void sent(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Record the time that a read loop spent on one pass.
+     */
+    public void readLoop(long nanos) {
+        readLoop.record(nanos);
+    }
+
+    /**
+     * Record how long a line of text waited before the window showed it.
+     */
+    public void renderLag(long nanos) {
+        renderLag.record(nanos);
+    }
+
+    /**
+     * Record a TLS handshake that has completed.
+     * @param resumed whether it resumed an earlier session
+     */
+    public void tlsHandshake(long nanos, boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed)
+            tlsResumed.increment();
+        tlsHandshake.record(nanos);
+    }
+
+    /**
+     * Returns the metrics of the connections that are open now.
+     */
+    public List<Connection> getConnections() {
+        return new ArrayList<>(open);
+    }
+
+    public long getOpenConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    public long getSendsRefused() {
+        return sendsRefused.sum();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Returns the total depth of the send queues of the open connections.
+     */
+    public long getSendQueueDepth() {
+        long depth = 0;
+        for (Connection connection : open)
+            depth += connection.getSendQueueDepth();
+        return depth;
+    }
+
+    public double getReadLoopP50Micros() {
+        return readLoop.percentile(0.5) / 1000.0;
+    }
+
+    public double getReadLoopP99Micros() {
+        return readLoop.percentile(0.99) / 1000.0;
+    }
+
+    public double getReadLoopMaxMicros() {
+        return readLoop.max() / 1000.0;
+    }
+
+    public double getRenderLagP50Micros() {
+        return renderLag.percentile(0.5) / 1000.0;
+    }
+
+    public double getRenderLagP99Micros() {
+        return renderLag.percentile(0.99) / 1000.0;
+    }
+
+    public double getRenderLagMaxMicros() {
+        return renderLag.max() / 1000.0;
+    }
+
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    public long getTlsHandshakesResumed() {
+        return tlsResumed.sum();
+    }
+
+    public double getTlsHandshakeP50Micros() {
+        return tlsHandshake.percentile(0.50) / 1000.0;
+    }
+
+    public double getTlsHandshakeP99Micros() {
+        return tlsHandshake.percentile(0.99) / 1000.0;
+    }
+
+    /**
+     * Returns the number of buffers from C2W_BufferPool.global() that are in
+     * use.  These are the pool's numbers, which are the same for every
+     * C2W_Metrics.
+     */
+    public long getBuffersInUse() {
+        return C2W_BufferPool.global().getBuffersInUse();
+    }
+
+    public long getBufferLeaks() {
+        return C2W_BufferPool.global().getLeaks();
+    }
+
+    /**
+     * Returns the time from startup to the first accepted connection, in
+     * milliseconds, or -1 if no connection has been accepted.
+     */
+    public double getTimeToFirstAcceptMillis() {
+        long nanos = firstAcceptNanos.get();
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    /**
+     * Returns a summary of the metrics, in a few lines of text, followed by
+     * one line for each open connection.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("connections  open %d, opened %d, closed %d, reconnects %d, errors %d, "
+                                      + "send failures %d%n",
+                                  getOpenConnections(), getConnectionsOpened(), getConnectionsClosed(),
+                                  getReconnects(), getConnectionErrors(), getSendFailures()));
+        text.append(String.format("messages     in %,d (%s), out %,d (%s), queued %d, refused %d%n",
+                                  getMessagesIn(), formatBytes(getBytesIn()), getMessagesOut(),
+                                  formatBytes(getBytesOut()), getSendQueueDepth(), getSendsRefused()));
+        text.append(String.format("read loop    p50 %s, p99 %s, max %s%n",
+                                  formatMicros(getReadLoopP50Micros()), formatMicros(getReadLoopP99Micros()),
+                                  formatMicros(getReadLoopMaxMicros())));
+        text.append(String.format("render lag   p50 %s, p99 %s, max %s",
+                                  formatMicros(getRenderLagP50Micros()), formatMicros(getRenderLagP99Micros()),
+                                  formatMicros(getRenderLagMaxMicros())));
+        if (getTlsHandshakes() > 0)
+            text.append(String.format("%ntls          handshakes %d, resumed %d, p50 %s, p99 %s",
+                                      getTlsHandshakes(), getTlsHandshakesResumed(),
+                                      formatMicros(getTlsHandshakeP50Micros()),
+                                      formatMicros(getTlsHandshakeP99Micros())));
+        C2W_BufferPool buffers = C2W_BufferPool.global();
+        if (buffers.getAllocatedBuffers() > 0)
+            text.append(String.format("%nbuffers      in use %d, free %s, allocated %,d (%s), leaks %d",
+                                      getBuffersInUse(), formatBytes(buffers.getFreeBytes()),
+                                      buffers.getAllocatedBuffers(), formatBytes(buffers.getAllocatedBytes()),
+                                      getBufferLeaks()));
+        if (getTimeToFirstAcceptMillis() >= 0)
+            text.append(String.format("%nstartup      first accept %.1f ms after start", getTimeToFirstAcceptMillis()));
+        for (Connection connection : open)
+            text.append(System.lineSeparator()).append(connection.describe());
+        return text.toString();
+    }
+
+    /**
+     * The column names of the CSV dump.
+     */
+    static final String CSV_HEADER = "time,open,opened,closed,reconnects,errors,sendFailures,refused,"
+            + "messagesIn,messagesOut,bytesIn,bytesOut,queueDepth,"
+            + "readP50us,readP99us,readMaxUs,renderP50us,renderP99us,renderMaxUs,firstAcceptMs,"
+            + "tlsHandshakes,tlsResumed,tlsP50us,tlsP99us,buffersInUse,bufferLeaks";
+
+    /**
+     * Returns one row of the CSV dump, without a line feed.
+     */
+    String csvRow() {
+        return String.format("%s,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%d,%d,%.1f,%.1f,%d,%d",
+                             Instant.now(), getOpenConnections(), getConnectionsOpened(),
+                             getConnectionsClosed(), getReconnects(), getConnectionErrors(),
+                             getSendFailures(), getSendsRefused(), getMessagesIn(), getMessagesOut(),
+                             getBytesIn(), getBytesOut(), getSendQueueDepth(),
+                             getReadLoopP50Micros(), getReadLoopP99Micros(), getReadLoopMaxMicros(),
+                             getRenderLagP50Micros(), getRenderLagP99Micros(), getRenderLagMaxMicros(),
+                             getTimeToFirstAcceptMillis(), getTlsHandshakes(), getTlsHandshakesResumed(),
+                             getTlsHandshakeP50Micros(), getTlsHandshakeP99Micros(),
+                             getBuffersInUse(), getBufferLeaks());
+    }
+
+    /**
+     * Start appending the metrics to a file at regular intervals, on a
+     * daemon thread.  If the file name ends with ".csv", a CSV row is
+     * written each time, after a header if the file is new; otherwise, the
+     * time and describe() are written.  Errors are reported on System.err,
+     * and the next interval tries again.
+     * @param file the file name, or "-" for standard output
+     */
+    public synchronized void startDump(String file, int intervalSeconds) {
+        if (dumper != null || intervalSeconds <= 0)
+            return;
+        boolean csv = file.endsWith(".csv");
+        Path path = file.equals("-") ? null : Paths.get(file);
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "C2W-metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (path == null && csv)
+            System.out.println(CSV_HEADER);
+        dumper.scheduleAtFixedRate( () -> {
+            String text = csv ? csvRow() : "--- " + Instant.now() + System.lineSeparator() + describe();
+            text += System.lineSeparator();
+            if (path == null) {
+                System.out.print(text);
+                return;
+            }
+            try {
+                if (csv && (!Files.exists(path) || Files.size(path) == 0))
+                    text = CSV_HEADER + System.lineSeparator() + text;
+                Files.write(path, text.getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            catch (IOException e) {
+                System.err.println("Can't write metrics to " + path + ": " + e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic dump, if it is running.
+     */
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Register an MXBean with the platform MBean server, if JMX is enabled.
+     * This is done on a background thread, which runs registrations and
+     * unregistrations in the order in which they were requested.  Failures
+     * are ignored, since the metrics are still available in other ways.
+     */
+    private void register(String name, Object bean) {
+        if (!jmx)
+            return;
+        registrar().execute( () -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(name));
+            }
+            catch (JMException | RuntimeException e) {
+            }
+        });
+    }
+
+    private void unregister(String name) {
+        if (!jmx)
+            return;
+        registrar().execute( () -> {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(new ObjectName(name));
+            }
+            catch (JMException | RuntimeException e) {
+            }
+        });
+    }
+
+    private synchronized ExecutorService registrar() {
+        if (registrar == null) {
+            registrar = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "C2W-metrics-jmx");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return registrar;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024)
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    static String formatMicros(double micros) {
+        if (micros < 1000)
+            return String.format("%.0f us", micros);
+        if (micros < 1_000_000)
+            return String.format("%.1f ms", micros / 1000);
+        return String.format("%.2f s", micros / 1_000_000);
+    }
+
+}
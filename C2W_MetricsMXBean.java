@@ -0,0 +1,35 @@
+/**
+ * The JMX view of the global metrics of C2W_Metrics, which is registered
+ * as "GUIChat:type=Metrics".  Latencies are in microseconds.  The time to
+ * the first accepted connection is in milliseconds, or -1 if there has
+ * been none.  The TLS handshake times are for all handshakes, full and
+ * resumed.  The buffer counts are those of C2W_BufferPool.global(); leaks
+ * are only counted if its leak detection is on.
+ */
+public interface C2W_MetricsMXBean {
+    long getOpenConnections();
+    long getConnectionsOpened();
+    long getConnectionsClosed();
+    long getReconnects();
+    long getConnectionErrors();
+    long getSendFailures();
+    long getSendsRefused();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getSendQueueDepth();
+    double getReadLoopP50Micros();
+    double getReadLoopP99Micros();
+    double getReadLoopMaxMicros();
+    double getRenderLagP50Micros();
+    double getRenderLagP99Micros();
+    double getRenderLagMaxMicros();
+    double getTimeToFirstAcceptMillis();
+    long getTlsHandshakes();
+    long getTlsHandshakesResumed();
+    double getTlsHandshakeP50Micros();
+    double getTlsHandshakeP99Micros();
+    long getBuffersInUse();
+    long getBufferLeaks();
+}
@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Microbenchmarks for the parts of the message pipeline:  framing, sending
+ * through the outgoing queue, receiving, and appending to the c2w_transcript.
+ * Each benchmark runs a number of warmup rounds, so that the JIT compiler
+ * has done its work, and then a number of measured rounds, and reports the
+ * mean time per operation and its spread over the measured rounds.
+ *
+ * <p>Usage:
+ * <pre>
+ *     java C2W_MicroBench [--filter=NAME] [--rounds=N] [--warmup=N] [--millis=MS] [--size=BYTES]
+ * </pre>
+ * With --filter, only benchmarks whose names contain NAME are run.
+ */
+public class C2W_MicroBench {
+
+    /**
+     * One benchmark.  run() performs the operation the specified number of
+     * times, and returns a value derived from the work so that the JIT
+     * compiler cannot remove it as dead code.
+     */
+    private interface Benchmark {
+        long run(int operations) throws Exception;
+    }
+
+    private final int rounds;
+    private final int warmupRounds;
+    private final long roundMillis;
+    private final String message;
+    private final byte[] frameData;  // 1000 encoded frames containing message.
+    private final byte[] lineData;   // 1000 lines containing message.
+    private volatile long blackhole;
+    private C2W_HistoryStore searchStore;  // Built by the first call of searchHistory.
+    private Path searchDir;
+
+    private C2W_MicroBench(int rounds, int warmupRounds, long roundMillis, int messageSize) {
+        this.rounds = rounds;
+        this.warmupRounds = warmupRounds;
+        this.roundMillis = roundMillis;
+        StringBuilder b = new StringBuilder(messageSize);
+        for (int i = 0; i < messageSize; i++)
+            b.append((char)('a' + i % 26));
+        this.message = b.toString();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            WritableByteChannel channel = Channels.newChannel(bytes);
+            C2W_FrameCodec.Encoder encoder = new C2W_FrameCodec.Encoder();
+            for (int i = 0; i < 1000; i++)
+                encoder.appendText(i, 0, message);
+            encoder.writeTo(channel);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);  // Can't happen with a byte array.
+        }
+        frameData = bytes.toByteArray();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            lines.append(message).append('\n');
+        lineData = lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * An endless input stream that repeats the same data, so that the
+     * receive benchmarks can read any number of messages without building
+     * the input during the measurement.
+     */
+    private static class RepeatingStream extends InputStream {
+
+        private final byte[] data;
+        private int position;
+
+        RepeatingStream(byte[] data) {
+            this.data = data;
+        }
+
+        public int read() {
+            int b = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position = (position + count) % data.length;
+            return count;
+        }
+
+    } // end nested class RepeatingStream
+
+    /**
+     * Run one benchmark and print its result.  The number of operations per
+     * round is calibrated during warmup so that a round takes roughly
+     * roundMillis milliseconds.
+     */
+    private void measure(String name, Benchmark benchmark) throws Exception {
+        int operations = 1000;
+        for (int i = 0; i < warmupRounds; i++) {
+            long start = System.nanoTime();
+            blackhole += benchmark.run(operations);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            long wanted = (long)(operations * (roundMillis * 1e6 / elapsed));
+            operations = (int)Math.max(1, Math.min(Integer.MAX_VALUE, wanted));
+        }
+        double[] nanosPerOp = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            blackhole += benchmark.run(operations);
+            nanosPerOp[i] = (double)(System.nanoTime() - start) / operations;
+        }
+        double mean = 0;
+        for (double v : nanosPerOp)
+            mean += v;
+        mean /= rounds;
+        double variance = 0;
+        for (double v : nanosPerOp)
+            variance += (v - mean) * (v - mean);
+        double stddev = rounds > 1 ? Math.sqrt(variance / (rounds - 1)) : 0;
+        System.out.printf("%-28s %12.1f ns/op  +- %8.1f  %,14.0f ops/s%n",
+                          name, mean, stddev, 1e9 / mean);
+    }
+
+    /**
+     * Encode frames into the Encoder's buffer, writing it out when it fills.
+     */
+    private long encodeFrames(int operations) throws IOException {
+        C2W_FrameCodec.Encoder encoder = new C2W_FrameCodec.Encoder();
+        WritableByteChannel sink = Channels.newChannel(OutputStream.nullOutputStream());
+        for (int i = 0; i < operations; i++) {
+            encoder.appendText(i, 0, message);
+            if (encoder.pending() > 32 * 1024)
+                encoder.writeTo(sink);
+        }
+        long pending = encoder.pending();
+        encoder.writeTo(sink);
+        return pending;
+    }
+
+    /**
+     * Encode frames with Deflate compression, with the threshold at zero so
+     * that every message is compressed.  Comparing this with encodeFrames
+     * shows the CPU cost of compression at the chosen message size.
+     */
+    private long encodeCompressedFrames(int operations) throws IOException {
+        C2W_Compression.Stats stats = new C2W_Compression.Stats();
+        C2W_FrameCodec.Encoder encoder = new C2W_FrameCodec.Encoder();
+        encoder.setCompressor(new C2W_Compression.Compressor(
+                Integer.getInteger("c2w.compress.level", 6), 0, stats));
+        WritableByteChannel sink = Channels.newChannel(OutputStream.nullOutputStream());
+        for (int i = 0; i < operations; i++) {
+            encoder.appendText(i, 0, message);
+            if (encoder.pending() > 32 * 1024)
+                encoder.writeTo(sink);
+        }
+        encoder.writeTo(sink);
+        return stats.bytesAfterCompression();
+    }
+
+    /**
+     * The old line protocol's send path, for comparison with encodeFrames.
+     */
+    private long printLines(int operations) {
+        PrintWriter out = new PrintWriter(OutputStream.nullOutputStream());
+        for (int i = 0; i < operations; i++)
+            out.println(message);
+        out.flush();
+        return out.checkError() ? 1 : 0;
+    }
+
+    /**
+     * Send messages through a C2W_OutboundQueue whose writer thread encodes
+     * them into frames.  This includes handing messages between threads,
+     * and the coalescing of messages into batches.
+     */
+    private long sendThroughQueue(int operations) throws Exception {
+        C2W_FrameCodec.Encoder encoder = new C2W_FrameCodec.Encoder();
+        WritableByteChannel sink = Channels.newChannel(OutputStream.nullOutputStream());
+        long[] sequence = new long[1];
+        C2W_OutboundQueue<String> queue = new C2W_OutboundQueue<>(String::length, batch -> {
+            for (String m : batch)
+                encoder.appendText(sequence[0]++, 0, m);
+            encoder.writeTo(sink);
+        }, null, Long.MAX_VALUE, 64 * 1024);
+        Thread writer = new Thread(queue);
+        writer.start();
+        for (int i = 0; i < operations; i++)
+            queue.offer(message);
+        queue.close();
+        writer.join();
+        return queue.batches();
+    }
+
+    /**
+     * Decode frames from an in-memory stream, without decoding payloads.
+     */
+    private long decodeFrames(int operations) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new RepeatingStream(frameData));
+        C2W_FrameCodec.Decoder decoder = new C2W_FrameCodec.Decoder(channel);
+        long total = 0;
+        for (int i = 0; i < operations; i++)
+            total += decoder.next().payloadLength();
+        return total;
+    }
+
+    /**
+     * Decode frames and their payloads, as happens when messages are shown.
+     */
+    private long decodeFramesToText(int operations) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new RepeatingStream(frameData));
+        C2W_FrameCodec.Decoder decoder = new C2W_FrameCodec.Decoder(channel);
+        long total = 0;
+        for (int i = 0; i < operations; i++)
+            total += decoder.next().text().length();
+        return total;
+    }
+
+    /**
+     * The old line protocol's receive path, for comparison.
+     */
+    private long readLines(int operations) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new RepeatingStream(lineData),
+                                                                     StandardCharsets.UTF_8));
+        long total = 0;
+        for (int i = 0; i < operations; i++)
+            total += in.readLine().length();
+        return total;
+    }
+
+    /**
+     * Append lines to a C2W_TranscriptStore that is small enough that
+     * most lines are spilled to disk.
+     */
+    private long appendToTranscript(int operations) {
+        C2W_TranscriptStore store = new C2W_TranscriptStore(1000, 1024 * 1024);
+        try {
+            for (int i = 0; i < operations; i++)
+                store.append(message);
+            return store.size();
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Append messages to a C2W_HistoryStore in a temporary directory.
+     */
+    private long appendToHistory(int operations) throws IOException {
+        Path dir = Files.createTempDirectory("c2w-bench-history");
+        C2W_HistoryStore history = new C2W_HistoryStore(dir, 64 * 1024 * 1024);
+        try {
+            for (int i = 0; i < operations; i++)
+                history.append((byte)0, message);
+            return history.size();
+        }
+        finally {
+            history.close();
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Search a C2W_HistoryStore that holds a million messages for a word
+     * that occurs in one message in a thousand, together with a word that
+     * occurs in every tenth message.  The store is built on the first call.
+     */
+    private long searchHistory(int operations) throws IOException {
+        if (searchStore == null) {
+            searchDir = Files.createTempDirectory("c2w-bench-history");
+            searchStore = new C2W_HistoryStore(searchDir, 64 * 1024 * 1024);
+            for (int i = 0; i < 1_000_000; i++)
+                searchStore.append((byte)0, "message " + (i % 10 == 0 ? "tenth " : "")
+                                                + (i % 1000 == 0 ? "thousandth " : "") + message);
+        }
+        long total = 0;
+        for (int i = 0; i < operations; i++)
+            total += searchStore.search("thousandth tenth", 50).size();
+        return total;
+    }
+
+    /**
+     * Record what the read loop and the writer thread record for each
+     * message:  one received message and one sent batch.
+     */
+    private long recordMetrics(int operations) {
+        C2W_Metrics metrics = new C2W_Metrics(false);
+        C2W_Metrics.Connection connection = metrics.connectionOpened("bench", null);
+        for (int i = 0; i < operations; i++) {
+            connection.received(message.length(), i & 0xffff);
+            connection.sent(1, message.length());
+        }
+        connection.closed();
+        return metrics.getMessagesIn();
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>)files::iterator)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> opts = C2W_LoadGen.parseOptions(args);
+        C2W_MicroBench bench = new C2W_MicroBench(C2W_LoadGen.intOption(opts, "rounds", 5),
+                                                  C2W_LoadGen.intOption(opts, "warmup", 5),
+                                                  C2W_LoadGen.intOption(opts, "millis", 500),
+                                                  C2W_LoadGen.intOption(opts, "size", 64));
+        String filter = opts.getOrDefault("filter", "");
+        List<String> names = new ArrayList<>();
+        List<Benchmark> benchmarks = new ArrayList<>();
+        names.add("framing.encode");          benchmarks.add(bench::encodeFrames);
+        names.add("framing.encodeDeflate");   benchmarks.add(bench::encodeCompressedFrames);
+        names.add("framing.decode");          benchmarks.add(bench::decodeFrames);
+        names.add("send.queue");              benchmarks.add(bench::sendThroughQueue);
+        names.add("send.lineProtocol");       benchmarks.add(bench::printLines);
+        names.add("receive.framesToText");    benchmarks.add(bench::decodeFramesToText);
+        names.add("receive.lineProtocol");    benchmarks.add(bench::readLines);
+        names.add("transcript.append");       benchmarks.add(bench::appendToTranscript);
+        names.add("history.append");          benchmarks.add(bench::appendToHistory);
+        names.add("history.search");          benchmarks.add(bench::searchHistory);
+        names.add("metrics.record");          benchmarks.add(bench::recordMetrics);
+        System.out.println("message size " + bench.message.length() + " characters");
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).contains(filter))
+                bench.measure(names.get(i), benchmarks.get(i));
+        }
+        if (bench.searchStore != null) {
+            bench.searchStore.close();
+            deleteDirectory(bench.searchDir);
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
+
+
+/**
+ * A queue of outgoing items for one connection, drained by a dedicated
+ * writer thread.  Any thread can add items with offer(), which never
+ * blocks and never touches the socket.  The writer takes every item that
+ * is waiting, up to a size limit, and hands the whole batch to a Sink, which
+ * writes it with a single write or flush.  So when many small messages are
+ * sent in quick succession, they are coalesced into a few large writes.
+ * (C2W_TranscriptJournal uses the same queue to group its disk writes.)
+ *
+ * <p>Backpressure:  The queue has a high-water mark, measured in bytes as
+ * reported by the size function.  When the queued size would go above it,
+ * offer() refuses the item and returns false, so that a slow or stalled
+ * peer cannot make the sender use unlimited memory.
+ *
+ * <p>Closing:  offer() and add() check that the queue is open and enqueue
+ * the item while holding the read lock of closeLock, and closing takes the
+ * write lock.  So an item that is accepted is always ahead of the close
+ * marker, and is written before the writer exits; many threads can still
+ * add items at the same time.
+ *
+ * @param <T> the type of item in the queue, such as a String message
+ */
+public class C2W_OutboundQueue<T> implements Runnable {
+
+    /**
+     * Writes a batch of items to the connection.  It is only ever called
+     * by the writer thread.
+     */
+    public interface Sink<T> {
+        void write(List<T> batch) throws IOException;
+    }
+
+    /**
+     * Is notified when the writer thread stops because of an error.
+     */
+    public interface ErrorHandler {
+        void writeFailed(IOException error);
+    }
+
+    /**
+     * Default high-water mark, used when the system property
+     * "c2w.send.highWaterBytes" is not set.
+     */
+    public static final long DEFAULT_HIGH_WATER_BYTES = 1024 * 1024;
+
+    /**
+     * Default limit on the total size of one batch, used when the system
+     * property "c2w.send.maxBatchBytes" is not set.
+     */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Object closeMarker = new Object();
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final ToIntFunction<T> sizer;
+    private final Sink<T> sink;
+    private final ErrorHandler errorHandler;
+    private final long highWaterBytes;
+    private final int maxBatchBytes;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong writtenItems = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+    private volatile boolean markerQueued;  // The close marker is in the queue.
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Create a queue.  The writer does not start until run() is called,
+     * normally on a thread of its own.
+     * @param sizer gives the size of an item, in bytes (or an estimate)
+     * @param sink writes batches of items
+     * @param errorHandler is told if the sink throws an exception; can be null
+     * @param highWaterBytes largest total size of queued items
+     * @param maxBatchBytes largest total size of the items in one batch;
+     *    a single larger item is still written, in a batch by itself
+     */
+    public C2W_OutboundQueue(ToIntFunction<T> sizer, Sink<T> sink, ErrorHandler errorHandler,
+                             long highWaterBytes, int maxBatchBytes) {
+        this.sizer = sizer;
+        this.sink = sink;
+        this.errorHandler = errorHandler;
+        this.highWaterBytes = highWaterBytes;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Create a queue whose limits come from the system properties
+     * "c2w.send.highWaterBytes" and "c2w.send.maxBatchBytes".
+     */
+    public C2W_OutboundQueue(ToIntFunction<T> sizer, Sink<T> sink, ErrorHandler errorHandler) {
+        this(sizer, sink, errorHandler,
+             Long.getLong("c2w.send.highWaterBytes", DEFAULT_HIGH_WATER_BYTES),
+             Integer.getInteger("c2w.send.maxBatchBytes", DEFAULT_MAX_BATCH_BYTES));
+    }
+
+    /**
+     * Add an item to the queue, if there is room for it.  This never blocks.
+     * @return true if the item was queued; false if the queue is closed, or
+     *    if adding the item would take the queue above its high-water mark
+     */
+    public boolean offer(T item) {
+        int size = sizer.applyAsInt(item);
+        closeLock.readLock().lock();
+        try {
+            if (closed)
+                return false;
+            long total = queuedBytes.addAndGet(size);
+            if (total > highWaterBytes && total != size) {
+                    // Over the mark.  (An item is always accepted by an empty queue,
+                    // so that a single large message can still be sent.)
+                queuedBytes.addAndGet(-size);
+                rejected.incrementAndGet();
+                return false;
+            }
+            queue.add(item);
+            return true;
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add an item to the queue even if the queue is above its high-water
+     * mark.  This is meant for small control items that must not be lost,
+     * such as a request to flush.  This never blocks.
+     * @return true if the item was queued; false if the queue is closed
+     */
+    public boolean add(T item) {
+        int size = sizer.applyAsInt(item);
+        closeLock.readLock().lock();
+        try {
+            if (closed)
+                return false;
+            queuedBytes.addAndGet(size);
+            queue.add(item);
+            return true;
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of items waiting to be written.
+     */
+    public int depth() {
+        int size = queue.size();
+        return markerQueued && size > 0 ? size - 1 : size;
+    }
+
+    /**
+     * Returns the total size of the items waiting to be written.
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    /**
+     * Returns the number of items that have been written.
+     */
+    public long writtenItems() {
+        return writtenItems.get();
+    }
+
+    /**
+     * Returns the number of batches that have been written.  Comparing this
+     * with writtenItems() shows how well writes are being coalesced.
+     */
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the number of items that offer() refused because the queue
+     * was above its high-water mark.
+     */
+    public long rejectedItems() {
+        return rejected.get();
+    }
+
+    /**
+     * Stop accepting items and make the writer thread exit after it has
+     * written the items that are already queued.  (If the connection has
+     * been closed, those writes will fail, and the items that were not
+     * written stay in the queue, where drain() can get them.)
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                markerQueued = true;
+                queue.add(closeMarker);
+            }
+        }
+        finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop accepting items because the writer failed, without queuing the
+     * close marker, since nothing will take it.
+     */
+    private void closeAfterError() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        }
+        finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Tells whether the queue has been closed, by close() or because a
+     * write failed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Wait for the writer thread to exit, after close() or an error.
+     * @return true if it has exited; false if the time ran out
+     */
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return stopped.await(timeout, unit);
+    }
+
+    /**
+     * Remove and return the items that the writer did not take.  This is
+     * meant to be called after the writer thread has stopped, so that the
+     * items can be sent some other way.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> drain() {
+        List<T> items = new ArrayList<>();
+        Object item;
+        while ((item = queue.poll()) != null) {
+            if (item == closeMarker)
+                markerQueued = false;
+            else {
+                items.add((T)item);
+                queuedBytes.addAndGet(-sizer.applyAsInt((T)item));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * The body of the writer thread.  It returns when the queue is closed or
+     * the sink throws an exception.
+     */
+    @SuppressWarnings("unchecked")
+    public void run() {
+        List<T> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Object first = queue.take();
+                if (first == closeMarker) {
+                    markerQueued = false;
+                    return;
+                }
+                batch.add((T)first);
+                long batchBytes = sizer.applyAsInt((T)first);
+                boolean closing = false;
+                Object next;
+                while (batchBytes < maxBatchBytes && (next = queue.poll()) != null) {
+                    if (next == closeMarker) {
+                        markerQueued = false;
+                        closing = true;
+                        break;
+                    }
+                    batch.add((T)next);
+                    batchBytes += sizer.applyAsInt((T)next);
+                }
+                try {
+                    sink.write(batch);
+                }
+                finally {
+                    queuedBytes.addAndGet(-batchBytes);
+                }
+                writtenItems.addAndGet(batch.size());
+                batches.incrementAndGet();
+                batch.clear();
+                if (closing)
+                    return;
+            }
+        }
+        catch (InterruptedException e) {
+            // Treated like close().
+        }
+        catch (IOException e) {
+            closeAfterError();
+            if (errorHandler != null)
+                errorHandler.writeFailed(e);
+        }
+        catch (RuntimeException e) {
+                // A bug or a bad state in the sink, such as an overflowing
+                // buffer.  The writer can't go on, so the queue must not
+                // accept items that would never be written.
+            closeAfterError();
+            if (errorHandler != null)
+                errorHandler.writeFailed(new IOException("The writer failed: " + e, e));
+        }
+        finally {
+            stopped.countDown();
+        }
+    }
+
+}
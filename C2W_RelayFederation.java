@@ -0,0 +1,795 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Links a C2W_RelayServer to other relays, so that several relay processes,
+ * the nodes of a federation, serve the same rooms.  A client can connect
+ * to any node:  a message that a client sends to a room is delivered to the
+ * room's subscribers on its own node by the relay, as usual, and is also
+ * forwarded to the other nodes, which deliver it to their own subscribers.
+ * So the clients, and the work of serving them, can be spread over several
+ * processes, and over several machines or cores, and a node that goes down
+ * only takes its own clients with it.
+ *
+ * <p>Membership:  Every node is given the same list of members, with a
+ * name, a host, the port on which its relay serves clients, and the port on
+ * which it accepts links from the other nodes.  The list comes from the
+ * system property "c2w.relay.members", and the name of this node from
+ * "c2w.relay.node":
+ * <pre>
+ *     -Dc2w.relay.members=a=localhost:1501:1601,b=localhost:1502:1602,c=localhost:1503:1603
+ *     -Dc2w.relay.node=b
+ * </pre>
+ * A client can see the list, and which nodes are linked right now, with
+ * the relay's "/nodes" command, so it knows where else it can connect.
+ *
+ * <p>Links:  Every pair of nodes is linked by a C2W_ConnectionHandler
+ * session with the framing protocol, opened by the node whose name comes
+ * later in alphabetical order.  The sessions are resumable, so a message
+ * that is forwarded while a link is down is sent when it comes back, and a
+ * link that can't be resumed is opened again.  Each node accepts all of its
+ * links on one port:  the connecting side first sends a line that names
+ * it, and the connection is handed to the handler that listens for that
+ * node, through a C2W_Transport of its own.  The messages for a link go
+ * through a C2W_OutboundQueue, and every batch that its writer takes is
+ * sent as one text frame, with one record per line, so a busy link sends a
+ * few large frames rather than one frame per chat message.
+ *
+ * <p>Routing without loops:  Each message gets an id when it enters the
+ * federation, made of the name of the node where it entered, a number that
+ * is different each time that node starts, and a sequence number.  A node
+ * delivers a message with a given id only once; it remembers the ids that
+ * it has seen in a sliding window for each node.  Nodes tell each other
+ * which nodes they are linked to.  A node sends the messages of its own
+ * clients to every other node, and passes a message that it received on to
+ * the nodes that are not linked to the node where it entered, so a message
+ * still gets everywhere if some links are down.  When all the links are up,
+ * nothing is passed on, and each message crosses each link once.
+ *
+ * <p>Every node gets every message, even for rooms that it has no
+ * subscribers in; the relay drops those without encoding them.  Room
+ * commands such as /rooms only see the node's own clients.
+ */
+public class C2W_RelayFederation {
+
+    /**
+     * The line that the connecting side of a link sends first, followed by
+     * its name.
+     */
+    public static final String LINK_PREAMBLE = "C2W-NODE ";
+
+    /**
+     * The room of a record that goes to every client, whatever its rooms.
+     * Room names can't contain brackets, so this is not the name of a room.
+     */
+    private static final String ALL_ROOMS = "[all]";
+
+    /**
+     * The number of sequence numbers, for each node, that the window of
+     * seen message ids covers.  A message that is older than that, compared
+     * to the newest one seen from the same node, is taken to be a duplicate.
+     */
+    private static final int DEDUP_WINDOW = 64 * 1024;
+
+    /**
+     * How long to wait before opening a link again, after it was closed.
+     */
+    private static final long RELINK_DELAY_MS = 1000;
+
+    /**
+     * One node of the federation, as given in the membership list.
+     */
+    public static final class Member {
+
+        final String name;
+        final String host;
+        final int clientPort;
+        final int linkPort;
+
+        public Member(String name, String host, int clientPort, int linkPort) {
+            this.name = name;
+            this.host = host;
+            this.clientPort = clientPort;
+            this.linkPort = linkPort;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getClientPort() {
+            return clientPort;
+        }
+
+        public int getLinkPort() {
+            return linkPort;
+        }
+
+        public String toString() {
+            return name + "=" + host + ":" + clientPort + ":" + linkPort;
+        }
+
+    } // end nested class Member
+
+    private final C2W_RelayServer relay;
+    private final Member self;
+    private final String incarnation;  // This node's name and start time, the prefix of its message ids.
+    private final long startedAt;
+    private final Map<String,Peer> peers = new LinkedHashMap<>();  // Not changed after the constructor.
+    private final List<Member> members;
+    private final C2W_Transport transport;
+    private final C2W_ConnectionExecutor executor = new C2W_ConnectionExecutor(
+            C2W_ConnectionExecutor.modeFromSystemProperty(), "C2W-federation-");
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "C2W-federation-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final ConcurrentHashMap<String,SeenWindow> seen = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder passedOn = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private volatile C2W_Transport.Acceptor acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Create the federation of a relay.  Nothing is opened until start() is
+     * called.
+     * @param members every node of the federation, including this one
+     * @param selfName the name of this node, which must be in members
+     * @param transport the network that links are opened on
+     * @throws IllegalArgumentException if selfName is not a member, or two
+     *    members have the same name
+     */
+    public C2W_RelayFederation(C2W_RelayServer relay, List<Member> members, String selfName,
+                               C2W_Transport transport) {
+        this.relay = relay;
+        this.transport = transport;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        Member me = null;
+        Set<String> names = new HashSet<>();
+        for (Member member : members) {
+            if (!names.add(member.name))
+                throw new IllegalArgumentException("Two members of the federation are named " + member.name);
+            if (member.name.equals(selfName))
+                me = member;
+        }
+        if (me == null)
+            throw new IllegalArgumentException("This node, " + selfName + ", is not in the membership list");
+        self = me;
+        startedAt = System.currentTimeMillis();
+        incarnation = self.name + "." + Long.toHexString(startedAt);
+        for (Member member : members) {
+            if (member != self)
+                peers.put(member.name, new Peer(member, member.name.compareTo(self.name) < 0));
+        }
+    }
+
+    /**
+     * Returns the federation described by the system properties
+     * "c2w.relay.members" and "c2w.relay.node", or null if the first one is
+     * not set.
+     * @throws IllegalArgumentException if the properties are not valid
+     */
+    public static C2W_RelayFederation fromSystemProperties(C2W_RelayServer relay) {
+        String list = System.getProperty("c2w.relay.members");
+        if (list == null || list.trim().isEmpty())
+            return null;
+        String node = System.getProperty("c2w.relay.node");
+        if (node == null)
+            throw new IllegalArgumentException("c2w.relay.node must be set when c2w.relay.members is set");
+        return new C2W_RelayFederation(relay, parseMembers(list), node.trim(), C2W_Transport.sockets());
+    }
+
+    /**
+     * Parse a membership list:  members separated by commas, each in the
+     * form NAME=HOST:CLIENT_PORT:LINK_PORT.  Names can contain letters,
+     * digits, '_' and '-'.
+     * @throws IllegalArgumentException if the list is not valid
+     */
+    public static List<Member> parseMembers(String list) {
+        List<Member> members = new ArrayList<>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            int eq = item.indexOf('=');
+            String[] address = eq < 0 ? new String[0] : item.substring(eq + 1).split(":");
+            if (eq <= 0 || address.length != 3 || !item.substring(0, eq).matches("[A-Za-z0-9_-]+"))
+                throw new IllegalArgumentException("A member must be NAME=HOST:CLIENT_PORT:LINK_PORT, not " + item);
+            try {
+                members.add(new Member(item.substring(0, eq), address[0],
+                                       Integer.parseInt(address[1]), Integer.parseInt(address[2])));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal port number in member " + item);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Returns this node's entry in the membership list.
+     */
+    public Member getSelf() {
+        return self;
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Open the port for links from other nodes, start the links to them,
+     * and start forwarding the relay's messages.  The relay should already
+     * be started.
+     */
+    public void start() throws IOException {
+        acceptor = transport.listen(self.linkPort);
+        Thread thread = new Thread(this::acceptLoop, "C2W-federation-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+        relay.setFederation(this);
+        for (Peer peer : peers.values()) {
+            executor.execute(peer.queue);
+            openLink(peer);
+        }
+    }
+
+    /**
+     * Close every link and stop accepting new ones.  Messages that have
+     * not been forwarded yet are lost.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        relay.setFederation(null);
+        try {
+            C2W_Transport.Acceptor acceptor = this.acceptor;
+            if (acceptor != null)
+                acceptor.close();
+        }
+        catch (IOException e) {
+        }
+        for (Peer peer : peers.values()) {
+            peer.queue.close();
+            C2W_ConnectionHandler handler = peer.handler;
+            if (handler != null)
+                handler.close();
+            peer.links.closeInbound();
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * Forward a message that a client of this node sent to a room, or to
+     * every client if room is null, to the other nodes.  Called by the
+     * relay, on any thread.
+     */
+    void publish(String room, String text) {
+        String record = "M " + incarnation + ":" + nextSequence.getAndIncrement() + " "
+                            + (room == null ? ALL_ROOMS : room) + " " + text;
+        for (Peer peer : peers.values())
+            send(peer, record);
+    }
+
+    /**
+     * Returns a description of every member, and of whether it is linked to
+     * this node, as shown by the relay's /nodes command.
+     */
+    public String describeMembers() {
+        StringBuilder b = new StringBuilder();
+        for (Member member : members) {
+            if (b.length() > 0)
+                b.append(", ");
+            b.append(member.name).append(' ').append(member.host).append(':').append(member.clientPort);
+            Peer peer = peers.get(member.name);
+            b.append(peer == null ? " (this node)" : peer.linked ? " (linked)" : " (down)");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the numbers of records that were sent, of the frames that
+     * carried them, and of the messages that were received, passed on and
+     * dropped, in one line, for reports.
+     */
+    public String describeStats() {
+        return String.format("%,d records sent in %,d frames, %,d messages received, %,d duplicates, "
+                                 + "%,d passed on, %,d dropped",
+                             sent.sum(), frames.sum(), received.sum(), duplicates.sum(),
+                             passedOn.sum(), dropped.sum());
+    }
+
+    /**
+     * Returns the number of messages from other nodes that were delivered
+     * to this node's clients.
+     */
+    public long getMessagesReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Returns the number of messages that arrived more than once, by
+     * different paths, and were not delivered again.
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns the number of messages that were passed on to a node that was
+     * not linked to the node where they entered.
+     */
+    public long getMessagesPassedOn() {
+        return passedOn.sum();
+    }
+
+    /**
+     * Returns the number of records that were not sent, because their link
+     * was closed or its queue was full.
+     */
+    public long getRecordsDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queue a record for a peer.
+     */
+    private void send(Peer peer, String record) {
+        if (!peer.queue.offer(record))
+            dropped.increment();
+    }
+
+    /**
+     * Start the handler of a link:  a client, if this node opens the link,
+     * or a server that gets its connections from acceptLoop().
+     */
+    private void openLink(Peer peer) {
+        if (closed)
+            return;
+        C2W_ConnectionHandler.Options options = new C2W_ConnectionHandler.Options(executor);
+        options.offerFraming = true;
+        options.offerResume = true;
+        options.transport = peer.links;
+        Member member = peer.member;
+        peer.handler = peer.connects ? new C2W_ConnectionHandler(member.host, member.linkPort, options, peer)
+                                     : new C2W_ConnectionHandler(self.linkPort, options, peer);
+    }
+
+    /**
+     * Body of the thread that accepts links from other nodes.  Each one is
+     * identified on a thread of its own, so that a peer that is slow to send
+     * its name does not hold up the others.
+     */
+    private void acceptLoop() {
+        try {
+            while (!closed) {
+                C2W_Transport.Connection connection = acceptor.accept();
+                executor.execute( () -> identify(connection) );
+            }
+        }
+        catch (IOException e) {
+            if (!closed)
+                System.err.println("Federation stopped accepting links: " + e);
+        }
+    }
+
+    /**
+     * Read the preamble of a link that was accepted, and hand the link to
+     * the handler that listens for the node that it names.  Links from
+     * unknown nodes, or from nodes that this node should connect to, are
+     * closed.
+     */
+    private void identify(C2W_Transport.Connection connection) {
+        try {
+            connection.setReadTimeout(Integer.getInteger("c2w.protocol.helloTimeoutMs", 3000));
+            String line = C2W_FrameCodec.readRawLine(Channels.newInputStream(connection));
+            connection.setReadTimeout(0);
+            Peer peer = line == null || !line.startsWith(LINK_PREAMBLE) ? null
+                            : peers.get(line.substring(LINK_PREAMBLE.length()).trim());
+            if (peer != null && !peer.connects && !closed) {
+                peer.links.arrived(connection);
+                return;
+            }
+        }
+        catch (IOException e) {
+        }
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    /**
+     * Handle one record from a peer.
+     */
+    private void recordReceived(Peer from, String record) {
+        if (record.startsWith("M "))
+            messageReceived(from, record);
+        else if (record.startsWith("L "))
+            from.peerLinks = new HashSet<>(Arrays.asList(record.substring(2).trim().split(",")));
+    }
+
+    /**
+     * Handle a message record, "M ID ROOM TEXT":  deliver it to this node's
+     * clients, and pass it on to the peers that can't get it from the node
+     * where it entered, unless it has been seen before.
+     */
+    private void messageReceived(Peer from, String record) {
+        int idEnd = record.indexOf(' ', 2);
+        int roomEnd = idEnd < 0 ? -1 : record.indexOf(' ', idEnd + 1);
+        if (roomEnd < 0)
+            return;
+        String id = record.substring(2, idEnd);
+        int dot = id.indexOf('.');
+        int colon = id.lastIndexOf(':');
+        if (dot <= 0 || colon < dot)
+            return;
+        String origin = id.substring(0, dot);
+        long started;
+        long sequence;
+        try {
+            started = Long.parseLong(id.substring(dot + 1, colon), 16);
+            sequence = Long.parseLong(id.substring(colon + 1));
+        }
+        catch (NumberFormatException e) {
+            return;
+        }
+        if (origin.equals(self.name) || !seen.computeIfAbsent(origin, k -> new SeenWindow()).firstTime(started, sequence)) {
+            duplicates.increment();
+            return;
+        }
+        received.increment();
+        String room = record.substring(idEnd + 1, roomEnd);
+        relay.deliverFromFederation(origin, room.equals(ALL_ROOMS) ? null : room, record.substring(roomEnd + 1));
+        for (Peer peer : peers.values()) {
+            if (peer != from && !peer.member.name.equals(origin) && !peer.peerLinks.contains(origin)) {
+                passedOn.increment();
+                send(peer, record);
+            }
+        }
+    }
+
+    /**
+     * Tell every peer which nodes this node is linked to now.
+     */
+    private void announceLinks() {
+        StringBuilder linked = new StringBuilder("L ");
+        for (Peer peer : peers.values()) {
+            if (peer.linked)
+                linked.append(linked.length() > 2 ? "," : "").append(peer.member.name);
+        }
+        String record = linked.toString();
+        for (Peer peer : peers.values())
+            send(peer, record);
+    }
+
+
+    /**
+     * The ids of the messages that have been seen from one node:  the
+     * newest sequence number, and a ring of bits for the DEDUP_WINDOW
+     * numbers before it.  When the node restarts, its messages have a later
+     * start time, and the window starts over.
+     */
+    private static final class SeenWindow {
+
+        private final long[] bits = new long[DEDUP_WINDOW / 64];
+        private long started = -1;
+        private long newest = -1;
+
+        /**
+         * Record a message id.
+         * @return true if it had not been seen before
+         */
+        synchronized boolean firstTime(long started, long sequence) {
+            if (started < this.started)
+                return false;  // From before the node restarted; it is too late for it.
+            if (started > this.started) {
+                this.started = started;
+                newest = -1;
+                Arrays.fill(bits, 0);
+            }
+            if (sequence > newest) {
+                for (long s = Math.max(newest + 1, sequence - DEDUP_WINDOW + 1); s < sequence; s++)
+                    clear(s);
+                newest = sequence;
+                set(sequence);
+                return true;
+            }
+            if (sequence <= newest - DEDUP_WINDOW || isSet(sequence))
+                return false;
+            set(sequence);
+            return true;
+        }
+
+        private boolean isSet(long sequence) {
+            int bit = (int)(sequence % DEDUP_WINDOW);
+            return (bits[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(long sequence) {
+            int bit = (int)(sequence % DEDUP_WINDOW);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(long sequence) {
+            int bit = (int)(sequence % DEDUP_WINDOW);
+            bits[bit >>> 6] &= ~(1L << bit);
+        }
+
+    } // end nested class SeenWindow
+
+
+    /**
+     * Another node, the link to it, and the queue of records for it.  It is
+     * also the Listener of the link's handlers, of which there is one at a
+     * time; a new one is only made after the last one is closed.
+     */
+    private final class Peer implements C2W_ConnectionHandler.Listener {
+
+        final Member member;
+        final boolean connects;  // True if this node opens the link.
+        final LinkTransport links = new LinkTransport();
+        final C2W_OutboundQueue<String> queue;
+        volatile C2W_ConnectionHandler handler;
+        volatile boolean linked;
+        volatile Set<String> peerLinks = Collections.emptySet();  // The nodes that it is linked to.
+
+        Peer(Member member, boolean connects) {
+            this.member = member;
+            this.connects = connects;
+            this.queue = new C2W_OutboundQueue<>(String::length, this::sendBatch, null);
+        }
+
+        /**
+         * Send a batch of records in one frame.  If the link's own queue is
+         * full, this waits, so that the records back up in this peer's queue.
+         * If the link is closed, the batch is lost.
+         */
+        private void sendBatch(List<String> batch) {
+            String frame = batch.size() == 1 ? batch.get(0) : String.join("\n", batch);
+            while (!closed) {
+                C2W_ConnectionHandler handler = this.handler;
+                if (handler != null && handler.c2w_send(frame)) {
+                    sent.add(batch.size());
+                    frames.increment();
+                    return;
+                }
+                if (handler == null || handler.getConnectionState() != C2W_ConnectionHandler.ConnectionState.CONNECTED) {
+                    dropped.add(batch.size());
+                    return;
+                }
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public void connectionStateChanged(C2W_ConnectionHandler handler, C2W_ConnectionHandler.ConnectionState from,
+                                           C2W_ConnectionHandler.ConnectionState to) {
+            boolean up = to == C2W_ConnectionHandler.ConnectionState.CONNECTED;
+            if (up != linked) {
+                linked = up;
+                if (!up)
+                    peerLinks = Collections.emptySet();
+                announceLinks();
+            }
+        }
+
+        public void connectionOpened(C2W_ConnectionHandler handler) {
+        }
+
+        public void messageReceived(C2W_ConnectionHandler handler, String message) {
+            int start = 0;
+            while (start < message.length()) {
+                int end = message.indexOf('\n', start);
+                if (end < 0)
+                    end = message.length();
+                recordReceived(this, message.substring(start, end));
+                start = end + 1;
+            }
+        }
+
+        public void sendFailed(C2W_ConnectionHandler handler, IOException error) {
+        }
+
+        public void connectionClosedFromOtherSide(C2W_ConnectionHandler handler) {
+        }
+
+        public void connectionError(C2W_ConnectionHandler handler, Exception error) {
+        }
+
+        /**
+         * Open the link again after a delay, unless the federation is
+         * closed.  This is called whenever a handler ends:  when the other
+         * node has not started yet, or was stopped, or its session could not
+         * be resumed.
+         */
+        public void connectionClosed(C2W_ConnectionHandler handler) {
+            if (!closed) {
+                try {
+                    timer.schedule( () -> openLink(this), RELINK_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (RuntimeException e) {
+                    // The timer has been shut down by close().
+                }
+            }
+        }
+
+    } // end nested class Peer
+
+
+    /**
+     * The transport of the handlers of one link.  A listening handler gets
+     * the connections that acceptLoop() has identified as coming from the
+     * peer; a connecting handler opens a connection on the federation's
+     * transport, and sends the preamble that names this node.
+     */
+    private final class LinkTransport implements C2W_Transport {
+
+        private final ArrayDeque<Connection> inbound = new ArrayDeque<>();  // Guarded by this.
+        private boolean inboundClosed;
+
+        /**
+         * Called by identify() with a connection from the peer.  If an
+         * earlier one has not been accepted, it is an attempt that the peer
+         * has given up on, and it is closed.
+         */
+        synchronized void arrived(Connection connection) {
+            if (inboundClosed) {
+                closeQuietly(connection);
+                return;
+            }
+            while (!inbound.isEmpty())
+                closeQuietly(inbound.poll());
+            inbound.add(connection);
+            notifyAll();
+        }
+
+        synchronized void closeInbound() {
+            inboundClosed = true;
+            while (!inbound.isEmpty())
+                closeQuietly(inbound.poll());
+            notifyAll();
+        }
+
+        public Acceptor listen(int port) {
+            return new Acceptor() {
+                private boolean closed;  // Guarded by the LinkTransport.
+
+                public int getLocalPort() {
+                    return port;
+                }
+
+                public Connection accept() throws IOException {
+                    synchronized (LinkTransport.this) {
+                        while (inbound.isEmpty()) {
+                            if (closed || inboundClosed)
+                                throw new AsynchronousCloseException();
+                            try {
+                                LinkTransport.this.wait();
+                            }
+                            catch (InterruptedException e) {
+                                throw new AsynchronousCloseException();
+                            }
+                        }
+                        return inbound.poll();
+                    }
+                }
+
+                public boolean isOpen() {
+                    synchronized (LinkTransport.this) {
+                        return !closed;
+                    }
+                }
+
+                public void close() {
+                    synchronized (LinkTransport.this) {
+                        closed = true;
+                        LinkTransport.this.notifyAll();
+                    }
+                }
+            };
+        }
+
+        public Connection open() throws IOException {
+            return new IntroducedConnection(transport.open());
+        }
+
+        public String describe() {
+            return "federation link over " + transport.describe();
+        }
+
+    } // end nested class LinkTransport
+
+
+    /**
+     * A connection that sends this node's name as soon as it connects.
+     */
+    private final class IntroducedConnection implements C2W_Transport.Connection {
+
+        private final C2W_Transport.Connection connection;
+
+        IntroducedConnection(C2W_Transport.Connection connection) {
+            this.connection = connection;
+        }
+
+        public void connect(String host, int port) throws IOException {
+            connection.connect(host, port);
+            ByteBuffer preamble = ByteBuffer.wrap((LINK_PREAMBLE + self.name + "\n").getBytes(StandardCharsets.UTF_8));
+            while (preamble.hasRemaining())
+                connection.write(preamble);
+        }
+
+        public void setReadTimeout(int millis) throws IOException {
+            connection.setReadTimeout(millis);
+        }
+
+        public String describeRemote() throws IOException {
+            return connection.describeRemote();
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return connection.read(dst);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return connection.write(src);
+        }
+
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            return connection.transferFrom(file, position, count);
+        }
+
+        public boolean isOpen() {
+            return connection.isOpen();
+        }
+
+        public void close() throws IOException {
+            connection.close();
+        }
+
+    } // end nested class IntroducedConnection
+
+
+    private static void closeQuietly(C2W_Transport.Connection connection) {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+}
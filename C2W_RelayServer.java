@@ -0,0 +1,1177 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.net.ssl.SSLContext;
+
+
+/**
+ * A chat relay that can serve many GUIChat peers at the same time.  Unlike
+ * the listening mode of C2W_ConnectionHandler, which accepts exactly
+ * one connection and uses a blocking thread for it, the relay accepts any
+ * number of connections and multiplexes them over a small, fixed set of
+ * event-loop threads.  Each event loop owns a java.nio Selector and the
+ * clients that were assigned to it.  The wire protocol is the same line
+ * protocol that is used by C2W_ConnectionHandler, so ordinary GUIChat
+ * windows can connect to a relay with the "Connect to:" button.
+ *
+ * <p>Rooms:  The relay hosts any number of named chat rooms.  A client can
+ * subscribe to several rooms; every line that it sends goes to its current
+ * room (the one it joined last), and is delivered to every other subscriber
+ * of that room.  Each client starts in the default room, whose name is
+ * given by the system property "c2w.relay.defaultRoom" ("lobby" if it is
+ * not set; if it is set to an empty string, clients start in no room).
+ * Lines that start with a slash are commands to the relay:
+ * <pre>
+ *     /join ROOM         subscribe to a room, and make it the current room
+ *     /leave [ROOM]      unsubscribe from a room (by default, the current one)
+ *     /to ROOM TEXT      send one line to a room, without changing rooms
+ *     /rooms             list the rooms and the number of subscribers of each
+ *     /nodes             list the nodes of the relay's federation, if it has one
+ * </pre>
+ * Other lines that start with a slash are sent as ordinary messages.  A
+ * message in the default room is delivered exactly as it was received, so a
+ * relay that only uses the default room behaves like a single chat room; a
+ * message in any other room is delivered as "[ROOM] TEXT".  The relay's
+ * replies to commands start with "***".
+ *
+ * <p>Routing:  The rooms are kept in a concurrent index that records, for
+ * each room, how many of its subscribers belong to each event loop, while
+ * each event loop keeps the lists of its own subscribers.  A message is
+ * encoded once, into a reference-counted C2W_BufferPool.Message that is
+ * shared by all recipients, and is handed only to the event loops that
+ * have subscribers in the room.  Each recipient's write queue holds a
+ * reference until the message has been written to it, and the last one
+ * gives the buffer back to the pool.  The read buffers of the clients come
+ * from the pool too, so the relay does not allocate memory for the data
+ * that passes through it, and a message is only decoded into a String if
+ * there is a Listener to give it to.
+ * Each client has its own write queue, which is limited to a number of
+ * bytes given by the system property "c2w.relay.maxQueuedBytes".  When a
+ * message would take a client's queue over the limit, the property
+ * "c2w.relay.slowClient" says what happens:  with "drop" (the default), the
+ * message is not delivered to that client, which is told how many messages
+ * it missed once it catches up; with "disconnect", the client is
+ * disconnected.  Either way, a stalled client can't hold back a room or
+ * make the relay use unlimited memory.
+ *
+ * <p>If the system property "c2w.tls" is "true", as it must be for the
+ * GUIChat windows that connect, every client is served over TLS, with the
+ * keys given by C2W_TlsChannel.defaultContext().  The TLS channels run in
+ * the same non-blocking event loops; a client's messages are queued until
+ * its handshake is complete.
+ *
+ * <p>Several relays can serve the same rooms as the nodes of a
+ * C2W_RelayFederation, which forwards the messages of each node's clients
+ * to the others.  A client can connect to any node, and the command
+ * "/nodes" lists the nodes and tells which of them are linked to the one
+ * it is connected to.
+ *
+ * <p>The relay can be run without a GUI:
+ * <pre>
+ *     java C2W_RelayServer [port [eventLoops]]
+ * </pre>
+ * If the system property "c2w.relay.members" is set, the relay is a node
+ * of the federation that it describes (see C2W_RelayFederation), and the
+ * port, if it is not given, is the client port of the node named by
+ * "c2w.relay.node".  For example, three nodes on one computer:
+ * <pre>
+ *     java -Dc2w.relay.members=a=localhost:1501:1601,b=localhost:1502:1602,c=localhost:1503:1603 -Dc2w.relay.node=a C2W_RelayServer
+ *     java -Dc2w.relay.members=a=localhost:1501:1601,b=localhost:1502:1602,c=localhost:1503:1603 -Dc2w.relay.node=b C2W_RelayServer
+ *     java -Dc2w.relay.members=a=localhost:1501:1601,b=localhost:1502:1602,c=localhost:1503:1603 -Dc2w.relay.node=c C2W_RelayServer
+ * </pre>
+ */
+public class C2W_RelayServer {
+
+    /**
+     * Receives notification of events on the relay.  The methods are called
+     * from the relay's own threads, not from the JavaFX application thread.
+     */
+    public interface Listener {
+        void clientConnected(int clientId, String address);
+        /**
+         * Called when a client sends a message to a room.
+         */
+        void lineReceived(int clientId, String room, String line);
+        void clientDisconnected(int clientId);
+        void relayClosed(Exception error);
+        /**
+         * Called when a client joins or leaves a room with a command.
+         * (Clients that disconnect leave their rooms without a call to this
+         * method.)
+         */
+        default void roomChanged(int clientId, String room, boolean joined) {
+        }
+        /**
+         * Called when a message arrives from another node of the relay's
+         * C2W_RelayFederation, after it has been delivered to this relay's
+         * clients.  The room is null for a message to every client.
+         */
+        default void remoteLineReceived(String node, String room, String line) {
+        }
+    }
+
+    /**
+     * What happens to a message that would take a client's write queue
+     * over its limit.
+     */
+    public enum SlowClientPolicy { DROP, DISCONNECT }
+
+    /**
+     * Lines longer than this (in bytes) are not relayed; a client that sends
+     * one is disconnected, since it is not following the line protocol.
+     */
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    /**
+     * Size of the buffer that each client uses for reading.
+     */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The longest allowed room name.  Room names can't contain white space
+     * or square brackets.
+     */
+    private static final int MAX_ROOM_NAME = 64;
+
+    /**
+     * The largest number of rooms that one client can subscribe to.
+     */
+    private static final int MAX_ROOMS_PER_CLIENT = 64;
+
+    /**
+     * The largest number of queued buffers that are written to a client with
+     * a single gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The longest pause, in milliseconds, after accept() fails, before the
+     * relay tries again.
+     */
+    private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+
+    private final int port;
+    private final Listener listener;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextClientId = new AtomicInteger(1);
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private final C2W_Metrics metrics;
+    private final ConcurrentHashMap<String,Room> rooms = new ConcurrentHashMap<>();
+    private final String defaultRoom;
+    private final long maxQueuedBytes;
+    private final SlowClientPolicy slowClientPolicy;
+    private final boolean tls;
+    private SSLContext tlsContext;  // Set by start(), if tls is true.
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+    private volatile C2W_RelayFederation federation;  // Null unless the relay is a node of one.
+    private Thread acceptor;
+
+    /**
+     * Create a relay that will listen on the specified port.  No network
+     * operations are performed until start() is called.
+     * @param port the port on which to listen for connections
+     * @param eventLoops number of threads used to service connected clients
+     * @param listener receives notification of relay events; can be null
+     */
+    public C2W_RelayServer(int port, int eventLoops, Listener listener) {
+        this(port, eventLoops, listener, C2W_Metrics.global());
+    }
+
+    /**
+     * Create a relay that records its metrics somewhere other than in the
+     * global metrics.
+     * @throws IllegalArgumentException if one of the relay's system properties
+     *    has an illegal value
+     */
+    public C2W_RelayServer(int port, int eventLoops, Listener listener, C2W_Metrics metrics) {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("eventLoops must be positive");
+        this.port = port;
+        this.listener = listener;
+        this.loops = new EventLoop[eventLoops];
+        this.metrics = metrics;
+        String room = System.getProperty("c2w.relay.defaultRoom", "lobby").trim();
+        if (!room.isEmpty() && !isRoomName(room))
+            throw new IllegalArgumentException("Illegal room name for c2w.relay.defaultRoom: " + room);
+        this.defaultRoom = room.isEmpty() ? null : room;
+        this.maxQueuedBytes = Long.getLong("c2w.relay.maxQueuedBytes", C2W_OutboundQueue.DEFAULT_HIGH_WATER_BYTES);
+        String policy = System.getProperty("c2w.relay.slowClient", "drop");
+        try {
+            this.slowClientPolicy = SlowClientPolicy.valueOf(policy.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("c2w.relay.slowClient must be drop or disconnect, not " + policy);
+        }
+        this.tls = Boolean.getBoolean("c2w.tls");
+    }
+
+    /**
+     * Returns a reasonable default for the number of event loops, based
+     * on the number of available processors.
+     */
+    public static int defaultEventLoops() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Open the server socket and start the acceptor and event-loop threads.
+     * @throws IOException if the server socket cannot be opened, or if TLS
+     *    is used and its keys cannot be loaded
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null)
+            throw new IllegalStateException("Relay already started");
+        if (tls)
+            tlsContext = C2W_TlsChannel.defaultContext();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        acceptor = new Thread(this::acceptLoop, "C2W-relay-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port that the relay is actually listening on.  (This can
+     * differ from the requested port if the requested port was 0.)
+     */
+    public int getLocalPort() {
+        try {
+            SocketAddress address = serverChannel.getLocalAddress();
+            return ((InetSocketAddress)address).getPort();
+        }
+        catch (Exception e) {
+            return port;
+        }
+    }
+
+    /**
+     * Returns the number of clients that are currently connected.
+     */
+    public int getClientCount() {
+        return clientCount.get();
+    }
+
+    /**
+     * Returns the name of the room that clients start in, or null if
+     * they start in no room.
+     */
+    public String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * Returns the names of the rooms that have at least one subscriber,
+     * in alphabetical order, with the number of subscribers of each.
+     */
+    public Map<String,Integer> getRooms() {
+        Map<String,Integer> sizes = new TreeMap<>();
+        for (Room room : rooms.values()) {
+            int size = room.size();
+            if (size > 0)
+                sizes.put(room.name, size);
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the federation that the relay is a node of, or null.
+     */
+    public C2W_RelayFederation getFederation() {
+        return federation;
+    }
+
+    /**
+     * Called by C2W_RelayFederation when it starts, and with null when it
+     * is closed.
+     */
+    void setFederation(C2W_RelayFederation federation) {
+        this.federation = federation;
+    }
+
+    /**
+     * Send a line of text to every connected client, whatever rooms it is
+     * in, including the clients of the other nodes of the relay's
+     * federation.  It can be called from any thread.
+     */
+    public void broadcast(String line) {
+        broadcastLocally(line);
+        C2W_RelayFederation federation = this.federation;
+        if (federation != null)
+            federation.publish(null, line);
+    }
+
+    /**
+     * Send a line of text to every subscriber of a room, including the
+     * subscribers on the other nodes of the relay's federation.  It can be
+     * called from any thread.
+     */
+    public void publish(String room, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        fanOut(room, encode(room, bytes, bytes.length), 0);
+        C2W_RelayFederation federation = this.federation;
+        if (federation != null)
+            federation.publish(room, line);
+    }
+
+    /**
+     * Deliver a message that came from another node of the federation to
+     * this relay's own clients:  to the subscribers of a room, or to every
+     * client if room is null.  Nothing is encoded if the room has no
+     * subscribers here.
+     */
+    void deliverFromFederation(String node, String room, String line) {
+        if (room == null)
+            broadcastLocally(line);
+        else if (rooms.containsKey(room)) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            fanOut(room, encode(room, bytes, bytes.length), 0);
+        }
+        if (listener != null)
+            listener.remoteLineReceived(node, room, line);
+    }
+
+    /**
+     * Send a line of text to every client of this relay.
+     */
+    private void broadcastLocally(String line) {
+        C2W_BufferPool.Message message = encodeLine(line);
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                message.retain();
+                loop.execute( () -> {
+                    try {
+                        loop.deliver(null, message, 0);
+                    }
+                    finally {
+                        message.release();
+                    }
+                });
+            }
+        }
+        message.release();
+    }
+
+    /**
+     * Send a line that was typed into the window that is hosting the relay.
+     * "/to ROOM TEXT" sends the text to one room; any other line goes to the
+     * default room, or to every client if there is no default room.
+     */
+    public void sendFromHost(String line) {
+        String[] to = parseTo(line);
+        if (to != null)
+            publish(to[0], to[1]);
+        else if (defaultRoom != null)
+            publish(defaultRoom, line);
+        else
+            broadcast(line);
+    }
+
+    /**
+     * Close the server socket and all client connections, and stop all
+     * threads, including those of the relay's federation.  Calling this
+     * method more than once has no effect.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        C2W_RelayFederation federation = this.federation;
+        if (federation != null)
+            federation.close();
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        }
+        catch (IOException e) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null)
+                loop.shutdown();
+        }
+    }
+
+    /**
+     * Queue an encoded line for delivery to every subscriber of a room except
+     * the sender, and release the caller's reference to it.  Only the event
+     * loops that have subscribers in the room are involved.  The message is
+     * shared; each event loop holds a reference while it queues the message,
+     * and each client gets its own view, so the data is never copied per
+     * recipient.
+     */
+    private void fanOut(String roomName, C2W_BufferPool.Message message, int senderId) {
+        Room room = rooms.get(roomName);
+        for (int i = 0; room != null && i < loops.length; i++) {
+            EventLoop loop = loops[i];
+            if (loop != null && room.members.get(i) > 0) {
+                message.retain();
+                loop.execute( () -> {
+                    try {
+                        loop.deliver(roomName, message, senderId);
+                    }
+                    finally {
+                        message.release();
+                    }
+                });
+            }
+        }
+        message.release();
+    }
+
+    /**
+     * Encode a message for a room, as it will be written to every recipient,
+     * into a buffer from the pool.
+     * @param text the message, in UTF-8, without a line terminator
+     * @param length the number of bytes of text to use
+     */
+    private C2W_BufferPool.Message encode(String room, byte[] text, int length) {
+        boolean prefix = !room.equals(defaultRoom);
+        C2W_BufferPool.Message message = C2W_BufferPool.global().allocateMessage(
+                (prefix ? 3 * room.length() + 3 : 0) + length + 1);
+        ByteBuffer data = message.data();
+        if (prefix) {
+            data.put((byte)'[');
+            C2W_FrameCodec.putUtf8(data, room);
+            data.put((byte)']').put((byte)' ');
+        }
+        data.put(text, 0, length).put((byte)'\n').flip();
+        return message;
+    }
+
+    /**
+     * Encode a line of text, with a line feed, into a buffer from the pool.
+     */
+    private static C2W_BufferPool.Message encodeLine(String line) {
+        C2W_BufferPool.Message message = C2W_BufferPool.global().allocateMessage(3 * line.length() + 1);
+        ByteBuffer data = message.data();
+        C2W_FrameCodec.putUtf8(data, line);
+        data.put((byte)'\n').flip();
+        return message;
+    }
+
+    /**
+     * Tells whether a string can be used as the name of a room.
+     */
+    private static boolean isRoomName(String name) {
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (Character.isWhitespace(ch) || ch == '[' || ch == ']')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * If a line is a "/to ROOM TEXT" command, returns the room and the text;
+     * otherwise, returns null.
+     */
+    private static String[] parseTo(String line) {
+        if (!line.startsWith("/to "))
+            return null;
+        String rest = line.substring(4).trim();
+        int space = rest.indexOf(' ');
+        if (space < 0 || !isRoomName(rest.substring(0, space)))
+            return null;
+        return new String[] { rest.substring(0, space), rest.substring(space + 1) };
+    }
+
+    /**
+     * Body of the acceptor thread.  Accepted channels are assigned to the
+     * event loops in round-robin order.  A channel that fails while it is
+     * being set up is closed, and an error from accept() itself, such as
+     * running out of file descriptors, is logged and retried after a pause
+     * that grows up to MAX_ACCEPT_BACKOFF_MS; only closing the server
+     * socket ends the loop.
+     */
+    private void acceptLoop() {
+        int next = 0;
+        long backoff = 0;
+        Exception error = null;
+        try {
+            while (!closed) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                }
+                catch (ClosedChannelException e) {
+                    if (!closed && !(e instanceof AsynchronousCloseException))
+                        error = e;
+                    break;  // Expected when the relay is closed.
+                }
+                catch (IOException e) {
+                    if (closed)
+                        break;
+                    backoff = Math.min(MAX_ACCEPT_BACKOFF_MS, Math.max(10, backoff * 2));
+                    System.err.println("Relay could not accept a connection; trying again in "
+                                           + backoff + " ms: " + e);
+                    try {
+                        Thread.sleep(backoff);
+                    }
+                    catch (InterruptedException ie) {
+                        break;
+                    }
+                    continue;
+                }
+                backoff = 0;
+                metrics.accepted();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                }
+                catch (IOException e) {
+                    closeQuietly(channel);  // For example, reset by the peer already.
+                    continue;
+                }
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.execute( () -> loop.register(channel) );
+            }
+        }
+        finally {
+            close();
+            if (listener != null)
+                listener.relayClosed(error);
+        }
+    }
+
+
+    /**
+     * An entry in the index of rooms.  It only counts the subscribers of the
+     * room on each event loop; the subscribers themselves are listed by the
+     * event loops.  The counts are only changed inside rooms.compute(), so
+     * that a room is removed from the index exactly when it becomes empty,
+     * but they can be read at any time.
+     */
+    private static final class Room {
+        final String name;
+        final AtomicIntegerArray members;
+
+        Room(String name, int eventLoops) {
+            this.name = name;
+            this.members = new AtomicIntegerArray(eventLoops);
+        }
+
+        int size() {
+            int size = 0;
+            for (int i = 0; i < members.length(); i++)
+                size += members.get(i);
+            return size;
+        }
+    }
+
+
+    /**
+     * Per-client state.  A Client is only ever touched by the thread of the
+     * event loop that owns it.  The write queue holds a view of each queued
+     * message, and queuedMessages holds the references to the same messages,
+     * in the same order; both are polled together when a message has been
+     * written.
+     */
+    private static class Client {
+        final int id;
+        final SocketChannel channel;
+        final C2W_TlsChannel tls;  // Null if TLS is not used.
+        final SelectionKey key;
+        final ByteBuffer readBuffer = C2W_BufferPool.global().acquire(READ_BUFFER_SIZE);  // Released by disconnect().
+        final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        final ArrayDeque<C2W_BufferPool.Message> queuedMessages = new ArrayDeque<>();
+        final Set<String> rooms = new LinkedHashSet<>();
+        String currentRoom;
+        long queuedBytes;
+        int dropped;  // Messages not delivered since the queue was last empty.
+        byte[] partialLine = new byte[256];
+        int partialLength;
+        boolean sawFirstLine;
+        boolean handshakeRecorded;
+
+        Client(int id, SocketChannel channel, C2W_TlsChannel tls, SelectionKey key) {
+            this.id = id;
+            this.channel = channel;
+            this.tls = tls;
+            this.key = key;
+        }
+
+        int read(ByteBuffer buffer) throws IOException {
+            return tls != null ? tls.read(buffer) : channel.read(buffer);
+        }
+
+        long write(ByteBuffer[] buffers, int count) throws IOException {
+            return tls != null ? tls.write(buffers, 0, count) : channel.write(buffers, 0, count);
+        }
+
+        void appendPartial(ByteBuffer source, int count) {
+            if (partialLength + count > partialLine.length) {
+                int size = Math.max(partialLength + count, partialLine.length * 2);
+                partialLine = Arrays.copyOf(partialLine, size);
+            }
+            source.get(partialLine, partialLength, count);
+            partialLength += count;
+        }
+    }
+
+
+    /**
+     * A thread that owns a Selector and services the clients registered
+     * with it.  Work from other threads is handed to the loop through a
+     * task queue, followed by a wakeup of the selector.  Once the loop has
+     * stopped, it has no clients, and tasks only release what they hold, so
+     * execute() runs them at once, on the caller's thread.
+     */
+    private class EventLoop extends Thread {
+
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Client> clients = new ArrayList<>();
+        private final Map<String,List<Client>> members = new HashMap<>();  // This loop's subscribers, by room.
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private volatile boolean stopped;
+
+        EventLoop(int index) throws IOException {
+            super("C2W-relay-loop-" + index);
+            setDaemon(true);
+            this.index = index;
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (stopped)
+                runTasks();  // The loop won't; this releases the task's messages.
+            else
+                selector.wakeup();
+        }
+
+        void shutdown() {
+            execute( () -> {
+                for (Client client : new ArrayList<>(clients))
+                    disconnect(client);
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                }
+            });
+        }
+
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    runTasks();
+                    if (!selector.isOpen())
+                        break;
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client client = (Client)key.attachment();
+                        if (!key.isValid())
+                            continue;
+                        try {
+                            if (key.isReadable())
+                                read(client);
+                            if (key.isValid() && key.isWritable())
+                                flush(client);
+                        }
+                        catch (IOException e) {
+                            disconnect(client);
+                        }
+                    }
+                }
+            }
+            catch (ClosedSelectorException e) {
+                // The relay has been closed.
+            }
+            catch (IOException e) {
+                if (!closed)
+                    System.err.println("Relay event loop failed: " + e);
+                C2W_RelayServer.this.close();
+            }
+            stopped = true;
+            runTasks();  // Releases the messages of deliveries that were still waiting.
+        }
+
+        /**
+         * Run the queued tasks.  This is called by the loop, and, once the
+         * loop has stopped, by any thread that queues a task.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+
+        void register(SocketChannel channel) {
+            if (!selector.isOpen()) {
+                closeQuietly(channel);
+                return;
+            }
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                C2W_TlsChannel tls = tlsContext == null ? null : C2W_TlsChannel.server(channel, tlsContext);
+                Client client = new Client(nextClientId.getAndIncrement(), channel, tls, key);
+                key.attach(client);
+                clients.add(client);
+                clientCount.incrementAndGet();
+                metrics.countConnection(true);
+                if (listener != null)
+                    listener.clientConnected(client.id, String.valueOf(channel.getRemoteAddress()));
+                if (defaultRoom != null)
+                    join(client, defaultRoom);
+            }
+            catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Read whatever data is available from a client, and relay every
+         * complete line that it contains.  With TLS, this also advances the
+         * handshake, and it keeps reading while decrypted data is left over,
+         * since the selector only knows about the socket.
+         */
+        private void read(Client client) throws IOException {
+            C2W_TlsChannel tls = client.tls;
+            do {
+                if (!readOnce(client))
+                    return;
+            } while (tls != null && tls.hasBufferedInput() && client.key.isValid());
+            if (tls != null && client.key.isValid()) {
+                if (!client.handshakeRecorded && tls.isHandshakeComplete()) {
+                    client.handshakeRecorded = true;
+                    metrics.tlsHandshake(tls.getHandshakeNanos(), tls.isResumed());
+                }
+                flush(client);  // Handshake messages, and anything queued during the handshake.
+            }
+        }
+
+        /**
+         * Do one read for read(), and relay the complete lines.  Returns false
+         * if the client has disconnected.
+         */
+        private boolean readOnce(Client client) throws IOException {
+            ByteBuffer buffer = client.readBuffer;
+            int count = client.read(buffer);
+            if (count < 0) {
+                disconnect(client);
+                return false;
+            }
+            long start = System.nanoTime();
+            buffer.flip();
+            int lineStart = buffer.position();
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    buffer.position(lineStart);
+                    client.appendPartial(buffer, i + 1 - lineStart);
+                    lineComplete(client);
+                    if (!client.key.isValid())
+                        return false;  // Disconnected; the buffer is back in the pool.
+                    lineStart = i + 1;
+                }
+            }
+            buffer.position(lineStart);
+            if (buffer.hasRemaining()) {
+                if (client.partialLength + buffer.remaining() > MAX_LINE_BYTES) {
+                    disconnect(client);
+                    return false;
+                }
+                client.appendPartial(buffer, buffer.remaining());
+            }
+            buffer.clear();
+            metrics.readLoop(System.nanoTime() - start);
+            return true;
+        }
+
+        /**
+         * Called when the partial-line buffer of a client holds one complete
+         * line, including its terminating line feed.
+         */
+        private void lineComplete(Client client) {
+            int length = client.partialLength;
+            client.partialLength = 0;
+            metrics.received(1, length);
+            if (length > MAX_LINE_BYTES) {
+                disconnect(client);
+                return;
+            }
+            int end = length - 1;
+            if (end > 0 && client.partialLine[end - 1] == '\r')
+                end--;
+            if (!client.sawFirstLine) {
+                client.sawFirstLine = true;
+                String first = new String(client.partialLine, 0, end, StandardCharsets.UTF_8);
+                if (C2W_FrameCodec.isHello(first)) {
+                        // A newer peer is offering the framing protocol.  The
+                        // relay only speaks the line protocol, and says so.
+                    C2W_BufferPool.Message reply = encodeLine(C2W_FrameCodec.LINE_HELLO_LINE);
+                    deliverTo(client, reply);
+                    reply.release();
+                    return;
+                }
+            }
+            String room = client.currentRoom;
+            if (end > 0 && client.partialLine[0] == '/') {
+                String text = new String(client.partialLine, 0, end, StandardCharsets.UTF_8);
+                if (command(client, text))
+                    return;
+            }
+            if (room == null) {
+                notice(client, "YOU ARE NOT IN A ROOM; USE /join ROOM");
+                return;
+            }
+            fanOut(room, encode(room, client.partialLine, end), client.id);
+            C2W_RelayFederation federation = C2W_RelayServer.this.federation;
+            if (listener != null || federation != null) {
+                String text = new String(client.partialLine, 0, end, StandardCharsets.UTF_8);
+                if (federation != null)
+                    federation.publish(room, text);
+                if (listener != null)
+                    listener.lineReceived(client.id, room, text);
+            }
+        }
+
+        /**
+         * Carry out a command from a client.  Returns false if the line is not
+         * a command, so that it should be sent as an ordinary message.
+         */
+        private boolean command(Client client, String line) {
+            String[] words = line.trim().split("\\s+", 2);
+            String argument = words.length > 1 ? words[1].trim() : "";
+            switch (words[0]) {
+            case "/join":
+                if (!isRoomName(argument))
+                    notice(client, "ILLEGAL ROOM NAME: " + argument);
+                else if (!client.rooms.contains(argument) && client.rooms.size() >= MAX_ROOMS_PER_CLIENT)
+                    notice(client, "YOU CAN'T BE IN MORE THAN " + MAX_ROOMS_PER_CLIENT + " ROOMS");
+                else {
+                    join(client, argument);
+                    Room room = rooms.get(argument);
+                    notice(client, "JOINED ROOM " + argument + "; " + (room == null ? 1 : room.size()) + " MEMBERS");
+                    if (listener != null)
+                        listener.roomChanged(client.id, argument, true);
+                }
+                return true;
+            case "/leave":
+                String name = argument.isEmpty() ? client.currentRoom : argument;
+                if (name == null || !client.rooms.contains(name))
+                    notice(client, "YOU ARE NOT IN ROOM " + (name == null ? "" : name));
+                else {
+                    leave(client, name);
+                    notice(client, "LEFT ROOM " + name + (client.currentRoom == null ? ""
+                                                              : "; NOW IN ROOM " + client.currentRoom));
+                    if (listener != null)
+                        listener.roomChanged(client.id, name, false);
+                }
+                return true;
+            case "/to":
+                String[] to = parseTo(line.trim());
+                if (to == null)
+                    notice(client, "USE /to ROOM TEXT");
+                else {
+                    byte[] text = to[1].getBytes(StandardCharsets.UTF_8);
+                    fanOut(to[0], encode(to[0], text, text.length), client.id);
+                    C2W_RelayFederation federation = C2W_RelayServer.this.federation;
+                    if (federation != null)
+                        federation.publish(to[0], to[1]);
+                    if (listener != null)
+                        listener.lineReceived(client.id, to[0], to[1]);
+                }
+                return true;
+            case "/rooms":
+                StringBuilder list = new StringBuilder("ROOMS:");
+                int count = 0;
+                Map<String,Integer> sizes = getRooms();
+                for (Map.Entry<String,Integer> room : sizes.entrySet()) {
+                    if (count++ == 50) {
+                        list.append(" AND ").append(sizes.size() - 50).append(" MORE");
+                        break;
+                    }
+                    list.append(count == 1 ? " " : ", ").append(room.getKey())
+                        .append(" (").append(room.getValue()).append(')');
+                }
+                notice(client, count == 0 ? "NO ROOMS" : list.toString());
+                return true;
+            case "/nodes":
+                C2W_RelayFederation federation = C2W_RelayServer.this.federation;
+                notice(client, federation == null ? "THIS RELAY IS NOT PART OF A FEDERATION"
+                                                  : "NODES: " + federation.describeMembers());
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Send a reply from the relay to one client.
+         */
+        private void notice(Client client, String text) {
+            C2W_BufferPool.Message message = encodeLine("*** " + text);
+            deliverTo(client, message);
+            message.release();
+        }
+
+        /**
+         * Subscribe a client to a room, and make it the current room.
+         */
+        private void join(Client client, String name) {
+            client.currentRoom = name;
+            if (!client.rooms.add(name))
+                return;
+            members.computeIfAbsent(name, k -> new ArrayList<>()).add(client);
+            rooms.compute(name, (key, room) -> {
+                if (room == null)
+                    room = new Room(key, loops.length);
+                room.members.incrementAndGet(index);
+                return room;
+            });
+        }
+
+        /**
+         * Unsubscribe a client from a room.  If it was the current room, the
+         * room that the client joined most recently becomes current.
+         */
+        private void leave(Client client, String name) {
+            if (!client.rooms.remove(name))
+                return;
+            List<Client> list = members.get(name);
+            list.remove(client);
+            if (list.isEmpty())
+                members.remove(name);
+            rooms.computeIfPresent(name, (key, room) -> {
+                room.members.decrementAndGet(index);
+                return room.size() == 0 ? null : room;
+            });
+            if (name.equals(client.currentRoom)) {
+                client.currentRoom = null;
+                for (String room : client.rooms)
+                    client.currentRoom = room;
+            }
+        }
+
+        /**
+         * Queue a shared buffer for every subscriber of a room on this loop,
+         * or for every client of this loop if the room is null, except the
+         * client that sent it.
+         */
+        void deliver(String room, C2W_BufferPool.Message message, int senderId) {
+            List<Client> list = room == null ? clients : members.get(room);
+            if (list == null)
+                return;
+            for (int i = 0; i < list.size(); i++) {
+                Client client = list.get(i);
+                if (client.id != senderId && !deliverTo(client, message))
+                    i--;  // The client was disconnected and removed from the list.
+            }
+        }
+
+        /**
+         * Queue a message for one client, and start writing it if nothing was
+         * queued before.  The client's queue takes a reference of its own; the
+         * caller keeps its reference.  If the client's queue is full, the
+         * message is dropped or the client is disconnected, depending on
+         * slowClientPolicy.  Returns false if the client had to be
+         * disconnected.
+         */
+        private boolean deliverTo(Client client, C2W_BufferPool.Message message) {
+            int size = message.length();
+            if (client.queuedBytes > 0 && client.queuedBytes + size > maxQueuedBytes) {
+                metrics.sendRefused();
+                if (slowClientPolicy == SlowClientPolicy.DISCONNECT) {
+                    disconnect(client);
+                    return false;
+                }
+                client.dropped++;
+                return true;
+            }
+            boolean wasEmpty = client.writeQueue.isEmpty();
+            client.writeQueue.add(message.view());
+            client.queuedMessages.add(message.retain());
+            client.queuedBytes += size;
+            metrics.sent(1, size);
+            if (wasEmpty) {
+                try {
+                    flush(client);
+                }
+                catch (IOException e) {
+                    disconnect(client);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Write as much queued data as the socket will accept, with gathering
+         * writes of up to MAX_GATHER buffers.  If some data remains, register
+         * interest in OP_WRITE so that writing resumes when the socket is
+         * ready.  When the queue is emptied after messages were dropped, the
+         * client is told how many it missed.  With TLS, encrypted data that
+         * the socket did not take goes out first, and nothing is written
+         * until the handshake is complete.
+         */
+        private void flush(Client client) throws IOException {
+            ArrayDeque<ByteBuffer> queue = client.writeQueue;
+            C2W_TlsChannel tls = client.tls;
+            if (tls != null && (!tls.flush() || !tls.isHandshakeComplete())) {
+                setInterest(client, tls.hasPendingOutput());
+                return;
+            }
+            while (!queue.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : queue) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER)
+                        break;
+                }
+                client.queuedBytes -= client.write(gather, count);
+                boolean full = gather[count - 1].hasRemaining() || tls != null && tls.hasPendingOutput();
+                Arrays.fill(gather, 0, count, null);
+                while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                    queue.poll();
+                    client.queuedMessages.poll().release();
+                }
+                if (full)
+                    break;
+                if (queue.isEmpty() && client.dropped > 0) {
+                    C2W_BufferPool.Message notice = encodeLine(
+                            "*** " + client.dropped + " MESSAGES WERE DROPPED BECAUSE YOUR CONNECTION IS TOO SLOW");
+                    client.dropped = 0;
+                    queue.add(notice.view());
+                    client.queuedMessages.add(notice);  // The queue takes over the reference.
+                    client.queuedBytes += notice.length();
+                }
+            }
+            setInterest(client, !queue.isEmpty() || tls != null && tls.hasPendingOutput());
+        }
+
+        private void setInterest(Client client, boolean write) {
+            if (client.key.isValid()) {
+                int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if (client.key.interestOps() != ops)
+                    client.key.interestOps(ops);
+            }
+        }
+
+        private void disconnect(Client client) {
+            if (!clients.remove(client))
+                return;
+            for (String room : new ArrayList<>(client.rooms))
+                leave(client, room);
+            clientCount.decrementAndGet();
+            metrics.countConnection(false);
+            client.key.cancel();
+            closeQuietly(client.tls != null ? client.tls : client.channel);
+            client.writeQueue.clear();
+            for (C2W_BufferPool.Message message : client.queuedMessages)
+                message.release();
+            client.queuedMessages.clear();
+            client.queuedBytes = 0;
+            C2W_BufferPool.global().release(client.readBuffer);
+            if (listener != null)
+                listener.clientDisconnected(client.id);
+        }
+
+    } // end nested class EventLoop
+
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+        }
+    }
+
+
+    /**
+     * Run a relay without a GUI.  Command-line arguments are an optional
+     * port number and an optional number of event loops.  If the system
+     * properties describe a federation, the relay joins it.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 1501;
+        String members = System.getProperty("c2w.relay.members");
+        if (members != null && !members.trim().isEmpty()) {
+            for (C2W_RelayFederation.Member member : C2W_RelayFederation.parseMembers(members)) {
+                if (member.getName().equals(System.getProperty("c2w.relay.node", "").trim()))
+                    port = member.getClientPort();
+            }
+        }
+        if (args.length > 0)
+            port = Integer.parseInt(args[0]);
+        int eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : defaultEventLoops();
+        C2W_RelayServer relay = new C2W_RelayServer(port, eventLoops, new Listener() {
+            public void clientConnected(int clientId, String address) {
+                System.out.println("CLIENT #" + clientId + " CONNECTED FROM " + address);
+                if (clientId == 1)
+                    System.out.printf("FIRST CLIENT ACCEPTED %.1f MS AFTER START%n",
+                                      C2W_Metrics.global().getTimeToFirstAcceptMillis());
+            }
+            public void lineReceived(int clientId, String room, String line) {
+            }
+            public void clientDisconnected(int clientId) {
+                System.out.println("CLIENT #" + clientId + " DISCONNECTED");
+            }
+            public void relayClosed(Exception error) {
+                if (error != null)
+                    System.out.println("RELAY CLOSED:  " + error);
+            }
+        });
+        relay.start();
+        System.out.println("RELAY LISTENING ON PORT " + relay.getLocalPort()
+                               + " WITH " + eventLoops + " EVENT LOOPS, "
+                               + String.format("%.1f", C2W_Metrics.millisSinceStart()) + " MS AFTER START");
+        C2W_RelayFederation federation = C2W_RelayFederation.fromSystemProperties(relay);
+        if (federation != null) {
+            federation.start();
+            System.out.println("FEDERATION NODE " + federation.getSelf().getName() + " ACCEPTING LINKS ON PORT "
+                                   + federation.getSelf().getLinkPort() + "; NODES: " + federation.describeMembers());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(relay::close));
+        try {
+            Thread.currentThread().join();
+        }
+        catch (InterruptedException e) {
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The messages that have been sent on a resumable session, but that the
+ * other side has not yet acknowledged.  C2W_ConnectionHandler adds each
+ * chat message to the buffer as it writes it, with the message's sequence
+ * number, and removes messages when the other side acknowledges them with
+ * a TYPE_ACK frame.  If the socket is lost, the handler opens a new one,
+ * and the two sides exchange the sequence numbers of the last frames that
+ * they received; the messages in the buffer that come after that number
+ * are sent again, and nothing else is.
+ *
+ * <p>The buffer holds messages in order of sequence number, and is limited
+ * both in the number of messages and in their total size.  When it is full,
+ * the oldest message is dropped.  (That only happens if the other side does
+ * not acknowledge messages for a long time.)  The highest sequence number
+ * that was dropped is remembered, so that the handler can tell when a
+ * resumed session has lost messages.  All methods are synchronized, since
+ * the buffer is used by the writer and reader threads of the connection.
+ */
+public class C2W_RetransmitBuffer {
+
+    /**
+     * A message in the buffer.
+     */
+    public static final class Entry {
+
+        final long sequence;
+        final long timestamp;
+        final String text;
+
+        Entry(long sequence, long timestamp, String text) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+    } // end nested class Entry
+
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int maxMessages;
+    private final long maxChars;
+    private long chars;
+    private long droppedThrough = -1;
+
+    /**
+     * @param maxMessages the largest number of messages that are kept
+     * @param maxChars the largest total length of the messages that are kept
+     */
+    public C2W_RetransmitBuffer(int maxMessages, long maxChars) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Add a message that is being sent.  Sequence numbers must increase.
+     */
+    public synchronized void add(long sequence, long timestamp, String text) {
+        entries.addLast(new Entry(sequence, timestamp, text));
+        chars += text.length();
+        while (entries.size() > maxMessages || (chars > maxChars && entries.size() > 1)) {
+            Entry dropped = entries.removeFirst();
+            chars -= dropped.text.length();
+            droppedThrough = dropped.sequence;
+        }
+    }
+
+    /**
+     * Remove the messages up to and including a sequence number, which the
+     * other side has received.
+     */
+    public synchronized void acknowledge(long sequence) {
+        while (!entries.isEmpty() && entries.peekFirst().sequence <= sequence)
+            chars -= entries.removeFirst().text.length();
+    }
+
+    /**
+     * Remove and return the messages that come after a sequence number, in
+     * order, to be sent again; the buffer is then empty.  As they are sent,
+     * they are added again.
+     */
+    public synchronized List<Entry> takeAfter(long sequence) {
+        acknowledge(sequence);
+        List<Entry> after = new ArrayList<>(entries);
+        entries.clear();
+        chars = 0;
+        return after;
+    }
+
+    /**
+     * Tells whether a message that comes after a sequence number was
+     * dropped because the buffer was full, so that it can't be sent again.
+     */
+    public synchronized boolean lostAfter(long sequence) {
+        return droppedThrough > sequence;
+    }
+
+    /**
+     * Remove all messages, for a session that could not be resumed.
+     * @return the number of messages that were removed
+     */
+    public synchronized int clear() {
+        int count = entries.size();
+        entries.clear();
+        chars = 0;
+        droppedThrough = -1;
+        return count;
+    }
+
+    /**
+     * Returns the number of messages in the buffer.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
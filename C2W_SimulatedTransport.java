@@ -0,0 +1,699 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A C2W_Transport that imitates a network inside one program, so that the
+ * connection logic can be tested under bad network conditions on a single
+ * machine, without root access or traffic shaping.  Connections only reach
+ * Acceptors of the same C2W_SimulatedTransport object; the host name given
+ * to connect() is ignored.  The data that is written to one end of a
+ * connection is cut into packets, which arrive at the other end after a
+ * delay made up of:
+ * <ul>
+ * <li>the time to send the packet at the connection's bandwidth, after the
+ *     packets that are already being sent (a bandwidth cap);
+ * <li>a fixed latency, plus a random jitter;
+ * <li>the rest of a stall, if the packet would arrive while the connection
+ *     is stalled.  During a stall nothing arrives, in either direction.
+ * </ul>
+ * Packets always arrive in order, as on a TCP connection.  Each direction
+ * has a buffer:  write() blocks while the bytes that have been written but
+ * not read reach its size, so a slow link or a slow reader pushes back on
+ * the writer, as a full socket buffer does.
+ *
+ * <p>A connection can also be cut.  With a reset, both ends fail on their
+ * next read or write, and the data in flight is lost.  With a blackhole,
+ * nothing more arrives and no error is reported, so the loss can only be
+ * noticed by a timeout, as when a network path silently goes away.
+ *
+ * <p>Everything random, the jitter of each packet and the times of stalls
+ * and disconnects, comes from generators seeded from the Scenario's seed
+ * and the number of the connection (1 for the first connection that is
+ * opened, and so on).  So a connection sees the same conditions each time
+ * that a scenario is run, and a problem that a scenario brings out can be
+ * brought out again.  (The threads that use the connections still run at
+ * the speed of the machine, so the interleaving of events is not exactly
+ * the same from run to run.)
+ */
+public class C2W_SimulatedTransport implements C2W_Transport {
+
+    /**
+     * The conditions of the simulated network.  A scenario is normally
+     * read from a file with load(), in the format of a Properties file,
+     * for example:
+     * <pre>
+     *     # A poor mobile link that drops now and then.
+     *     seed=42
+     *     latencyMs=60
+     *     jitterMs=40
+     *     bandwidthBytesPerSecond=131072
+     *     packetBytes=1400
+     *     bufferBytes=65536
+     *     stallIntervalMs=4000
+     *     stallMs=1500
+     *     disconnectIntervalMs=15000
+     *     disconnect=reset
+     * </pre>
+     * Each property is a field of this class; fields that are not in the
+     * file keep their default values, which describe a perfect network.
+     * Intervals are means:  the time from one stall or disconnect to the
+     * next is random, with an exponential distribution.
+     */
+    public static class Scenario {
+
+        /**
+         * The seed of every random choice.
+         */
+        public long seed = 1;
+
+        /**
+         * The delay of every packet, in milliseconds.
+         */
+        public int latencyMs;
+
+        /**
+         * The largest extra delay of a packet, in milliseconds.  Each packet
+         * gets a random extra delay from 0 to this.
+         */
+        public int jitterMs;
+
+        /**
+         * The bandwidth of each direction of a connection.  0 means no limit.
+         */
+        public long bandwidthBytesPerSecond;
+
+        /**
+         * The largest size of a packet.  Writes are cut into packets of at
+         * most this size, and a read can return part of a message.
+         */
+        public int packetBytes = 1460;
+
+        /**
+         * The number of bytes that can be written to one direction of a
+         * connection and not yet read, before write() blocks.
+         */
+        public int bufferBytes = 256 * 1024;
+
+        /**
+         * The mean time between stalls, in milliseconds.  0 means no stalls.
+         */
+        public long stallIntervalMs;
+
+        /**
+         * How long a stall lasts, in milliseconds.
+         */
+        public long stallMs;
+
+        /**
+         * The mean time from the opening of a connection to its disconnect,
+         * in milliseconds.  0 means that connections are never cut.
+         */
+        public long disconnectIntervalMs;
+
+        /**
+         * True if disconnects are blackholes; false if they are resets.
+         */
+        public boolean blackhole;
+
+        /**
+         * Read a scenario from a file.
+         * @throws IllegalArgumentException if a property is unknown or its
+         *    value is not valid
+         */
+        public static Scenario load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(in);
+            }
+            return fromProperties(properties);
+        }
+
+        /**
+         * Make a scenario from properties with the names of its fields.
+         * The property "disconnect" can be "reset" or "blackhole".
+         * @throws IllegalArgumentException if a property is unknown or its
+         *    value is not valid
+         */
+        public static Scenario fromProperties(Properties properties) {
+            Scenario scenario = new Scenario();
+            for (String name : properties.stringPropertyNames()) {
+                String value = properties.getProperty(name).trim();
+                try {
+                    switch (name) {
+                        case "seed": scenario.seed = Long.parseLong(value); break;
+                        case "latencyMs": scenario.latencyMs = Integer.parseInt(value); break;
+                        case "jitterMs": scenario.jitterMs = Integer.parseInt(value); break;
+                        case "bandwidthBytesPerSecond": scenario.bandwidthBytesPerSecond = Long.parseLong(value); break;
+                        case "packetBytes": scenario.packetBytes = Integer.parseInt(value); break;
+                        case "bufferBytes": scenario.bufferBytes = Integer.parseInt(value); break;
+                        case "stallIntervalMs": scenario.stallIntervalMs = Long.parseLong(value); break;
+                        case "stallMs": scenario.stallMs = Long.parseLong(value); break;
+                        case "disconnectIntervalMs": scenario.disconnectIntervalMs = Long.parseLong(value); break;
+                        case "disconnect":
+                            if (!value.equals("reset") && !value.equals("blackhole"))
+                                throw new IllegalArgumentException("disconnect must be reset or blackhole");
+                            scenario.blackhole = value.equals("blackhole");
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown scenario property: " + name);
+                    }
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Scenario property " + name + " is not a number: " + value);
+                }
+            }
+            if (scenario.packetBytes <= 0 || scenario.bufferBytes <= 0 || scenario.latencyMs < 0
+                    || scenario.jitterMs < 0 || scenario.bandwidthBytesPerSecond < 0 || scenario.stallMs < 0
+                    || scenario.stallIntervalMs < 0 || scenario.disconnectIntervalMs < 0)
+                throw new IllegalArgumentException("Scenario sizes and times must not be negative, "
+                                                       + "and packetBytes and bufferBytes must be positive");
+            return scenario;
+        }
+
+        /**
+         * Returns a one-line summary, for reports.
+         */
+        public String describe() {
+            StringBuilder b = new StringBuilder();
+            b.append("latency ").append(latencyMs).append("ms");
+            if (jitterMs > 0)
+                b.append(" +0-").append(jitterMs).append("ms");
+            b.append(", bandwidth ")
+             .append(bandwidthBytesPerSecond > 0 ? bandwidthBytesPerSecond / 1024 + " KB/s" : "unlimited");
+            b.append(", packets ").append(packetBytes).append(" B, buffer ").append(bufferBytes / 1024).append(" KB");
+            if (stallIntervalMs > 0)
+                b.append(", stalls of ").append(stallMs).append("ms every ~").append(stallIntervalMs).append("ms");
+            if (disconnectIntervalMs > 0)
+                b.append(", ").append(blackhole ? "blackholes" : "resets")
+                 .append(" every ~").append(disconnectIntervalMs).append("ms");
+            return b.append(", seed ").append(seed).toString();
+        }
+
+    } // end nested class Scenario
+
+    private static final int FIRST_PORT = 20000;
+
+    private final Scenario scenario;
+    private final Map<Integer,SimulatedAcceptor> acceptors = new HashMap<>();  // Guarded by itself.
+    private int nextPort = FIRST_PORT;  // Guarded by acceptors.
+    private final AtomicInteger links = new AtomicInteger();
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    public C2W_SimulatedTransport(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    public Acceptor listen(int port) throws IOException {
+        synchronized (acceptors) {
+            if (port == 0) {
+                while (acceptors.containsKey(nextPort))
+                    nextPort++;
+                port = nextPort++;
+            }
+            else if (acceptors.containsKey(port)) {
+                throw new BindException("Address already in use (simulated port " + port + ")");
+            }
+            SimulatedAcceptor acceptor = new SimulatedAcceptor(port);
+            acceptors.put(port, acceptor);
+            return acceptor;
+        }
+    }
+
+    public Connection open() {
+        return new Endpoint();
+    }
+
+    public String describe() {
+        return "simulated (" + scenario.describe() + ")";
+    }
+
+    /**
+     * Returns what has happened on the simulated network so far, in one
+     * line, for reports.
+     */
+    public String describeStats() {
+        return String.format("%d connections, %,d packets (%,d bytes), %d stalls, %d %s",
+                             links.get(), packets.sum(), bytes.sum(), stalls.sum(), disconnects.sum(),
+                             scenario.blackhole ? "blackholes" : "resets");
+    }
+
+    /**
+     * Returns the number of connections that have been opened.
+     */
+    public int getConnections() {
+        return links.get();
+    }
+
+    /**
+     * Returns the number of stalls that delayed at least one packet.
+     */
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    /**
+     * Returns the number of connections that have been cut.
+     */
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    /**
+     * Returns an exponentially distributed random time with the specified
+     * mean.
+     */
+    private static long exponential(Random random, long meanNanos) {
+        return (long)(-Math.log(1 - random.nextDouble()) * meanNanos);
+    }
+
+    /**
+     * Wait on an object's monitor until a specified System.nanoTime(), or
+     * until it is notified.  The caller holds the monitor.
+     */
+    private static void waitUntil(Object monitor, long deadline) throws IOException {
+        long nanos = deadline - System.nanoTime();
+        if (nanos <= 0)
+            return;
+        try {
+            if (nanos >= TimeUnit.DAYS.toNanos(1))
+                monitor.wait();
+            else
+                TimeUnit.NANOSECONDS.timedWait(monitor, nanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the simulated network");
+        }
+    }
+
+
+    /**
+     * A listening port.  Connections wait in a queue until accept() takes
+     * them.
+     */
+    private final class SimulatedAcceptor implements Acceptor {
+
+        private final int port;
+        private final ArrayDeque<Endpoint> pending = new ArrayDeque<>();
+        private boolean closed;
+
+        SimulatedAcceptor(int port) {
+            this.port = port;
+        }
+
+        public int getLocalPort() {
+            return port;
+        }
+
+        public synchronized Connection accept() throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            while (pending.isEmpty()) {
+                waitUntil(this, Long.MAX_VALUE);
+                if (closed)
+                    throw new AsynchronousCloseException();
+            }
+            return pending.poll();
+        }
+
+        /**
+         * Queue the server end of a new connection.
+         * @return false if the acceptor has been closed
+         */
+        synchronized boolean offer(Endpoint endpoint) {
+            if (closed)
+                return false;
+            pending.add(endpoint);
+            notifyAll();
+            return true;
+        }
+
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        public void close() {
+            List<Endpoint> refused;
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();
+                refused = new ArrayList<>(pending);
+                pending.clear();
+            }
+            synchronized (acceptors) {
+                acceptors.remove(port, this);
+            }
+            for (Endpoint endpoint : refused)
+                endpoint.close();  // Their clients see the connection close.
+        }
+
+    } // end nested class SimulatedAcceptor
+
+
+    /**
+     * A packet in flight, and the time at which it arrives.
+     */
+    private static final class Packet {
+
+        final byte[] data;
+        int offset;  // The part before this has been read.
+        final long arrival;
+
+        Packet(byte[] data, long arrival) {
+            this.data = data;
+            this.arrival = arrival;
+        }
+
+    } // end nested class Packet
+
+
+    /**
+     * One direction of a connection.  It is guarded by the Link's monitor.
+     */
+    private static final class Pipe {
+
+        final ArrayDeque<Packet> packets = new ArrayDeque<>();
+        final Random jitter;
+        int queuedBytes;  // Written and not yet read.
+        long linkFreeAt;  // When the packets already written have been sent.
+        long lastArrival;  // Of the last packet written; later ones can't arrive before it.
+        long endAt = Long.MAX_VALUE;  // When the end of the stream arrives, once the writer closes.
+        boolean readerClosed;
+
+        Pipe(Random jitter) {
+            this.jitter = jitter;
+        }
+
+    } // end nested class Pipe
+
+
+    /**
+     * A connection between two Endpoints.  All of its state, including the
+     * state of its Pipes, is guarded by its monitor, which blocked reads
+     * and writes wait on.
+     */
+    private final class Link {
+
+        final int number;
+        final int port;
+        final Pipe toServer;
+        final Pipe toClient;
+        final Random schedule;  // For stalls and the disconnect.
+        final long latencyNanos;
+        final long jitterNanos;
+        final long stallNanos;
+        final List<long[]> stallTimes = new ArrayList<>();  // {start, end, 1 if it delayed a packet}
+        long nextStall;
+        long disconnectAt = Long.MAX_VALUE;
+        boolean reset;
+        boolean blackholed;
+
+        Link(int number, int port) {
+            this.number = number;
+            this.port = port;
+            Random seeds = new Random(scenario.seed * 1_000_003L + number);
+            schedule = new Random(seeds.nextLong());
+            toServer = new Pipe(new Random(seeds.nextLong()));
+            toClient = new Pipe(new Random(seeds.nextLong()));
+            latencyNanos = TimeUnit.MILLISECONDS.toNanos(scenario.latencyMs);
+            jitterNanos = TimeUnit.MILLISECONDS.toNanos(scenario.jitterMs);
+            stallNanos = TimeUnit.MILLISECONDS.toNanos(scenario.stallMs);
+            long now = System.nanoTime();
+            if (scenario.stallIntervalMs > 0 && stallNanos > 0)
+                nextStall = now + exponential(schedule, TimeUnit.MILLISECONDS.toNanos(scenario.stallIntervalMs));
+            else
+                nextStall = Long.MAX_VALUE;
+            if (scenario.disconnectIntervalMs > 0)
+                disconnectAt = now + exponential(schedule, TimeUnit.MILLISECONDS.toNanos(scenario.disconnectIntervalMs));
+        }
+
+        /**
+         * Cut the link if its time has come.
+         */
+        void checkDisconnect(long now) {
+            if (now < disconnectAt)
+                return;
+            disconnectAt = Long.MAX_VALUE;
+            disconnects.increment();
+            if (scenario.blackhole) {
+                blackholed = true;
+            }
+            else {
+                reset = true;
+                toServer.packets.clear();
+                toClient.packets.clear();
+            }
+            notifyAll();
+        }
+
+        /**
+         * Returns the time at which something that would arrive at a
+         * specified time actually arrives, after any stall that it falls in.
+         */
+        long afterStalls(long arrival) {
+            while (nextStall <= arrival) {
+                stallTimes.add(new long[] { nextStall, nextStall + stallNanos, 0 });
+                nextStall += stallNanos + exponential(schedule, TimeUnit.MILLISECONDS.toNanos(scenario.stallIntervalMs));
+            }
+            for (int i = stallTimes.size() - 1; i >= 0; i--) {
+                long[] stall = stallTimes.get(i);
+                if (stall[1] <= arrival)
+                    break;  // This stall, and every earlier one, is over by then.
+                if (stall[0] <= arrival) {
+                    if (stall[2] == 0) {
+                        stall[2] = 1;
+                        stalls.increment();
+                    }
+                    return stall[1];
+                }
+            }
+            return arrival;
+        }
+
+        /**
+         * Returns the time at which a packet that is written now, after the
+         * packets already in a pipe, arrives.
+         */
+        long arrival(Pipe pipe, int length, long now) {
+            long start = Math.max(now, pipe.linkFreeAt);
+            long sendNanos = scenario.bandwidthBytesPerSecond > 0
+                                 ? length * TimeUnit.SECONDS.toNanos(1) / scenario.bandwidthBytesPerSecond : 0;
+            pipe.linkFreeAt = start + sendNanos;
+            long arrival = pipe.linkFreeAt + latencyNanos;
+            if (jitterNanos > 0)
+                arrival += (long)(pipe.jitter.nextDouble() * jitterNanos);
+            arrival = afterStalls(Math.max(arrival, pipe.lastArrival));
+            pipe.lastArrival = arrival;
+            return arrival;
+        }
+
+    } // end nested class Link
+
+
+    /**
+     * One end of a connection.  A client Endpoint is made by open(), and
+     * gets its Link when it connects; a server Endpoint is made by the
+     * client's connect(), with the same Link.
+     */
+    private final class Endpoint implements Connection {
+
+        private volatile Link link;
+        private Pipe in;
+        private Pipe out;
+        private volatile boolean closed;
+        private volatile int readTimeout;
+
+        Endpoint() {
+        }
+
+        Endpoint(Link link, Pipe in, Pipe out) {
+            this.link = link;
+            this.in = in;
+            this.out = out;
+        }
+
+        public void connect(String host, int port) throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            if (link != null)
+                throw new IOException("Already connected");
+            SimulatedAcceptor acceptor;
+            synchronized (acceptors) {
+                acceptor = acceptors.get(port);
+            }
+            if (acceptor == null)
+                throw new ConnectException("Connection refused (nothing listens on simulated port " + port + ")");
+            Link link = new Link(links.incrementAndGet(), port);
+            synchronized (this) {
+                long connected = System.nanoTime() + 2 * link.latencyNanos;  // One round trip.
+                while (!closed && System.nanoTime() < connected)
+                    waitUntil(this, connected);
+                if (closed)
+                    throw new AsynchronousCloseException();
+                in = link.toClient;
+                out = link.toServer;
+                this.link = link;
+            }
+            if (!acceptor.offer(new Endpoint(link, link.toServer, link.toClient))) {
+                close();
+                throw new ConnectException("Connection refused (simulated port " + port + " was closed)");
+            }
+        }
+
+        public void setReadTimeout(int millis) {
+            readTimeout = millis;
+        }
+
+        public String describeRemote() {
+            Link link = this.link;
+            return link == null ? "simulated (not connected)"
+                                : "simulated link " + link.number + ", port " + link.port;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            Link link = connectedLink();
+            int timeout = readTimeout;
+            long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+            synchronized (link) {
+                while (true) {
+                    if (closed)
+                        throw new AsynchronousCloseException();
+                    long now = System.nanoTime();
+                    link.checkDisconnect(now);
+                    if (link.reset)
+                        throw new IOException("Connection reset (simulated link " + link.number + ")");
+                    if (!dst.hasRemaining())
+                        return 0;
+                    long wake = deadline;
+                    if (!link.blackholed) {
+                        Packet packet = in.packets.peek();
+                        if (packet != null && packet.arrival <= now)
+                            return take(link, dst, now);
+                        if (packet == null && in.endAt <= now)
+                            return -1;
+                        wake = Math.min(wake, packet != null ? packet.arrival : in.endAt);
+                    }
+                    if (now >= deadline)
+                        throw new SocketTimeoutException("Read timed out (simulated link " + link.number + ")");
+                    waitUntil(link, Math.min(wake, link.disconnectAt));
+                }
+            }
+        }
+
+        /**
+         * Copy the data of the packets that have arrived into a buffer.
+         * Called with the Link's monitor held.
+         */
+        private int take(Link link, ByteBuffer dst, long now) {
+            int count = 0;
+            Packet packet;
+            while (dst.hasRemaining() && (packet = in.packets.peek()) != null && packet.arrival <= now) {
+                int length = Math.min(dst.remaining(), packet.data.length - packet.offset);
+                dst.put(packet.data, packet.offset, length);
+                packet.offset += length;
+                count += length;
+                if (packet.offset == packet.data.length)
+                    in.packets.poll();
+            }
+            in.queuedBytes -= count;
+            link.notifyAll();  // A writer might be waiting for room.
+            return count;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            Link link = connectedLink();
+            int written = 0;
+            synchronized (link) {
+                while (src.hasRemaining()) {
+                    if (closed)
+                        throw written == 0 ? new ClosedChannelException() : new AsynchronousCloseException();
+                    long now = System.nanoTime();
+                    link.checkDisconnect(now);
+                    if (link.reset || out.readerClosed)
+                        throw new IOException("Connection reset (simulated link " + link.number + ")");
+                    if (out.queuedBytes >= scenario.bufferBytes) {
+                        waitUntil(link, link.disconnectAt);  // Until the reader makes room.
+                        continue;
+                    }
+                    byte[] data = new byte[Math.min(src.remaining(), scenario.packetBytes)];
+                    src.get(data);
+                    if (!link.blackholed)
+                        out.packets.add(new Packet(data, link.arrival(out, data.length, now)));
+                    out.queuedBytes += data.length;
+                    written += data.length;
+                    packets.increment();
+                    bytes.add(data.length);
+                    link.notifyAll();
+                }
+            }
+            return written;
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * Close this end.  The other end reads the data that is already in
+         * flight, and then the end of the stream; writes from it fail.
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();  // Stops a connect() that is waiting.
+            }
+            Link link = this.link;
+            if (link == null)
+                return;
+            synchronized (link) {
+                if (out.endAt == Long.MAX_VALUE)
+                    out.endAt = link.afterStalls(Math.max(System.nanoTime() + link.latencyNanos, out.lastArrival));
+                in.readerClosed = true;
+                in.packets.clear();
+                in.queuedBytes = 0;
+                link.notifyAll();
+            }
+        }
+
+        private Link connectedLink() throws IOException {
+            Link link = this.link;
+            if (link != null)
+                return link;
+            throw closed ? new ClosedChannelException() : new IOException("Not connected");
+        }
+
+    } // end nested class Endpoint
+
+}
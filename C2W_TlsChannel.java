@@ -0,0 +1,607 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * A TLS connection on top of a SocketChannel, using an SSLEngine.  It is
+ * read and written like the SocketChannel itself, and it works both when
+ * the SocketChannel is in blocking mode, as in C2W_ConnectionHandler, and
+ * when it is in non-blocking mode, as in C2W_RelayServer.  (It can also run
+ * on any other blocking ByteChannel, such as a C2W_Transport.Connection.)
+ * <ul>
+ * <li>In blocking mode, handshake() does the whole handshake, read() waits
+ *     for data, and write() writes everything.  One thread can read while
+ *     another writes.  Reads honor the socket's SO_TIMEOUT.
+ * <li>In non-blocking mode, handshake(), read() and write() do as much as
+ *     they can without waiting.  The handshake advances whenever the owner
+ *     calls read() or flush(); read() returns 0 until it is done.  Encrypted
+ *     data that the socket would not take stays in the channel, and
+ *     hasPendingOutput() tells the owner to wait for OP_WRITE and call
+ *     flush().  Since one record can hold more data than the owner reads at
+ *     once, hasBufferedInput() tells whether read() should be called again
+ *     before waiting for OP_READ.
+ * </ul>
+ * The buffers for encrypted and decrypted data belong to the channel and
+ * are reused for every record, and the data of a gathering write is
+ * encrypted straight from the caller's buffers, so that many small messages
+ * go out in a single record.
+ *
+ * <p>Keys and trust:  The SSLContext comes from defaultContext(), which uses
+ * these system properties:
+ * <ul>
+ * <li>"c2w.tls.keyStore" -- a PKCS12 or JKS file with this side's key and
+ *     certificate.  If it is not set, the file ~/.c2w_chat/tls/guichat.p12
+ *     is used; if that does not exist, it is made, with a new self-signed
+ *     certificate, by the JDK's keytool.
+ * <li>"c2w.tls.keyStorePassword" -- the password of the key store (default
+ *     "guichat")
+ * <li>"c2w.tls.trustStore" and "c2w.tls.trustStorePassword" -- the
+ *     certificates that are trusted.  By default, only the certificate in
+ *     the key store is trusted, so peers that share a key store trust each
+ *     other, and nobody else.
+ * </ul>
+ * Host names are not checked against certificates; a peer is accepted if
+ * its certificate is in the trust store.
+ *
+ * <p>Session resumption:  The context is shared by every connection of the
+ * program, and client engines are created with the host and port that they
+ * connect to, so a client that connects to the same server again, such as a
+ * resumable session that lost its socket, resumes its TLS session instead of
+ * doing a full handshake.  isResumed() and getHandshakeNanos() tell what
+ * happened.
+ */
+public class C2W_TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    /**
+     * The key store password that is used when "c2w.tls.keyStorePassword"
+     * is not set.
+     */
+    public static final String DEFAULT_PASSWORD = "guichat";
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static volatile SSLContext defaultContext;
+
+    private final ByteChannel channel;
+    private final SSLEngine engine;
+    private final ReentrantLock readLock = new ReentrantLock();   // For netIn and appIn.
+    private final ReentrantLock writeLock = new ReentrantLock();  // For netOut.  Taken after readLock.
+    private ByteBuffer netIn;   // Encrypted bytes that have been received but not decrypted.
+    private ByteBuffer appIn;   // Decrypted bytes that read() has not returned yet.
+    private ByteBuffer netOut;  // Encrypted bytes that have not been written yet.
+    private InputStream blockingIn;
+    private volatile boolean handshakeComplete;
+    private boolean handshakeStarted;
+    private long handshakeStart;
+    private long handshakeNanos;
+    private boolean resumed;
+
+    private C2W_TlsChannel(ByteChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    /**
+     * Create the client side of a TLS connection.  The handshake starts
+     * with the first call of handshake(), read(), write() or flush().
+     * @param host the host that the channel is connected to; with port, it
+     *    identifies the server's cached session, if there is one.  If it is
+     *    null, no session is resumed.
+     */
+    public static C2W_TlsChannel client(ByteChannel channel, SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return new C2W_TlsChannel(channel, engine);
+    }
+
+    /**
+     * Create the server side of a TLS connection.
+     */
+    public static C2W_TlsChannel server(ByteChannel channel, SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new C2W_TlsChannel(channel, engine);
+    }
+
+    /**
+     * Returns the SSLContext made from the system properties described
+     * above.  It is made the first time that this is called, and shared
+     * after that.
+     * @throws IOException if the key store can't be read or made
+     */
+    public static SSLContext defaultContext() throws IOException {
+        SSLContext context = defaultContext;
+        if (context == null) {
+            synchronized (C2W_TlsChannel.class) {
+                if (defaultContext == null) {
+                    char[] password = System.getProperty("c2w.tls.keyStorePassword", DEFAULT_PASSWORD).toCharArray();
+                    String keyStore = System.getProperty("c2w.tls.keyStore");
+                    Path keyPath = keyStore != null ? Paths.get(keyStore)
+                            : Paths.get(System.getProperty("user.home"), ".c2w_chat", "tls", "guichat.p12");
+                    if (keyStore == null && !Files.exists(keyPath))
+                        createSelfSigned(keyPath, password);
+                    String trustStore = System.getProperty("c2w.tls.trustStore");
+                    String trustPassword = System.getProperty("c2w.tls.trustStorePassword");
+                    defaultContext = createContext(keyPath, password,
+                                                   trustStore == null ? keyPath : Paths.get(trustStore),
+                                                   trustPassword == null ? password : trustPassword.toCharArray());
+                }
+                context = defaultContext;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Make an SSLContext that uses the key in one key store and trusts the
+     * certificates in another (or the same) key store.
+     */
+    public static SSLContext createContext(Path keyStore, char[] password, Path trustStore, char[] trustPassword)
+            throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(keyStore.toFile(), password), password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(KeyStore.getInstance(trustStore.toFile(), trustPassword));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+            return context;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Can't set up TLS with " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Make a PKCS12 key store with a new EC key and a self-signed certificate,
+     * by running the keytool of the JDK that runs this program.  The key store
+     * is written under another name and then moved into place, so a program
+     * that is starting at the same time never sees half of it; if that
+     * program makes the file first, its file is kept.
+     */
+    static void createSelfSigned(Path keyStore, char[] password) throws IOException {
+        Path dir = keyStore.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(keyStore.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        Files.deleteIfExists(temp);
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        ProcessBuilder builder = new ProcessBuilder(keytool, "-genkeypair", "-alias", "guichat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=GUIChat", "-validity", "3650",
+                "-storetype", "PKCS12", "-keystore", temp.toString(), "-storepass:env", "C2W_TLS_PASSWORD");
+        builder.environment().put("C2W_TLS_PASSWORD", new String(password));  // Not on the command line.
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("keytool did not finish");
+            }
+        }
+        catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while making a certificate");
+        }
+        if (process.exitValue() != 0) {
+            Files.deleteIfExists(temp);
+            throw new IOException("keytool could not make a certificate: " + output.trim());
+        }
+        try {
+            Files.move(temp, keyStore);
+        }
+        catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Do the TLS handshake, or as much of it as can be done without waiting
+     * if the socket is in non-blocking mode.
+     * @return true if the handshake is complete
+     * @throws IOException if the handshake fails, for example because the
+     *    other side's certificate is not trusted
+     */
+    public boolean handshake() throws IOException {
+        if (handshakeComplete)
+            return true;
+        readLock.lock();
+        writeLock.lock();
+        try {
+            if (!handshakeStarted) {
+                handshakeStarted = true;
+                handshakeStart = System.nanoTime();
+                engine.beginHandshake();
+            }
+            while (!handshakeComplete) {
+                if (!flushNet())
+                    return false;
+                switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+                    if (wrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    else if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED && !engine.isOutboundDone())
+                        throw new SSLException("The TLS handshake was closed.");
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netIn.flip();
+                    SSLEngineResult unwrapped;
+                    try {
+                        unwrapped = engine.unwrap(netIn, appIn);
+                    }
+                    finally {
+                        netIn.compact();
+                    }
+                    if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new EOFException("The other side closed the connection during the TLS handshake.");
+                    if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    else if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                                 || unwrapped.bytesConsumed() == 0) {
+                        int count = readNet();
+                        if (count < 0)
+                            throw new EOFException("The connection was closed during the TLS handshake.");
+                        if (count == 0)
+                            return false;
+                    }
+                    break;
+                default:  // NOT_HANDSHAKING; the last message has been written.
+                    handshakeNanos = System.nanoTime() - handshakeStart;
+                    resumed = engine.getSession().getCreationTime()
+                                  < System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(handshakeNanos);
+                    handshakeComplete = true;
+                }
+            }
+            return true;
+        }
+        finally {
+            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether the handshake is complete.
+     */
+    public boolean isHandshakeComplete() {
+        return handshakeComplete;
+    }
+
+    /**
+     * Tells whether the handshake resumed a session that was made by an
+     * earlier connection, instead of doing a full handshake.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Returns the time from the start to the end of the handshake.
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * Returns the protocol and cipher suite, such as
+     * "TLSv1.3 TLS_AES_256_GCM_SHA384", and says if the session was resumed.
+     */
+    public String describe() {
+        SSLSession session = engine.getSession();
+        return session.getProtocol() + " " + session.getCipherSuite() + (resumed ? ", resumed" : "");
+    }
+
+    /**
+     * Read decrypted data.  Returns -1 at the end of the stream, whether or
+     * not the other side sent a TLS close_notify first.  (The chat
+     * protocols detect a connection that was cut off in the middle of a
+     * message on their own.)
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshakeComplete && !handshake())
+            return 0;
+        readLock.lock();
+        try {
+            while (true) {
+                if (appIn.position() > 0) {
+                    appIn.flip();
+                    int count = Math.min(appIn.remaining(), dst.remaining());
+                    ByteBuffer part = appIn.duplicate();
+                    part.limit(part.position() + count);
+                    dst.put(part);
+                    appIn.position(appIn.position() + count);
+                    appIn.compact();
+                    return count;
+                }
+                if (netIn.position() > 0) {
+                    netIn.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = engine.unwrap(netIn, appIn);
+                    }
+                    finally {
+                        netIn.compact();
+                    }
+                    switch (result.getStatus()) {
+                    case CLOSED:
+                        return -1;  // The other side sent close_notify.
+                    case BUFFER_OVERFLOW:
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case OK:
+                        afterHandshakeMessage();
+                        if (result.bytesConsumed() > 0)
+                            continue;
+                        break;
+                    default:  // BUFFER_UNDERFLOW; the rest of the record has not arrived.
+                        break;
+                    }
+                }
+                int count = readNet();
+                if (count < 0) {
+                    try {
+                        engine.closeInbound();
+                    }
+                    catch (SSLException e) {
+                        // There was no close_notify; see above.
+                    }
+                    return -1;
+                }
+                if (count == 0)
+                    return 0;
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Encrypt and write data.  In blocking mode, all of it is written.  In
+     * non-blocking mode, this returns the number of bytes that were taken
+     * from the buffers; they might not all have reached the socket yet (see
+     * hasPendingOutput()).
+     */
+    public int write(ByteBuffer src) throws IOException {
+        return (int)write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * A gathering write:  the data of several buffers is encrypted into as
+     * few records as possible.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshakeComplete && !handshake())
+            return 0;
+        writeLock.lock();
+        try {
+            long taken = 0;
+            while (flushNet() && hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    throw new ClosedChannelException();
+                default:
+                    taken += result.bytesConsumed();
+                }
+            }
+            return taken;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write encrypted data that is waiting for the socket, and advance the
+     * handshake if it is not complete.  This is for non-blocking mode, when
+     * the socket is ready for writing.
+     * @return true if nothing is left to write
+     */
+    public boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (!flushNet())
+                return false;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        if (!handshakeComplete)
+            handshake();
+        return !hasPendingOutput();
+    }
+
+    /**
+     * Tells whether encrypted data is waiting for the socket.
+     */
+    public boolean hasPendingOutput() {
+        writeLock.lock();
+        try {
+            return netOut.position() > 0;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether read() has data to return without reading the socket:
+     * data that was decrypted but not returned, or a complete record that
+     * has not been decrypted.
+     */
+    public boolean hasBufferedInput() {
+        readLock.lock();
+        try {
+            if (appIn.position() > 0)
+                return true;
+            int received = netIn.position();
+            return received >= 5 && received >= 5 + (((netIn.get(3) & 0xFF) << 8) | (netIn.get(4) & 0xFF));
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Send a TLS close_notify, if that can be done without waiting for
+     * another thread that is writing, and close the socket.
+     */
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen() && writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound();
+                    engine.wrap(EMPTY, netOut);
+                    flushNet();
+                }
+                catch (IOException e) {
+                    // The socket is closed anyway.
+                }
+                finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Run the tasks of the engine, which check certificates and the like,
+     * on the calling thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /**
+     * After data has been unwrapped, answer any handshake message that came
+     * with it, such as a TLS 1.3 key update.
+     */
+    private void afterHandshakeMessage() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+            status = engine.getHandshakeStatus();
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            writeLock.lock();
+            try {
+                while (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (engine.wrap(EMPTY, netOut).getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                }
+                flushNet();  // In non-blocking mode, the owner finishes this with flush().
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read encrypted data from the socket into netIn.  On a SocketChannel in
+     * blocking mode, the socket's input stream is used, since reads on the
+     * channel itself do not honor SO_TIMEOUT.
+     * @return the number of bytes read; 0 if none are available in
+     *    non-blocking mode; or -1 at the end of the stream
+     */
+    private int readNet() throws IOException {
+        if (!netIn.hasRemaining())
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        if (!(channel instanceof SocketChannel) || !((SocketChannel)channel).isBlocking())
+            return channel.read(netIn);
+        if (blockingIn == null)
+            blockingIn = ((SocketChannel)channel).socket().getInputStream();
+        int count = blockingIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (count > 0)
+            netIn.position(netIn.position() + count);
+        return count;
+    }
+
+    /**
+     * Write the data in netOut to the socket.  Called with writeLock held.
+     * @return true if it has all been written
+     */
+    private boolean flushNet() throws IOException {
+        if (netOut.position() == 0)
+            return true;
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+            }
+        }
+        finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a buffer with the same contents as a buffer in write mode, and
+     * room for at least the specified number of bytes more.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int room) {
+        if (buffer.remaining() >= room)
+            return buffer;
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.position() + room);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+}
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An append-only journal of everything that is posted to the c2w_transcript
+ * of a chat window, kept on disk as it happens.  Lines are handed to a
+ * background writer through a C2W_OutboundQueue, so the caller never waits
+ * for the disk.  The writer takes all the lines that are waiting and writes
+ * them to the current segment file with a single FileChannel write (a
+ * "group commit"), and then forces them to the disk according to the fsync
+ * policy.  A segment that reaches its size limit is closed and a new one is
+ * started.  Each line is written as plain text, preceded by the time at
+ * which it was posted, so the segments are themselves a readable
+ * c2w_transcript, and exporting the c2w_transcript is just a matter of
+ * copying the segments into one file.
+ *
+ * <p>The journal of each session is a directory of its own under the
+ * journal directory, which is "~/.c2w_chat/journal" unless the system
+ * property "c2w.journal.dir" says otherwise.  Since the journal is written
+ * as the session goes on, nothing is lost if the program crashes.  Only the
+ * most recent sessions are kept (by default 20; see "c2w.journal.keepSessions").
+ */
+public class C2W_TranscriptJournal {
+
+    /**
+     * When the journal forces written data to the disk with FileChannel.force().
+     */
+    public enum FsyncPolicy {
+        /** Never; the operating system decides when the data reaches the disk. */
+        NEVER,
+        /** After every group commit. */
+        BATCH,
+        /** After a group commit, if the last force was at least the interval ago. */
+        INTERVAL
+    }
+
+    /**
+     * An item in the writer's queue:  a line of text, or a request to mark
+     * the start of the c2w_transcript (when it is cleared), or a request to
+     * export the c2w_transcript, or (if all of those are null or false) the
+     * request from close() to write everything and close the segment.
+     */
+    private static final class Entry {
+        final long time;
+        final String text;
+        final Path exportTarget;
+        final CompletableFuture<Long> exportResult;
+        final boolean clearMark;
+
+        Entry(String text, Path exportTarget, CompletableFuture<Long> exportResult, boolean clearMark) {
+            this.time = System.currentTimeMillis();
+            this.text = text;
+            this.exportTarget = exportTarget;
+            this.exportResult = exportResult;
+            this.clearMark = clearMark;
+        }
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter SESSION_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final C2W_OutboundQueue<Entry> queue;
+    private final AtomicLong droppedLines = new AtomicLong();
+
+    // The following are only used by the writer thread.
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile FileChannel segment;  // Null once the writer has closed it.
+    private int segmentNumber;
+    private long segmentSize;
+    private long lastForce;
+    private int markSegment = 1;   // The c2w_transcript starts at this segment...
+    private long markPosition;     // ...and this position in it.
+
+    /**
+     * Create a journal in a new session directory and start its writer thread.
+     * @param directory the session directory; it is created if necessary
+     * @param segmentBytes size at which a segment file is closed and a new one started
+     * @param fsyncPolicy when data is forced to the disk
+     * @param fsyncIntervalMillis interval for FsyncPolicy.INTERVAL
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public C2W_TranscriptJournal(Path directory, long segmentBytes,
+                                 FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        Files.createDirectories(directory);
+        openSegment(1);
+        queue = new C2W_OutboundQueue<>(C2W_TranscriptJournal::sizeOf, this::writeBatch,
+                                        error -> System.err.println("Transcript journal failed: " + error),
+                                        Long.getLong("c2w.journal.highWaterBytes", 32L * 1024 * 1024),
+                                        256 * 1024);
+        Thread writer = new Thread(queue, "C2W-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Open a journal for a new session, using settings from the system
+     * properties "c2w.journal.dir", "c2w.journal.segmentBytes" (default 16 MB),
+     * "c2w.journal.fsync" ("never", "batch" or "interval"; default "interval"),
+     * "c2w.journal.fsyncIntervalMs" (default 1000) and
+     * "c2w.journal.keepSessions" (default 20).  Directories of the oldest
+     * sessions beyond that number are deleted.
+     */
+    public static C2W_TranscriptJournal openFromSystemProperties() throws IOException {
+        String dir = System.getProperty("c2w.journal.dir");
+        Path root = (dir != null) ? Paths.get(dir)
+                                  : Paths.get(System.getProperty("user.home"), ".c2w_chat", "journal");
+        FsyncPolicy policy = FsyncPolicy.valueOf(
+                System.getProperty("c2w.journal.fsync", "interval").trim().toUpperCase());
+        Files.createDirectories(root);
+        deleteOldSessions(root, Integer.getInteger("c2w.journal.keepSessions", 20) - 1);
+        Path session = root.resolve("session-" + LocalDateTime.now().format(SESSION_FORMAT));
+        return new C2W_TranscriptJournal(session,
+                                         Long.getLong("c2w.journal.segmentBytes", 16L * 1024 * 1024),
+                                         policy,
+                                         Long.getLong("c2w.journal.fsyncIntervalMs", 1000));
+    }
+
+    /**
+     * Returns the directory that holds the segments of this journal.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Add a message to the journal.  This can be called from any thread,
+     * and it never blocks.  If the writer has fallen too far behind, the
+     * message is dropped, and false is returned.
+     */
+    public boolean append(String message) {
+        boolean queued = queue.offer(new Entry(message, null, null, false));
+        if (!queued)
+            droppedLines.incrementAndGet();
+        return queued;
+    }
+
+    /**
+     * Returns the number of messages that were dropped because the writer
+     * had fallen too far behind.
+     */
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    /**
+     * Note that the c2w_transcript has been cleared.  An export only includes
+     * messages that were added after the most recent mark.
+     */
+    public void markClear() {
+        queue.add(new Entry(null, null, null, true));
+    }
+
+    /**
+     * Copy the c2w_transcript, from the most recent clear mark to the last
+     * message added before this call, to a file.  The copy is made by the
+     * writer thread, using FileChannel.transferTo(), so the caller does not
+     * wait for it.
+     * @return a future that gives the number of bytes copied, or fails with
+     *    the error that prevented the export
+     */
+    public CompletableFuture<Long> exportTo(Path target) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        if (!queue.add(new Entry(null, target, result, false)))
+            result.completeExceptionally(new IOException("The journal is closed."));
+        return result;
+    }
+
+    /**
+     * Stop the writer after everything that is queued has been written, and
+     * wait for it to finish, so that the end of the session is on the disk
+     * before the program exits.  (The writer is a daemon thread, which would
+     * otherwise be stopped at exit with lines still in its queue.)  The wait
+     * is limited to the number of milliseconds given by the system property
+     * "c2w.journal.closeTimeoutMs" (default 2000).  If the writer has not
+     * closed the segment by then, because the time ran out or a write
+     * failed, what has been written so far is forced to the disk here.
+     */
+    public void close() {
+        queue.add(new Entry(null, null, null, false));
+        queue.close();
+        try {
+            queue.awaitStopped(Long.getLong("c2w.journal.closeTimeoutMs", 2000), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        FileChannel open = segment;
+        if (open != null) {
+            try {
+                open.force(false);
+            }
+            catch (ClosedChannelException e) {
+                // The writer closed it in the meantime, after forcing it.
+            }
+            catch (IOException e) {
+                System.err.println("Transcript journal could not be forced to disk: " + e);
+            }
+        }
+    }
+
+    private static int sizeOf(Entry entry) {
+        return entry.text == null ? 0 : entry.text.length() + 32;
+    }
+
+    /**
+     * The Sink of the writer's queue.  Every line in the batch is encoded
+     * into the buffer, and written with one write.  Clear marks and exports
+     * are handled in order with the lines.
+     */
+    private void writeBatch(List<Entry> batch) throws IOException {
+        if (segment == null)
+            return;  // The journal has been closed.
+        for (Entry entry : batch) {
+            if (entry.text != null) {
+                encode(entry);
+            }
+            else if (entry.clearMark) {
+                flushBuffer();
+                markSegment = segmentNumber;
+                markPosition = segmentSize;
+            }
+            else if (entry.exportTarget != null) {
+                flushBuffer();
+                try {
+                    entry.exportResult.complete(export(entry.exportTarget));
+                }
+                catch (IOException | RuntimeException e) {
+                    entry.exportResult.completeExceptionally(e);
+                }
+            }
+            else {
+                flushBuffer();
+                forceNow();
+                segment.close();
+                segment = null;
+                return;
+            }
+        }
+        flushBuffer();
+        if (fsyncPolicy == FsyncPolicy.BATCH ||
+                (fsyncPolicy == FsyncPolicy.INTERVAL
+                      && System.currentTimeMillis() - lastForce >= fsyncIntervalMillis))
+            forceNow();
+    }
+
+    private void encode(Entry entry) throws IOException {
+        String stamp = TIME_FORMAT.format(Instant.ofEpochMilli(entry.time));
+        byte[] bytes = (stamp + "  " + entry.text + "\n").getBytes(StandardCharsets.UTF_8);
+        if (segmentSize + buffer.position() + bytes.length > segmentBytes && segmentSize + buffer.position() > 0) {
+            flushBuffer();
+            forceNow();
+            segment.close();
+            openSegment(segmentNumber + 1);
+        }
+        if (bytes.length > buffer.remaining()) {
+            flushBuffer();
+            if (bytes.length > buffer.capacity())
+                buffer = ByteBuffer.allocateDirect(bytes.length);
+        }
+        buffer.put(bytes);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            segmentSize += segment.write(buffer);
+        buffer.clear();
+    }
+
+    private void forceNow() throws IOException {
+        if (fsyncPolicy != FsyncPolicy.NEVER)
+            segment.force(false);
+        lastForce = System.currentTimeMillis();
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("segment-%06d.log", number));
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber = number;
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+    }
+
+    /**
+     * Copy the segments, starting at the clear mark, to the target file.
+     * Called on the writer thread after the buffer has been flushed.
+     */
+    private long export(Path target) throws IOException {
+        long total = 0;
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int number = markSegment; number <= segmentNumber; number++) {
+                try (FileChannel in = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                    long position = (number == markSegment) ? markPosition : 0;
+                    long end = (number == segmentNumber) ? segmentSize : in.size();
+                    while (position < end) {
+                        long n = in.transferTo(position, end - position, out);
+                        if (n <= 0)
+                            break;
+                        position += n;
+                        total += n;
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Delete the directories of all but the most recent sessions under the
+     * journal directory.
+     */
+    private static void deleteOldSessions(Path root, int keep) {
+        List<Path> sessions = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, "session-*")) {
+            for (Path dir : dirs)
+                sessions.add(dir);
+        }
+        catch (IOException e) {
+            return;
+        }
+        Collections.sort(sessions);  // The names sort by time.
+        for (int i = 0; i < sessions.size() - Math.max(0, keep); i++) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(sessions.get(i))) {
+                for (Path file : files)
+                    Files.deleteIfExists(file);
+                Files.deleteIfExists(sessions.get(i));
+            }
+            catch (IOException e) {
+            }
+        }
+    }
+
+}
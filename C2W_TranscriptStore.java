@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Holds the lines of a chat c2w_transcript with bounded memory use.  The most
+ * recent lines are kept in a ring buffer whose size is limited both by a
+ * number of lines and by an (approximate) number of bytes.  When a line is
+ * pushed out of the ring buffer, it is appended to a spill file on disk,
+ * along with its offset in a separate index file, so that every line that
+ * was ever added can still be retrieved by its index.  Spilled lines are
+ * read back a page at a time, and a few recently used pages are cached, so
+ * scrolling back through old lines does not read the disk for every line.
+ * The cost of adding a line does not depend on how many lines have been
+ * added before, and memory use stays flat however long a session lasts.
+ *
+ * <p>This class is not thread-safe.  In C2W_Chat_App, it is only used on the
+ * JavaFX application thread.
+ */
+public class C2W_TranscriptStore {
+
+    /**
+     * Number of spilled lines in one page that is read back from disk.
+     */
+    private static final int PAGE_SIZE = 256;
+
+    /**
+     * Maximum number of pages of spilled lines that are cached in memory.
+     */
+    private static final int MAX_CACHED_PAGES = 16;
+
+    /**
+     * Estimated memory overhead of one line in the ring buffer, in addition
+     * to two bytes per character.
+     */
+    private static final int LINE_OVERHEAD_BYTES = 48;
+
+    /**
+     * Returned for a line that was spilled but cannot be read back because
+     * of an error in the spill file.
+     */
+    private static final String UNAVAILABLE_LINE = "(line no longer available)";
+
+    private final int maxLines;
+    private final long maxBytes;
+
+    private final String[] ring;
+    private int head;        // Position in ring of the oldest line in memory.
+    private int count;       // Number of lines in the ring.
+    private long ringBytes;  // Estimated memory used by the lines in the ring.
+
+    private Path dataPath, indexPath;
+    private FileChannel data, index;
+    private final ByteBuffer dataOut = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer indexOut = ByteBuffer.allocateDirect(8 * 1024);
+    private long dataSize;       // Size of the spill file, including unflushed bytes.
+    private int spilledCount;    // Number of lines that have been spilled.
+    private boolean spillFailed; // Set if writing the spill file has failed.
+
+    private final Map<Integer,List<String>> pageCache =
+            new LinkedHashMap<Integer,List<String>>(MAX_CACHED_PAGES, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Integer,List<String>> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    /**
+     * Create a store that keeps at most the specified number of lines or
+     * bytes in memory.
+     * @param maxLines maximum number of lines kept in memory; must be positive
+     * @param maxBytes approximate maximum memory used by lines kept in memory
+     */
+    public C2W_TranscriptStore(int maxLines, long maxBytes) {
+        if (maxLines < 1)
+            throw new IllegalArgumentException("maxLines must be positive");
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        ring = new String[maxLines];
+    }
+
+    /**
+     * Create a store with limits taken from the system properties
+     * "c2w.transcript.maxLines" (default 10000) and "c2w.transcript.maxBytes"
+     * (default 8 megabytes).
+     */
+    public static C2W_TranscriptStore fromSystemProperties() {
+        int lines = Integer.getInteger("c2w.transcript.maxLines", 10_000);
+        long bytes = Long.getLong("c2w.transcript.maxBytes", 8L * 1024 * 1024);
+        return new C2W_TranscriptStore(Math.max(1, lines), bytes);
+    }
+
+    /**
+     * Returns the number of lines in the store, including spilled lines.
+     */
+    public int size() {
+        return spilledCount + count;
+    }
+
+    /**
+     * Returns the number of lines that are currently held in memory.
+     */
+    public int linesInMemory() {
+        return count;
+    }
+
+    /**
+     * Add a line at the end of the store.  If that makes the ring buffer
+     * exceed its limits, the oldest lines are moved to the spill file.
+     * @param line the line to be added; it should not contain a line feed
+     */
+    public void append(String line) {
+        long cost = cost(line);
+        while (count > 0 && (count == maxLines || ringBytes + cost > maxBytes))
+            spillOldest();
+        ring[(head + count) % maxLines] = line;
+        count++;
+        ringBytes += cost;
+    }
+
+    /**
+     * Remove lines from the end of the store.  Only lines that are still
+     * in memory can be removed; spilled lines are never changed.
+     * @param lines the number of lines to remove
+     * @throws IllegalArgumentException if lines is negative or greater than
+     *    linesInMemory()
+     */
+    public void removeLast(int lines) {
+        if (lines < 0 || lines > count)
+            throw new IllegalArgumentException("Cannot remove " + lines + " of the " + count + " lines in memory");
+        for (int i = 0; i < lines; i++) {
+            count--;
+            int slot = (head + count) % maxLines;
+            ringBytes -= cost(ring[slot]);
+            ring[slot] = null;
+        }
+    }
+
+    /**
+     * Returns the line with the specified index.  Lines that have been
+     * spilled are read from disk, unless they are in the page cache.
+     * @throws IndexOutOfBoundsException if the index is not between 0 and size()-1
+     */
+    public String get(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= size())
+            throw new IndexOutOfBoundsException("Line " + lineIndex + " of " + size());
+        if (lineIndex >= spilledCount)
+            return ring[(head + lineIndex - spilledCount) % maxLines];
+        int pageNumber = lineIndex / PAGE_SIZE;
+        List<String> page = pageCache.get(pageNumber);
+        if (page == null) {
+            page = readPage(pageNumber);
+            if (page == null)
+                return UNAVAILABLE_LINE;
+            pageCache.put(pageNumber, page);
+        }
+        return page.get(lineIndex % PAGE_SIZE);
+    }
+
+    /**
+     * Remove all lines from the store and discard the spill file contents.
+     */
+    public void clear() {
+        for (int i = 0; i < count; i++)
+            ring[(head + i) % maxLines] = null;
+        head = 0;
+        count = 0;
+        ringBytes = 0;
+        pageCache.clear();
+        dataOut.clear();
+        indexOut.clear();
+        dataSize = 0;
+        spilledCount = 0;
+        spillFailed = false;
+        try {
+            if (data != null) {
+                data.truncate(0);
+                index.truncate(0);
+            }
+        }
+        catch (IOException e) {
+            closeSpillFiles();
+        }
+    }
+
+    /**
+     * Close and delete the spill files.  The store can still be used after
+     * this is called; new spill files are created if they are needed.
+     */
+    public void close() {
+        clear();
+        closeSpillFiles();
+    }
+
+    private static long cost(String line) {
+        return LINE_OVERHEAD_BYTES + 2L * line.length();
+    }
+
+    /**
+     * Move the oldest line in the ring buffer to the spill file.  If the
+     * spill file cannot be written, the line is discarded, and it will be
+     * shown as UNAVAILABLE_LINE.
+     */
+    private void spillOldest() {
+        String line = ring[head];
+        ring[head] = null;
+        head = (head + 1) % maxLines;
+        count--;
+        ringBytes -= cost(line);
+        int lineIndex = spilledCount++;
+        pageCache.remove(lineIndex / PAGE_SIZE);  // The last page may be cached but incomplete.
+        if (spillFailed)
+            return;
+        try {
+            writeSpilled(line);
+        }
+        catch (IOException e) {
+            System.err.println("Cannot write c2w_transcript spill file: " + e);
+            spillFailed = true;
+        }
+    }
+
+    private void writeSpilled(String line) throws IOException {
+        if (data == null)
+            openSpillFiles();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (indexOut.remaining() < Long.BYTES)
+            flushSpill();
+        indexOut.putLong(dataSize);
+        if (bytes.length > dataOut.remaining()) {
+            flushSpill();
+            if (bytes.length > dataOut.capacity()) {
+                ByteBuffer direct = ByteBuffer.wrap(bytes);
+                while (direct.hasRemaining())
+                    data.write(direct);
+                dataSize += bytes.length;
+                return;
+            }
+        }
+        dataOut.put(bytes);
+        dataSize += bytes.length;
+    }
+
+    private void flushSpill() throws IOException {
+        dataOut.flip();
+        while (dataOut.hasRemaining())
+            data.write(dataOut);
+        dataOut.clear();
+        indexOut.flip();
+        while (indexOut.hasRemaining())
+            index.write(indexOut);
+        indexOut.clear();
+    }
+
+    /**
+     * Read one page of spilled lines from disk.  Returns null if the page
+     * cannot be read.
+     */
+    private List<String> readPage(int pageNumber) {
+        if (spillFailed || data == null)
+            return null;
+        try {
+            flushSpill();
+            int first = pageNumber * PAGE_SIZE;
+            int last = Math.min(first + PAGE_SIZE, spilledCount);  // Exclusive.
+            ByteBuffer offsets = ByteBuffer.allocate((last - first) * Long.BYTES);
+            readFully(index, offsets, (long)first * Long.BYTES);
+            offsets.flip();
+            long start = offsets.getLong(0);
+            long end = (last == spilledCount) ? dataSize
+                                              : readLong(index, (long)last * Long.BYTES);
+            ByteBuffer text = ByteBuffer.allocate((int)(end - start));
+            readFully(data, text, start);
+            byte[] bytes = text.array();
+            List<String> page = new ArrayList<>(last - first);
+            for (int i = 0; i < last - first; i++) {
+                int from = (int)(offsets.getLong(i * Long.BYTES) - start);
+                int to = (i + 1 < last - first) ? (int)(offsets.getLong((i + 1) * Long.BYTES) - start)
+                                                : bytes.length;
+                page.add(new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            }
+            return page;
+        }
+        catch (IOException e) {
+            System.err.println("Cannot read c2w_transcript spill file: " + e);
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of spill file");
+            position += n;
+        }
+    }
+
+    private static long readLong(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        readFully(channel, buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private void openSpillFiles() throws IOException {
+        dataPath = Files.createTempFile("c2w_transcript", ".spill");
+        indexPath = Files.createTempFile("c2w_transcript", ".index");
+        dataPath.toFile().deleteOnExit();
+        indexPath.toFile().deleteOnExit();
+        data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void closeSpillFiles() {
+        try {
+            if (data != null)
+                data.close();
+            if (index != null)
+                index.close();
+            if (dataPath != null)
+                Files.deleteIfExists(dataPath);
+            if (indexPath != null)
+                Files.deleteIfExists(indexPath);
+        }
+        catch (IOException e) {
+        }
+        data = index = null;
+        dataPath = indexPath = null;
+    }
+
+}
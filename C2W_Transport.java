@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * The network under C2W_ConnectionHandler:  a way to listen for
+ * connections and to open them.  A Connection is a blocking ByteChannel, so
+ * the handler reads and writes it, and C2W_TlsChannel runs on top of it, in
+ * the same way whatever the transport is.  sockets() is the real network,
+ * over TCP; C2W_SimulatedTransport is an imitation of one, in the memory of
+ * a single program, that adds delays and failures on purpose, for testing.
+ *
+ * <p>As with sockets, close() can be called on an Acceptor or a Connection
+ * at any time, by any thread, and it makes a blocked accept(), connect(),
+ * read() or write() fail with an AsynchronousCloseException.
+ */
+public interface C2W_Transport {
+
+    /**
+     * One end of an open connection, or of a connection that is about to be
+     * opened by connect().  It is in blocking mode:  read() waits until
+     * some data arrives, and write() writes everything.  One thread can
+     * read while another writes.
+     */
+    interface Connection extends ByteChannel {
+
+        /**
+         * Open the connection to a port of a host.  This is only called
+         * once, for a Connection that was returned by open().
+         */
+        void connect(String host, int port) throws IOException;
+
+        /**
+         * Make read() throw a SocketTimeoutException if no data arrives
+         * within the specified time.  0, the default, means no limit.
+         */
+        void setReadTimeout(int millis) throws IOException;
+
+        /**
+         * Returns a description of the other end, such as its address, for
+         * logs and metrics.
+         */
+        String describeRemote() throws IOException;
+
+        /**
+         * Write bytes from a file to the connection, like
+         * FileChannel.transferTo().
+         * @return the number of bytes written, which can be less than count
+         */
+        default long transferFrom(FileChannel file, long position, long count) throws IOException {
+            return file.transferTo(position, count, this);
+        }
+
+    } // end nested interface Connection
+
+
+    /**
+     * Listens for connections on one port.
+     */
+    interface Acceptor extends Channel {
+
+        /**
+         * Returns the port, which is the port that listen() picked if it
+         * was asked for port 0.
+         */
+        int getLocalPort();
+
+        /**
+         * Wait for a connection and return its end.
+         */
+        Connection accept() throws IOException;
+
+    } // end nested interface Acceptor
+
+
+    /**
+     * Start listening on a port.
+     * @param port the port; 0 means any free port
+     */
+    Acceptor listen(int port) throws IOException;
+
+    /**
+     * Returns a new Connection that is not connected yet.  It is returned
+     * before it connects so that the caller can close it, and so stop a
+     * slow connect(), from another thread.
+     */
+    Connection open() throws IOException;
+
+    /**
+     * Returns a description of the transport, for reports.
+     */
+    String describe();
+
+    /**
+     * Returns the transport over TCP sockets, which is the default for
+     * C2W_ConnectionHandler.Options.
+     */
+    static C2W_Transport sockets() {
+        return Sockets.INSTANCE;
+    }
+
+
+    /**
+     * The transport over TCP, with SocketChannels.  Nagle's algorithm is
+     * turned off, since the handler already groups small messages into
+     * one write.
+     */
+    final class Sockets implements C2W_Transport {
+
+        static final Sockets INSTANCE = new Sockets();
+
+        private Sockets() {
+        }
+
+        public Acceptor listen(int port) throws IOException {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                server.bind(new InetSocketAddress(port));
+            }
+            catch (IOException e) {
+                server.close();
+                throw e;
+            }
+            return new Acceptor() {
+                public int getLocalPort() {
+                    return server.socket().getLocalPort();
+                }
+                public Connection accept() throws IOException {
+                    return new SocketConnection(server.accept());
+                }
+                public boolean isOpen() {
+                    return server.isOpen();
+                }
+                public void close() throws IOException {
+                    server.close();
+                }
+            };
+        }
+
+        public Connection open() throws IOException {
+            return new SocketConnection(SocketChannel.open());
+        }
+
+        public String describe() {
+            return "tcp";
+        }
+
+    } // end nested class Sockets
+
+
+    /**
+     * A Connection on a SocketChannel.  Reads go to the channel itself,
+     * except while a read timeout is set; then they go through the socket's
+     * input stream, since reads on the channel do not honor SO_TIMEOUT.
+     * File data goes straight from the file to the socket with transferTo().
+     */
+    final class SocketConnection implements Connection {
+
+        private final SocketChannel channel;
+        private final Socket socket;
+        private volatile int readTimeout;
+        private InputStream timedIn;
+        private byte[] timedBuffer;
+
+        SocketConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.socket = channel.socket();
+            if (channel.isConnected())
+                socket.setTcpNoDelay(true);
+        }
+
+        public void connect(String host, int port) throws IOException {
+            channel.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+        }
+
+        public void setReadTimeout(int millis) throws IOException {
+            socket.setSoTimeout(millis);
+            readTimeout = millis;
+        }
+
+        public String describeRemote() throws IOException {
+            return String.valueOf(channel.getRemoteAddress());
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (readTimeout == 0)
+                return channel.read(dst);
+            if (timedIn == null)
+                timedIn = socket.getInputStream();
+            if (dst.hasArray()) {
+                int count = timedIn.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (count > 0)
+                    dst.position(dst.position() + count);
+                return count;
+            }
+            if (timedBuffer == null)
+                timedBuffer = new byte[8192];
+            int count = timedIn.read(timedBuffer, 0, Math.min(timedBuffer.length, dst.remaining()));
+            if (count > 0)
+                dst.put(timedBuffer, 0, count);
+            return count;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        public long transferFrom(FileChannel file, long position, long count) throws IOException {
+            return file.transferTo(position, count, channel);
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    } // end nested class SocketConnection
+
+}